@@ -23,12 +23,28 @@
 package pro.javacard.gp;
 
 import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import apdu4j.HexUtils;
 
+/**
+ * An application identifier. AIDs are immutable; the hash is computed once
+ * and the hex form when first asked for.
+ *
+ * AIDs parsed from card responses are taken from a pool with
+ * {@link #valueOf(byte[], int, int)}, so that registries of many cards share
+ * one instance per distinct AID.
+ */
 public class AID {
+	// Enough for the distinct AIDs of any real fleet; beyond that, AIDs are
+	// not pooled
+	private static final int POOL_LIMIT = 1 << 16;
+	private static final ConcurrentMap<AID, AID> pool = new ConcurrentHashMap<AID, AID>();
 
-	private byte[] aidBytes = null;
+	private final byte[] aidBytes;
+	private final int hash;
+	private String hex = null;
 
 	/**
 	 * Construct an application identifier from a complete byte array.
@@ -68,9 +84,39 @@ public class AID {
 		}
 		aidBytes = new byte[length];
 		System.arraycopy(bytes, offset, aidBytes, 0, length);
+		hash = Arrays.hashCode(aidBytes);
+	}
+
+	/**
+	 * Returns the pooled instance of the AID in the byte array.
+	 */
+	public static AID valueOf(byte[] bytes, int offset, int length) {
+		return intern(new AID(bytes, offset, length));
+	}
+
+	public static AID valueOf(byte[] bytes) {
+		return valueOf(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Returns the pooled instance equal to the AID.
+	 */
+	public static AID intern(AID aid) {
+		AID pooled = pool.get(aid);
+		if (pooled != null)
+			return pooled;
+		if (pool.size() >= POOL_LIMIT)
+			return aid;
+		pooled = pool.putIfAbsent(aid, aid);
+		return pooled == null ? aid : pooled;
 	}
 
 	public byte[] getBytes() {
+		return aidBytes.clone();
+	}
+
+	// Without a copy, for encoding commands; must not be modified
+	byte[] bytes() {
 		return aidBytes;
 	}
 
@@ -78,17 +124,44 @@ public class AID {
 		return aidBytes.length;
 	}
 
+	/**
+	 * Returns true if the AID begins with the bytes of prefix.
+	 */
+	public boolean startsWith(AID prefix) {
+		return prefix.aidBytes.length <= aidBytes.length && commonPrefixLength(prefix) == prefix.aidBytes.length;
+	}
+
+	/**
+	 * Returns the number of leading bytes the AIDs have in common.
+	 */
+	public int commonPrefixLength(AID other) {
+		int n = Math.min(aidBytes.length, other.aidBytes.length);
+		for (int i = 0; i < n; i++) {
+			if (aidBytes[i] != other.aidBytes[i])
+				return i;
+		}
+		return n;
+	}
+
 	public String toString() {
-		return HexUtils.encodeHexString(aidBytes);
+		String s = hex;
+		if (s == null) {
+			s = HexUtils.encodeHexString(aidBytes);
+			hex = s;
+		}
+		return s;
 	}
 
 	public int hashCode() {
-		return Arrays.hashCode(aidBytes);
+		return hash;
 	}
 
 	public boolean equals(Object o) {
+		if (o == this)
+			return true;
 		if (o instanceof AID) {
-			return Arrays.equals(((AID) o).aidBytes, aidBytes);
+			AID other = (AID) o;
+			return other.hash == hash && Arrays.equals(other.aidBytes, aidBytes);
 		}
 		return false;
 	}
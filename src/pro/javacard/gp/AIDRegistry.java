@@ -124,16 +124,50 @@ public class AIDRegistry implements Iterable<AIDRegistryEntry> {
 	public AID getDefaultSelectedPackageAID() {
 		AID defaultAID = getDefaultSelectedAID();
 		if (defaultAID != null) {
-			for (AIDRegistryEntry e : allPackages()) {
-				if (e.getExecutableAIDs().contains(defaultAID))
-					return e.getAID();
-			}
-			// Did not get a hit. Loop packages and look for prefixes
-			for (AIDRegistryEntry e : allPackages()) {
-				if (defaultAID.toString().startsWith(e.getAID().toString()))
-					return e.getAID();
-			}
+			return getPackageAID(defaultAID);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the entry with the given AID, or null.
+	 */
+	public AIDRegistryEntry getEntry(AID aid) {
+		return entries.get(aid);
+	}
+
+	/**
+	 * Returns the AID of the executable load file that an applet instance
+	 * was most probably created from, or null if not known. Unless the card
+	 * reported the load file of the instance, it is matched by module AID
+	 * first and by AID prefix second.
+	 */
+	public AID getPackageAID(AID instance) {
+		AIDRegistryEntry entry = entries.get(instance);
+		if (entry != null && entry.getLoadFileAID() != null)
+			return entry.getLoadFileAID();
+		for (AIDRegistryEntry e : allPackages()) {
+			if (e.getExecutableAIDs().contains(instance))
+				return e.getAID();
+		}
+		// Did not get a hit. Loop packages and look for prefixes
+		for (AIDRegistryEntry e : allPackages()) {
+			if (instance.startsWith(e.getAID()))
+				return e.getAID();
 		}
 		return null;
 	}
+
+	/**
+	 * Returns the applet instances that most probably belong to the load
+	 * file.
+	 */
+	public List<AID> getInstanceAIDs(AID pkg) {
+		List<AID> res = new ArrayList<AID>();
+		for (AIDRegistryEntry e : allApplets()) {
+			if (pkg.equals(getPackageAID(e.getAID())))
+				res.add(e.getAID());
+		}
+		return res;
+	}
 }
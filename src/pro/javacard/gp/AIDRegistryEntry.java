@@ -78,6 +78,10 @@ public class AIDRegistryEntry {
 
 	private final Kind kind;
 
+	private byte[] version = null;
+
+	private AID loadFile = null;
+
 	/**
 	 * Create a new entry.
 	 *
@@ -106,6 +110,34 @@ public class AIDRegistryEntry {
 		executableAIDS.add(aid);
 	}
 
+	/**
+	 * Return the version of an executable load file, as major and minor
+	 * version, or null if the card did not report it.
+	 *
+	 * @return version
+	 */
+	public byte[] getVersion() {
+		return version;
+	}
+
+	void setVersion(byte[] version) {
+		this.version = version;
+	}
+
+	/**
+	 * Return the executable load file of an application, or null if the card
+	 * did not report it.
+	 *
+	 * @return load file AID
+	 */
+	public AID getLoadFileAID() {
+		return loadFile;
+	}
+
+	void setLoadFileAID(AID loadFile) {
+		this.loadFile = loadFile;
+	}
+
 	/**
 	 * Return the application ID of this entry.
 	 *
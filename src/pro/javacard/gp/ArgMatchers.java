@@ -94,4 +94,30 @@ public class ArgMatchers {
 			}
 		}
 	}
+
+	public static ValueConverter<String> identity() {
+		return new IdentityMatcher();
+	}
+
+	public static class IdentityMatcher implements ValueConverter<String> {
+
+		@Override
+		public Class<String> valueType() {
+			return String.class;
+		}
+
+		@Override
+		public String valuePattern() {
+			return null;
+		}
+
+		@Override
+		public String convert(String arg0) {
+			try {
+				return CardKeyStore.normalize(arg0);
+			} catch (IllegalArgumentException e) {
+				throw new ValueConversionException(arg0 + " is not a valid card identity!");
+			}
+		}
+	}
 }
@@ -0,0 +1,154 @@
+package pro.javacard.gp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces requests from concurrent sessions into batches for the wrapped
+ * service. A batch is sent when it is full or when the first request in it
+ * has waited for the given window, whichever comes first.
+ */
+public class BatchingKeyDerivationService implements KeyDerivationService {
+	private final KeyDerivationService service;
+	private final int maxBatch;
+	private final long windowNanos;
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+	private final Thread dispatcher;
+	// Guarded by queue, so that nothing is added after the last drain
+	private boolean closed = false;
+
+	private static final class Pending {
+		final Request request;
+		final CountDownLatch done = new CountDownLatch(1);
+		Result result = null;
+		IOException error = null;
+
+		Pending(Request request) {
+			this.request = request;
+		}
+	}
+
+	public BatchingKeyDerivationService(KeyDerivationService service, int maxBatch, long windowMillis) {
+		if (maxBatch < 1)
+			throw new IllegalArgumentException("Batch size must be positive");
+		this.service = service;
+		this.maxBatch = maxBatch;
+		this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+		this.dispatcher = new Thread(new Runnable() {
+			public void run() {
+				dispatch();
+			}
+		}, "derivation-batcher");
+		this.dispatcher.setDaemon(true);
+		this.dispatcher.start();
+	}
+
+	public List<Result> derive(List<Request> requests) throws IOException {
+		// Big batches go straight through
+		if (requests.size() >= maxBatch) {
+			if (isClosed())
+				throw new IOException("Service closed");
+			return service.derive(requests);
+		}
+
+		List<Pending> pending = new ArrayList<Pending>(requests.size());
+		for (Request r : requests) {
+			pending.add(new Pending(r));
+		}
+		synchronized (queue) {
+			if (closed)
+				throw new IOException("Service closed");
+			queue.addAll(pending);
+		}
+		List<Result> results = new ArrayList<Result>(requests.size());
+		for (Pending p : pending) {
+			try {
+				p.done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for key derivation", e);
+			}
+			if (p.error != null)
+				throw p.error;
+			results.add(p.result);
+		}
+		return results;
+	}
+
+	public Result derive(Request request) throws IOException {
+		return derive(Collections.singletonList(request)).get(0);
+	}
+
+	public void close() {
+		synchronized (queue) {
+			closed = true;
+		}
+		dispatcher.interrupt();
+	}
+
+	private boolean isClosed() {
+		synchronized (queue) {
+			return closed;
+		}
+	}
+
+	private void dispatch() {
+		List<Pending> batch = new ArrayList<Pending>(maxBatch);
+		try {
+			while (!isClosed()) {
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + windowNanos;
+				while (batch.size() < maxBatch) {
+					long left = deadline - System.nanoTime();
+					Pending p = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : queue.poll();
+					if (p == null)
+						break;
+					batch.add(p);
+				}
+				process(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			// Closed
+		}
+		// Fail whatever is left
+		synchronized (queue) {
+			closed = true;
+			queue.drainTo(batch);
+		}
+		for (Pending p : batch) {
+			p.error = new IOException("Service closed");
+			p.done.countDown();
+		}
+	}
+
+	private void process(List<Pending> batch) {
+		List<Request> requests = new ArrayList<Request>(batch.size());
+		for (Pending p : batch) {
+			requests.add(p.request);
+		}
+		try {
+			List<Result> results = service.derive(requests);
+			for (int i = 0; i < batch.size(); i++) {
+				batch.get(i).result = results.get(i);
+			}
+		} catch (IOException e) {
+			for (Pending p : batch) {
+				p.error = e;
+			}
+		} catch (RuntimeException e) {
+			for (Pending p : batch) {
+				p.error = new IOException("Key derivation failed", e);
+			}
+		}
+		for (Pending p : batch) {
+			p.done.countDown();
+		}
+	}
+}
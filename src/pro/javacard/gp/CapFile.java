@@ -24,19 +24,31 @@ package pro.javacard.gp;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import apdu4j.HexUtils;
@@ -46,14 +58,30 @@ public class CapFile {
 	public static final String[] componentNames = { "Header", "Directory", "Import", "Applet", "Class", "Method", "StaticField", "Export",
 		"ConstantPool", "RefLocation", "Descriptor", "Debug" };
 
+	// Component tags, in the order of componentNames
+	private static final int[] componentTags = { 1, 2, 4, 3, 6, 7, 8, 10, 5, 9, 11, 12 };
+
+	// Indexed load image
+	private static final int INDEXED_MAGIC = 0x47504349; // GPCI
+
 	private final HashMap<String, byte[]> capComponents = new HashMap<String, byte[]>();
 
 	private String packageName = null;
 
 	private AID packageAID = null;
 
+	private byte[] packageVersion = null;
+
 	private final List<AID> appletAIDs = new ArrayList<AID>();
 
+	// Parsed when first needed
+	private List<AID> importAIDs = null;
+
+	// Load blocks and hashes, computed once
+	private final Map<String, List<byte[]>> blockCache = new HashMap<String, List<byte[]>>();
+
+	private final Map<Boolean, byte[]> hashCache = new HashMap<Boolean, byte[]>();
+
 	private final List<byte[]> dapBlocks = new ArrayList<byte[]>();
 
 	private final List<byte[]> loadTokens = new ArrayList<byte[]>();
@@ -61,25 +89,30 @@ public class CapFile {
 	private final List<byte[]> installTokens = new ArrayList<byte[]>();
 	private Manifest manifest = null;
 
+	// Archive to read components from on demand, null if read from a stream
+	private final File file;
+
+	// Directory of the components in the archive
+	private final String componentPath;
+
+	// Indexed load image to read components from, see openIndexed
+	private ByteBuffer image = null;
+
+	// Component name to offset and length in the image
+	private Map<String, int[]> imageIndex = null;
+
 	public CapFile(InputStream in) throws IOException {
 		this(in, null);
 	}
 
 	public CapFile(InputStream in, String packageName) throws IOException {
+		file = null;
 		ZipInputStream zip = new ZipInputStream(in);
 		Map<String, byte[]> entries = getEntries(zip);
 		if (packageName != null) {
 			packageName = packageName.replace('.', '/') + "/javacard/";
 		} else {
-			Iterator<? extends String> it = entries.keySet().iterator();
-			String lookFor = "Header.cap";
-			while (it.hasNext()) {
-				String s = it.next();
-				if (s.endsWith(lookFor)) {
-					packageName = s.substring(0, s.lastIndexOf(lookFor));
-					break;
-				}
-			}
+			packageName = findComponentPath(entries.keySet());
 		}
 
 		// Parse manifest
@@ -95,6 +128,7 @@ public class CapFile {
 			throw new RuntimeException("Could not figure out the package name of the applet!");
 		}
 
+		componentPath = packageName;
 		this.packageName = packageName.substring(0, packageName.lastIndexOf("/javacard/")).replace('/', '.');
 		for (String name : componentNames) {
 			String fullName = packageName + name + ".cap";
@@ -119,6 +153,220 @@ public class CapFile {
 			}
 		}
 		zip.close();
+		parseHeader();
+		parseApplets();
+	}
+
+	/**
+	 * Reads a CAP file with random access. Only the Header and Applet
+	 * components are read up front, other components are decompressed when
+	 * first needed (Debug and Descriptor only if included in loading).
+	 */
+	public CapFile(File file) throws IOException {
+		this(file, null);
+	}
+
+	public CapFile(File file, String packageName) throws IOException {
+		this.file = file;
+		try (ZipFile zip = new ZipFile(file)) {
+			if (packageName != null) {
+				packageName = packageName.replace('.', '/') + "/javacard/";
+			} else {
+				List<String> names = new ArrayList<String>();
+				Enumeration<? extends ZipEntry> en = zip.entries();
+				while (en.hasMoreElements()) {
+					names.add(en.nextElement().getName());
+				}
+				packageName = findComponentPath(names);
+			}
+			if (zip.getEntry("META-INF/MANIFEST.MF") == null) {
+				throw new RuntimeException("No manifest in CAP!");
+			}
+			if (packageName == null) {
+				throw new RuntimeException("Could not figure out the package name of the applet!");
+			}
+			componentPath = packageName;
+			this.packageName = packageName.substring(0, packageName.lastIndexOf("/javacard/")).replace('/', '.');
+			readComponents(zip, Arrays.asList("Header", "Applet"));
+		}
+		parseHeader();
+		parseApplets();
+	}
+
+	// Components without a CAP archive around them
+	private CapFile(String packageName, Map<String, byte[]> components) {
+		file = null;
+		componentPath = null;
+		capComponents.putAll(components);
+		parseHeader();
+		parseApplets();
+		// Load images do not know the package name
+		this.packageName = packageName == null ? packageAID.toString() : packageName;
+	}
+
+	/**
+	 * Opens a CAP file, an IJC load image or an indexed load image (see
+	 * {@link #writeIndexed(OutputStream)}), depending on the contents of the
+	 * file.
+	 */
+	public static CapFile open(File file) throws IOException {
+		int magic;
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			magic = in.readInt();
+		}
+		if (magic == INDEXED_MAGIC) {
+			return openIndexed(file);
+		} else if (magic == 0x504B0304) { // PK\3\4
+			return new CapFile(file);
+		}
+		try (InputStream in = new FileInputStream(file)) {
+			return fromIJC(in);
+		}
+	}
+
+	/**
+	 * Reads an IJC load image: the components as loaded to the card, one
+	 * after another.
+	 */
+	public static CapFile fromIJC(InputStream in) throws IOException {
+		byte[] data = readFully(in, -1);
+		Map<String, byte[]> components = new HashMap<String, byte[]>();
+		int offset = 0;
+		while (offset < data.length) {
+			if (offset + 3 > data.length)
+				throw new IOException("Truncated load image");
+			String name = getComponentName(data[offset] & 0xFF);
+			int len = 3 + (((data[offset + 1] & 0xFF) << 8) | (data[offset + 2] & 0xFF));
+			if (offset + len > data.length)
+				throw new IOException("Truncated " + name + " component");
+			components.put(name, Arrays.copyOfRange(data, offset, offset + len));
+			offset += len;
+		}
+		if (!components.containsKey("Header"))
+			throw new IOException("No Header component in load image");
+		for (String name : componentNames) {
+			if (!components.containsKey(name))
+				components.put(name, null);
+		}
+		return new CapFile(null, components);
+	}
+
+	/**
+	 * Writes the load file data as an IJC load image.
+	 */
+	public void writeIJC(OutputStream out, boolean includeDebug) throws IOException {
+		out.write(getRawCode(includeDebug));
+	}
+
+	/**
+	 * Writes an indexed load image: package name, offsets of components and
+	 * load file data hashes, followed by the components. It is meant to be
+	 * memory mapped with {@link #openIndexed(File)}, so that opening it
+	 * costs neither ZIP inflation nor hashing.
+	 */
+	public void writeIndexed(OutputStream out) throws IOException {
+		loadComponents(true);
+		DataOutputStream o = new DataOutputStream(out);
+		o.writeInt(INDEXED_MAGIC);
+		o.writeUTF(packageName);
+		List<String> present = new ArrayList<String>();
+		for (String name : componentNames) {
+			if (capComponents.get(name) != null)
+				present.add(name);
+		}
+		o.writeByte(present.size());
+		int offset = 0;
+		for (String name : present) {
+			int len = capComponents.get(name).length;
+			o.writeByte(getComponentTag(name));
+			o.writeInt(offset);
+			o.writeInt(len);
+			offset += len;
+		}
+		byte[] hash = getLoadFileDataHash(false);
+		o.writeByte(hash.length);
+		o.write(hash);
+		hash = getLoadFileDataHash(true);
+		o.writeByte(hash.length);
+		o.write(hash);
+		for (String name : present) {
+			o.write(capComponents.get(name));
+		}
+		o.flush();
+	}
+
+	/**
+	 * Memory maps an indexed load image. Components are copied out of the
+	 * mapping only when needed.
+	 */
+	public static CapFile openIndexed(File file) throws IOException {
+		ByteBuffer map;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel ch = raf.getChannel()) {
+			// The mapping stays valid after the channel is closed
+			map = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+		}
+		try {
+			if (map.getInt() != INDEXED_MAGIC)
+				throw new IOException(file + " is not an indexed load image");
+			byte[] name = new byte[map.getShort() & 0xFFFF];
+			map.get(name);
+			int n = map.get() & 0xFF;
+			Map<String, int[]> index = new HashMap<String, int[]>();
+			for (int i = 0; i < n; i++) {
+				index.put(getComponentName(map.get() & 0xFF), new int[] { map.getInt(), map.getInt() });
+			}
+			byte[] hash = new byte[map.get() & 0xFF];
+			map.get(hash);
+			byte[] debugHash = new byte[map.get() & 0xFF];
+			map.get(debugHash);
+			ByteBuffer image = map.slice();
+
+			Map<String, byte[]> components = new HashMap<String, byte[]>();
+			for (String c : new String[] { "Header", "Applet" }) {
+				components.put(c, index.containsKey(c) ? copy(image, index.get(c)) : null);
+			}
+			CapFile cap = new CapFile(new String(name, "UTF-8"), components);
+			cap.image = image;
+			cap.imageIndex = index;
+			cap.hashCache.put(false, hash);
+			cap.hashCache.put(true, debugHash);
+			return cap;
+		} catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+			throw new IOException(file + " is truncated", e);
+		}
+	}
+
+	private static byte[] copy(ByteBuffer image, int[] location) {
+		byte[] result = new byte[location[1]];
+		ByteBuffer b = image.duplicate();
+		b.position(location[0]);
+		b.get(result);
+		return result;
+	}
+
+	private static String getComponentName(int tag) throws IOException {
+		for (int i = 0; i < componentTags.length; i++) {
+			if (componentTags[i] == tag)
+				return componentNames[i];
+		}
+		throw new IOException("Unknown component tag " + tag);
+	}
+
+	private static int getComponentTag(String name) {
+		return componentTags[Arrays.asList(componentNames).indexOf(name)];
+	}
+
+	private static String findComponentPath(Iterable<String> names) {
+		String lookFor = "Header.cap";
+		for (String s : names) {
+			if (s.endsWith(lookFor)) {
+				return s.substring(0, s.lastIndexOf(lookFor));
+			}
+		}
+		return null;
+	}
+
+	private void parseHeader() {
 		byte[] header = capComponents.get("Header");
 		int i = 0;
 		// header[0] should be 1;
@@ -133,16 +381,19 @@ public class CapFile {
 		i += 2;
 		// header[9] should be flags
 		i++;
-		// header[10,11] should be package version
+		// header[10,11] should be package version, minor first
+		packageVersion = new byte[] { header[i + 1], header[i] };
 		i += 2;
 		// header[12] should be the length of AID
 		int len = header[i++];
 		packageAID = new AID(header, i, len);
 		//GPUtils.debug("package AID: " + packageAID);
+	}
 
+	private void parseApplets() {
 		byte[] applet = capComponents.get("Applet");
 		if (applet != null) {
-			i = 0;
+			int i = 0;
 			// applet[0] should be 3;
 			i++;
 			// applet[1] should be 0;
@@ -152,7 +403,7 @@ public class CapFile {
 			// header[3] should be number of applets
 			int num = applet[i++];
 			for (int j = 0; j < num; j++) {
-				len = applet[i++];
+				int len = applet[i++];
 				appletAIDs.add(new AID(applet, i, len));
 				i += len + 2;
 			}
@@ -162,6 +413,104 @@ public class CapFile {
 		}
 	}
 
+	private void parseImports() {
+		byte[] imports = getComponent("Import");
+		importAIDs = new ArrayList<AID>();
+		if (imports != null) {
+			int i = 0;
+			// imports[0] should be 4;
+			i++;
+			// imports[1,2] should be remaining length
+			i += 2;
+			int num = imports[i++];
+			for (int j = 0; j < num; j++) {
+				// minor and major version
+				i += 2;
+				int len = imports[i++];
+				importAIDs.add(new AID(imports, i, len));
+				i += len;
+			}
+		}
+	}
+
+	// Returns the component, reading it from the archive if needed
+	private synchronized byte[] getComponent(String name) {
+		if (!capComponents.containsKey(name)) {
+			loadComponents(Arrays.asList(name));
+		}
+		return capComponents.get(name);
+	}
+
+	// Makes sure all components needed for loading are in memory
+	private synchronized void loadComponents(boolean includeDebug) {
+		List<String> names = new ArrayList<String>();
+		for (String name : componentNames) {
+			if (!includeDebug && (name.equals("Debug") || name.equals("Descriptor"))) {
+				continue;
+			}
+			names.add(name);
+		}
+		loadComponents(names);
+	}
+
+	private void loadComponents(List<String> names) {
+		List<String> missing = new ArrayList<String>();
+		for (String name : names) {
+			if (!capComponents.containsKey(name))
+				missing.add(name);
+		}
+		if (missing.isEmpty())
+			return;
+		if (image != null) {
+			for (String name : missing) {
+				int[] location = imageIndex.get(name);
+				capComponents.put(name, location == null ? null : copy(image, location));
+			}
+			return;
+		}
+		if (file == null)
+			return;
+		try (ZipFile zip = new ZipFile(file)) {
+			readComponents(zip, missing);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read " + file, e);
+		}
+	}
+
+	private void readComponents(ZipFile zip, List<String> names) throws IOException {
+		for (String name : names) {
+			ZipEntry entry = zip.getEntry(componentPath + name + ".cap");
+			if (entry == null) {
+				capComponents.put(name, null);
+				continue;
+			}
+			try (InputStream in = zip.getInputStream(entry)) {
+				capComponents.put(name, readFully(in, entry.getSize()));
+			}
+		}
+	}
+
+	private static byte[] readFully(InputStream in, long size) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream(size > 0 ? (int) size : 1024);
+		byte[] buf = new byte[size > 0 && size < 65536 ? (int) size : 8192];
+		int c;
+		while ((c = in.read(buf)) > 0) {
+			bos.write(buf, 0, c);
+		}
+		return bos.toByteArray();
+	}
+
+	private synchronized Manifest getManifest() {
+		if (manifest == null && file != null) {
+			try (ZipFile zip = new ZipFile(file); InputStream in = zip.getInputStream(zip.getEntry("META-INF/MANIFEST.MF"))) {
+				manifest = new Manifest(in);
+			} catch (IOException e) {
+				throw new RuntimeException("Could not read " + file, e);
+			}
+		}
+		return manifest;
+	}
+
 	private Map<String, byte[]> getEntries(ZipInputStream in) throws IOException {
 		Map<String, byte[]> result = new HashMap<String, byte[]>();
 		while (true) {
@@ -184,17 +533,38 @@ public class CapFile {
 		return packageAID;
 	}
 
+	/**
+	 * Returns the package version as major and minor version, the way GET
+	 * STATUS reports the version of a load file.
+	 */
+	public byte[] getPackageVersion() {
+		return packageVersion.clone();
+	}
+
 	public List<AID> getAppletAIDs() {
 		List<AID> result = new ArrayList<AID>();
 		result.addAll(appletAIDs);
 		return result;
 	}
 
+	/**
+	 * Returns the AID-s of packages imported by this package.
+	 */
+	public synchronized List<AID> getImportAIDs() {
+		if (importAIDs == null) {
+			parseImports();
+		}
+		List<AID> result = new ArrayList<AID>();
+		result.addAll(importAIDs);
+		return result;
+	}
+
 	public String getPackageName() {
 		return packageName;
 	}
 
 	public int getCodeLength(boolean includeDebug) {
+		loadComponents(includeDebug);
 		int result = 0;
 		for (String name : componentNames) {
 			if (!includeDebug && (name.equals("Debug") || name.equals("Descriptor"))) {
@@ -231,7 +601,18 @@ public class CapFile {
 		return bo.toByteArray();
 	}
 
-	public List<byte[]> getLoadBlocks(boolean includeDebug, boolean separateComponents, int blockSize) {
+	public synchronized List<byte[]> getLoadBlocks(boolean includeDebug, boolean separateComponents, int blockSize) {
+		String key = includeDebug + "/" + separateComponents + "/" + blockSize;
+		List<byte[]> blocks = blockCache.get(key);
+		if (blocks == null) {
+			blocks = Collections.unmodifiableList(splitLoadBlocks(includeDebug, separateComponents, blockSize));
+			blockCache.put(key, blocks);
+		}
+		return blocks;
+	}
+
+	private List<byte[]> splitLoadBlocks(boolean includeDebug, boolean separateComponents, int blockSize) {
+		loadComponents(includeDebug);
 		List<byte[]> blocks = null;
 
 		if (!separateComponents) {
@@ -270,6 +651,7 @@ public class CapFile {
 	}
 
 	private byte[] getRawCode(boolean includeDebug) {
+		loadComponents(includeDebug);
 		byte[] result = new byte[getCodeLength(includeDebug)];
 		short offset = 0;
 		for (String name : componentNames) {
@@ -286,12 +668,17 @@ public class CapFile {
 		return result;
 	}
 
-	public byte[] getLoadFileDataHash(boolean includeDebug) {
-		try {
-			return MessageDigest.getInstance("SHA1").digest(getRawCode(includeDebug));
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("Not possible", e);
+	public synchronized byte[] getLoadFileDataHash(boolean includeDebug) {
+		byte[] hash = hashCache.get(includeDebug);
+		if (hash == null) {
+			try {
+				hash = MessageDigest.getInstance("SHA1").digest(getRawCode(includeDebug));
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException("Not possible", e);
+			}
+			hashCache.put(includeDebug, hash);
 		}
+		return hash.clone();
 	}
 
 	private List<byte[]> splitArray(byte[] array, int blockSize) {
@@ -318,6 +705,18 @@ public class CapFile {
 
 	public void dump(PrintStream out) {
 		// Print information about CAP
+		Manifest manifest = getManifest();
+		if (manifest == null) {
+			// Load images have no manifest
+			out.println("Load image of " + packageName + " v" + (packageVersion[0] & 0xFF) + "." + (packageVersion[1] & 0xFF) + " with AID " + packageAID);
+			for (AID applet : appletAIDs) {
+				out.println("Applet: " + applet);
+			}
+			for (AID imp : getImportAIDs()) {
+				out.println("Import: " + imp);
+			}
+			return;
+		}
 		Attributes mains = manifest.getMainAttributes();
 
 		// iterate all packages
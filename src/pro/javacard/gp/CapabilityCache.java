@@ -0,0 +1,133 @@
+package pro.javacard.gp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import pro.javacard.gp.GPData.CPLC;
+import apdu4j.HexUtils;
+
+/**
+ * Remembers what was learned about a card type by probing, so that later
+ * sessions with the same kind of card can skip the probing round trips.
+ *
+ * Entries are keyed by ATR and verified against the OS and IC fields of CPLC
+ * once those are known. Everything here is an assumption: if the card does
+ * not behave as remembered, GlobalPlatform probes again and updates the entry.
+ */
+public class CapabilityCache {
+	private final File file;
+	private final Properties props = new Properties();
+
+	/**
+	 * What is known about one card type. Unknown values are null.
+	 */
+	public static final class Capabilities {
+		// OS and IC fields of CPLC
+		public String cplc = null;
+		// CLA that works for GET DATA outside of a secure channel
+		public Integer cla = null;
+		public AID sdAID = null;
+		public Boolean cardData = null;
+		public Integer scp = null;
+		public Integer scp_i = null;
+		// Maximum length of command data field, from FCI tag 9F65
+		public Integer blockSize = null;
+		// GET STATUS with the tagged response format works
+		public Boolean taggedStatus = null;
+
+		public Capabilities copy() {
+			Capabilities c = new Capabilities();
+			c.cplc = cplc;
+			c.cla = cla;
+			c.sdAID = sdAID;
+			c.cardData = cardData;
+			c.scp = scp;
+			c.scp_i = scp_i;
+			c.blockSize = blockSize;
+			c.taggedStatus = taggedStatus;
+			return c;
+		}
+
+		public String toString() {
+			return "CLA=" + (cla == null ? null : String.format("%02X", cla)) + " ISD=" + sdAID + " CardData=" + cardData + " SCP=" + scp + " i=" + scp_i + " block=" + blockSize + " tagged=" + taggedStatus;
+		}
+	}
+
+	public CapabilityCache(File file) throws IOException {
+		this.file = file;
+		if (file.exists()) {
+			try (InputStream in = new FileInputStream(file)) {
+				props.load(in);
+			}
+		}
+	}
+
+	/**
+	 * OS and IC fields of CPLC that identify a card type, or null.
+	 */
+	public static String getCardType(byte[] cplc) {
+		if (cplc == null)
+			return null;
+		CPLC c = new CPLC(cplc);
+		return HexUtils.encodeHexString(c.get(CPLC.Field.ICFabricator)) + HexUtils.encodeHexString(c.get(CPLC.Field.ICType))
+				+ HexUtils.encodeHexString(c.get(CPLC.Field.OperatingSystemID)) + HexUtils.encodeHexString(c.get(CPLC.Field.OperatingSystemReleaseDate))
+				+ HexUtils.encodeHexString(c.get(CPLC.Field.OperatingSystemReleaseLevel));
+	}
+
+	/**
+	 * Returns a copy of the capabilities remembered for the ATR, or empty
+	 * capabilities if the card type is not known.
+	 */
+	public synchronized Capabilities get(byte[] atr) {
+		String k = HexUtils.encodeHexString(atr) + ".";
+		Capabilities c = new Capabilities();
+		c.cplc = props.getProperty(k + "cplc");
+		c.cla = getInt(k + "cla");
+		String aid = props.getProperty(k + "isd");
+		c.sdAID = aid == null ? null : new AID(aid);
+		String cd = props.getProperty(k + "carddata");
+		c.cardData = cd == null ? null : Boolean.valueOf(cd);
+		c.scp = getInt(k + "scp");
+		c.scp_i = getInt(k + "scp_i");
+		c.blockSize = getInt(k + "block");
+		String tagged = props.getProperty(k + "tagged");
+		c.taggedStatus = tagged == null ? null : Boolean.valueOf(tagged);
+		return c;
+	}
+
+	/**
+	 * Remembers the capabilities of the ATR and writes the cache to disk.
+	 */
+	public synchronized void put(byte[] atr, Capabilities c) throws IOException {
+		String k = HexUtils.encodeHexString(atr) + ".";
+		set(k + "cplc", c.cplc);
+		set(k + "cla", c.cla == null ? null : Integer.toHexString(c.cla));
+		set(k + "isd", c.sdAID == null ? null : c.sdAID.toString());
+		set(k + "carddata", c.cardData == null ? null : c.cardData.toString());
+		set(k + "scp", c.scp == null ? null : Integer.toHexString(c.scp));
+		set(k + "scp_i", c.scp_i == null ? null : Integer.toHexString(c.scp_i));
+		set(k + "block", c.blockSize == null ? null : Integer.toHexString(c.blockSize));
+		set(k + "tagged", c.taggedStatus == null ? null : c.taggedStatus.toString());
+		try (OutputStream out = new FileOutputStream(file)) {
+			props.store(out, "GlobalPlatformPro card capabilities");
+		}
+	}
+
+	private Integer getInt(String key) {
+		String v = props.getProperty(key);
+		return v == null ? null : Integer.valueOf(v, 16);
+	}
+
+	private void set(String key, String value) {
+		if (value == null) {
+			props.remove(key);
+		} else {
+			props.setProperty(key, value);
+		}
+	}
+}
@@ -0,0 +1,348 @@
+package pro.javacard.gp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import pro.javacard.gp.GPData.CPLC;
+import pro.javacard.gp.GPKeySet.GPKey;
+import apdu4j.HexUtils;
+
+/**
+ * Append-only local store of card snapshots: identity (CPLC, ATR, ISD AID),
+ * key information template and the registry as seen with GET STATUS.
+ *
+ * The file is a sequence of length-prefixed, checksummed records. The newest
+ * record of a card wins. All records are read into memory when the store is
+ * opened and indexed by card ID, AID and key version, so queries do not touch
+ * the disk. A torn record at the end of the file (from a crash) is dropped.
+ */
+public class CardInventory {
+	private static final int MAGIC = 0x47504931; // GPI1
+
+	private final File file;
+	private DataOutputStream out = null;
+
+	private final Map<String, Snapshot> cards = new LinkedHashMap<String, Snapshot>();
+	private final Map<AID, Set<String>> byAID = new HashMap<AID, Set<String>>();
+	private final Map<Integer, Set<String>> byKeyVersion = new HashMap<Integer, Set<String>>();
+
+	/**
+	 * Everything known about a card at one point in time.
+	 */
+	public static final class Snapshot {
+		public final String id;
+		public final long timestamp;
+		public final byte[] atr;
+		public final byte[] cplc;
+		public final AID sdAID;
+		public final List<GPKey> keys;
+		public final AIDRegistry registry;
+
+		public Snapshot(String id, long timestamp, byte[] atr, byte[] cplc, AID sdAID, List<GPKey> keys, AIDRegistry registry) {
+			this.id = id;
+			this.timestamp = timestamp;
+			this.atr = atr;
+			this.cplc = cplc;
+			this.sdAID = sdAID;
+			this.keys = keys;
+			this.registry = registry;
+		}
+
+		public boolean isFresh(long maxAgeMillis) {
+			return System.currentTimeMillis() - timestamp <= maxAgeMillis;
+		}
+
+		public String toString() {
+			return id + " ATR: " + HexUtils.encodeHexString(atr) + " ISD: " + sdAID + " entries: " + registry.allAIDs().size();
+		}
+	}
+
+	private CardInventory(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Opens (or creates) the store in the given file.
+	 */
+	public static CardInventory open(File file) throws IOException {
+		CardInventory inv = new CardInventory(file);
+		inv.load();
+		return inv;
+	}
+
+	/**
+	 * Card ID from CPLC: IC fabricator, IC type, batch identifier and serial
+	 * number. Returns null if CPLC is not available.
+	 */
+	public static String getCardID(byte[] cplc) {
+		if (cplc == null)
+			return null;
+		CPLC c = new CPLC(cplc);
+		return HexUtils.encodeHexString(c.get(CPLC.Field.ICFabricator)) + HexUtils.encodeHexString(c.get(CPLC.Field.ICType))
+				+ HexUtils.encodeHexString(c.get(CPLC.Field.ICBatchIdentifier)) + HexUtils.encodeHexString(c.get(CPLC.Field.ICSerialNumber));
+	}
+
+	public synchronized Snapshot get(String id) {
+		return cards.get(id);
+	}
+
+	public synchronized Collection<Snapshot> getAll() {
+		return new ArrayList<Snapshot>(cards.values());
+	}
+
+	/**
+	 * Returns the cards whose last snapshot contains the AID, as a package,
+	 * applet or security domain.
+	 */
+	public synchronized List<Snapshot> findByAID(AID aid) {
+		return lookup(byAID.get(aid));
+	}
+
+	public synchronized List<Snapshot> findByKeyVersion(int version) {
+		return lookup(byKeyVersion.get(version));
+	}
+
+	private List<Snapshot> lookup(Set<String> ids) {
+		if (ids == null)
+			return Collections.emptyList();
+		List<Snapshot> result = new ArrayList<Snapshot>(ids.size());
+		for (String id : ids) {
+			result.add(cards.get(id));
+		}
+		return result;
+	}
+
+	/**
+	 * Appends the snapshot to the store and makes it the current one for the
+	 * card.
+	 */
+	public synchronized void record(Snapshot s) throws IOException {
+		byte[] record = encode(s);
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		if (out == null) {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		}
+		out.writeInt(record.length);
+		out.write(record);
+		out.writeInt((int) crc.getValue());
+		out.flush();
+		index(s);
+	}
+
+	/**
+	 * Rewrites the store with only the current snapshot of every card.
+	 */
+	public synchronized void compact() throws IOException {
+		close();
+		File tmp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream o = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			o.writeInt(MAGIC);
+			for (Snapshot s : cards.values()) {
+				byte[] record = encode(s);
+				CRC32 crc = new CRC32();
+				crc.update(record);
+				o.writeInt(record.length);
+				o.write(record);
+				o.writeInt((int) crc.getValue());
+			}
+		}
+		if (!tmp.renameTo(file)) {
+			// Windows does not replace on rename
+			if (!file.delete() || !tmp.renameTo(file))
+				throw new IOException("Could not replace " + file);
+		}
+	}
+
+	public synchronized void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+
+	private void load() throws IOException {
+		if (!file.exists() || file.length() == 0) {
+			try (DataOutputStream o = new DataOutputStream(new FileOutputStream(file))) {
+				o.writeInt(MAGIC);
+			}
+			return;
+		}
+		long good = 4;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException(file + " is not a card inventory");
+			while (true) {
+				byte[] record;
+				try {
+					int len = in.readInt();
+					if (len < 0 || len > file.length())
+						break;
+					record = new byte[len];
+					in.readFully(record);
+					CRC32 crc = new CRC32();
+					crc.update(record);
+					if (in.readInt() != (int) crc.getValue())
+						break;
+				} catch (EOFException e) {
+					break;
+				}
+				index(decode(record));
+				good += 4 + record.length + 4;
+			}
+		}
+		// Drop a torn tail so that new records follow the last good one
+		if (good < file.length()) {
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(good);
+			}
+		}
+	}
+
+	private void index(Snapshot s) {
+		Snapshot old = cards.remove(s.id);
+		if (old != null) {
+			if (old.timestamp > s.timestamp) {
+				cards.put(old.id, old);
+				return;
+			}
+			for (AID a : aids(old)) {
+				byAID.get(a).remove(old.id);
+			}
+			for (GPKey k : old.keys) {
+				byKeyVersion.get(k.getVersion()).remove(old.id);
+			}
+		}
+		cards.put(s.id, s);
+		for (AID a : aids(s)) {
+			add(byAID, a, s.id);
+		}
+		for (GPKey k : s.keys) {
+			add(byKeyVersion, k.getVersion(), s.id);
+		}
+	}
+
+	private static <K> void add(Map<K, Set<String>> index, K key, String id) {
+		Set<String> ids = index.get(key);
+		if (ids == null) {
+			ids = new LinkedHashSet<String>();
+			index.put(key, ids);
+		}
+		ids.add(id);
+	}
+
+	private static Set<AID> aids(Snapshot s) {
+		Set<AID> result = new LinkedHashSet<AID>();
+		for (AIDRegistryEntry e : s.registry) {
+			result.add(e.getAID());
+			result.addAll(e.getExecutableAIDs());
+		}
+		return result;
+	}
+
+	// Record format
+	private static byte[] encode(Snapshot s) throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		DataOutputStream o = new DataOutputStream(bo);
+		o.writeUTF(s.id);
+		o.writeLong(s.timestamp);
+		writeBytes(o, s.atr);
+		writeBytes(o, s.cplc);
+		writeBytes(o, s.sdAID == null ? null : s.sdAID.bytes());
+		o.writeShort(s.keys.size());
+		for (GPKey k : s.keys) {
+			o.writeByte(k.getVersion());
+			o.writeByte(k.getID());
+			o.writeByte(k.getLength());
+			o.writeByte(k.getType() == GPKey.Type.AES ? 0x88 : 0x80);
+		}
+		List<AIDRegistryEntry> entries = new ArrayList<AIDRegistryEntry>();
+		for (AIDRegistryEntry e : s.registry) {
+			entries.add(e);
+		}
+		o.writeShort(entries.size());
+		for (AIDRegistryEntry e : entries) {
+			writeBytes(o, e.getAID().bytes());
+			o.writeByte(e.getKind().ordinal());
+			o.writeByte(e.getLifeCycleState());
+			o.writeByte(e.getPrivileges());
+			List<AID> exec = e.getExecutableAIDs();
+			o.writeByte(exec.size());
+			for (AID a : exec) {
+				writeBytes(o, a.bytes());
+			}
+			writeBytes(o, e.getVersion());
+			writeBytes(o, e.getLoadFileAID() == null ? null : e.getLoadFileAID().bytes());
+		}
+		o.flush();
+		return bo.toByteArray();
+	}
+
+	private static Snapshot decode(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		String id = in.readUTF();
+		long timestamp = in.readLong();
+		byte[] atr = readBytes(in);
+		byte[] cplc = readBytes(in);
+		byte[] sd = readBytes(in);
+		int n = in.readUnsignedShort();
+		List<GPKey> keys = new ArrayList<GPKey>(n);
+		for (int i = 0; i < n; i++) {
+			keys.add(new GPKey(in.readUnsignedByte(), in.readUnsignedByte(), in.readUnsignedByte(), in.readUnsignedByte()));
+		}
+		AIDRegistry registry = new AIDRegistry();
+		n = in.readUnsignedShort();
+		for (int i = 0; i < n; i++) {
+			AID aid = AID.valueOf(readBytes(in));
+			AIDRegistryEntry.Kind kind = AIDRegistryEntry.Kind.values()[in.readUnsignedByte()];
+			AIDRegistryEntry e = new AIDRegistryEntry(aid, in.readUnsignedByte(), in.readUnsignedByte(), kind);
+			int m = in.readUnsignedByte();
+			for (int j = 0; j < m; j++) {
+				e.addExecutableAID(AID.valueOf(readBytes(in)));
+			}
+			e.setVersion(readBytes(in));
+			byte[] loadFile = readBytes(in);
+			e.setLoadFileAID(loadFile == null ? null : AID.valueOf(loadFile));
+			registry.add(e);
+		}
+		return new Snapshot(id, timestamp, atr, cplc, sd == null ? null : AID.valueOf(sd), keys, registry);
+	}
+
+	private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+		if (b == null) {
+			out.writeShort(-1);
+		} else {
+			out.writeShort(b.length);
+			out.write(b);
+		}
+	}
+
+	private static byte[] readBytes(DataInputStream in) throws IOException {
+		int len = in.readShort();
+		if (len < 0)
+			return null;
+		byte[] b = new byte[len];
+		in.readFully(b);
+		return b;
+	}
+}
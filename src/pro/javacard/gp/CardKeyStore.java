@@ -0,0 +1,305 @@
+package pro.javacard.gp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import pro.javacard.gp.GPData.KeyType;
+import pro.javacard.gp.GPKeySet.GPKey;
+import apdu4j.HexUtils;
+
+/**
+ * Keys of individual cards, with key version and ID, in a password protected
+ * local file.
+ *
+ * A card is identified by the diversification data it returns in INITIALIZE
+ * UPDATE or by its card ID from CPLC (see
+ * {@link CardInventory#getCardID(byte[])}). With the store set,
+ * {@link GlobalPlatform#openSecureChannel} uses the keys of the card it is
+ * talking to instead of the keys it was given.
+ *
+ * The file is append-only like {@link CardInventory}, the newest record of a
+ * card wins. Identities are stored as keyed hashes and key sets are encrypted
+ * (AES-128-CBC, HMAC-SHA256 over the record) with keys derived from the
+ * password. Opening the store reads only the hashes into an index; a key set is
+ * read and decrypted from the file when first asked for and a limited number
+ * of them are kept in memory.
+ */
+public class CardKeyStore implements Closeable {
+	private static final int MAGIC = 0x47505331; // GPS1
+	static final int ITERATIONS = 10000;
+	private static final int HASH_LENGTH = 32;
+	private static final int IV_LENGTH = 16;
+
+	private final File file;
+	private final RandomAccessFile raf;
+	private final SecretKeySpec encKey;
+	private final SecretKeySpec macKey;
+	private final SecretKeySpec indexKey;
+
+	// Hash of identity to record offset
+	private final Map<String, Long> index = new HashMap<String, Long>();
+	private final Map<String, GPKeySet> cache;
+
+	private CardKeyStore(File file, RandomAccessFile raf, byte[] keys, final int cacheSize) {
+		this.file = file;
+		this.raf = raf;
+		this.encKey = new SecretKeySpec(Arrays.copyOfRange(keys, 0, 16), "AES");
+		this.macKey = new SecretKeySpec(Arrays.copyOfRange(keys, 16, 48), "HmacSHA256");
+		this.indexKey = new SecretKeySpec(Arrays.copyOfRange(keys, 48, 80), "HmacSHA256");
+		this.cache = new LinkedHashMap<String, GPKeySet>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, GPKeySet> eldest) {
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	 * Opens (or creates) the store in the given file, keeping at most
+	 * cacheSize decrypted key sets in memory.
+	 */
+	public static CardKeyStore open(File file, char[] password, int cacheSize) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			byte[] salt = new byte[16];
+			byte[] check = new byte[HASH_LENGTH];
+			int iterations;
+			boolean created = raf.length() == 0;
+			if (created) {
+				new SecureRandom().nextBytes(salt);
+				iterations = ITERATIONS;
+			} else {
+				if (raf.length() < 4 + salt.length + 4 + check.length || raf.readInt() != MAGIC)
+					throw new IOException(file + " is not a key store");
+				raf.readFully(salt);
+				iterations = raf.readInt();
+				raf.readFully(check);
+			}
+			CardKeyStore store = new CardKeyStore(file, raf, deriveKeys(password, salt, iterations), cacheSize);
+			byte[] expected = store.mac(new byte[][] { "GPS1".getBytes(StandardCharsets.US_ASCII) });
+			if (created) {
+				raf.writeInt(MAGIC);
+				raf.write(salt);
+				raf.writeInt(iterations);
+				raf.write(expected);
+			} else if (!MessageDigest.isEqual(check, expected)) {
+				throw new IOException("Wrong password for " + file);
+			}
+			store.load();
+			return store;
+		} catch (IOException | RuntimeException e) {
+			raf.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Identity of a card by its diversification data.
+	 */
+	public static String identity(byte[] diversification_data) {
+		return HexUtils.encodeHexString(Arrays.copyOf(diversification_data, 10));
+	}
+
+	/**
+	 * Returns the keys of the card with the identity, or null.
+	 */
+	public synchronized GPKeySet get(String identity) throws IOException {
+		identity = normalize(identity);
+		GPKeySet keys = cache.get(identity);
+		if (keys == null) {
+			String hash = hash(identity);
+			Long offset = index.get(hash);
+			if (offset == null)
+				return null;
+			keys = read(offset, hash);
+			cache.put(identity, keys);
+		}
+		return new GPKeySet(keys);
+	}
+
+	/**
+	 * Returns the keys of the card, looked up by the diversification data and
+	 * then by the CPLC card ID if CPLC is given, or null.
+	 */
+	public GPKeySet find(byte[] diversification_data, byte[] cplc) throws IOException {
+		GPKeySet keys = get(identity(diversification_data));
+		if (keys == null && cplc != null)
+			keys = get(CardInventory.getCardID(cplc));
+		return keys;
+	}
+
+	/**
+	 * Stores the keys of the card with the identity, replacing what there was.
+	 */
+	public synchronized void put(String identity, GPKeySet keys) throws IOException {
+		identity = normalize(identity);
+		String hash = hash(identity);
+		byte[] hashBytes = HexUtils.stringToBin(hash);
+		byte[] iv = new byte[IV_LENGTH];
+		new SecureRandom().nextBytes(iv);
+		byte[] ct = crypt(Cipher.ENCRYPT_MODE, iv, encode(keys));
+		byte[] tag = mac(new byte[][] { hashBytes, iv, ct });
+		long offset = raf.length();
+		raf.seek(offset);
+		raf.writeInt(HASH_LENGTH + IV_LENGTH + ct.length + HASH_LENGTH);
+		raf.write(hashBytes);
+		raf.write(iv);
+		raf.write(ct);
+		raf.write(tag);
+		index.put(hash, offset);
+		cache.put(identity, new GPKeySet(keys));
+	}
+
+	public synchronized int size() {
+		return index.size();
+	}
+
+	public synchronized void close() throws IOException {
+		cache.clear();
+		raf.close();
+	}
+
+	// Reads the hashes, dropping a torn record at the end
+	private void load() throws IOException {
+		long pos = raf.getFilePointer();
+		long end = raf.length();
+		byte[] hash = new byte[HASH_LENGTH];
+		while (pos + 4 <= end) {
+			raf.seek(pos);
+			int len = raf.readInt();
+			if (len < HASH_LENGTH + IV_LENGTH + HASH_LENGTH || pos + 4 + len > end)
+				break;
+			raf.readFully(hash);
+			index.put(HexUtils.encodeHexString(hash), pos);
+			pos += 4 + len;
+		}
+		if (pos < end)
+			raf.setLength(pos);
+	}
+
+	private GPKeySet read(long offset, String hash) throws IOException {
+		raf.seek(offset);
+		byte[] record = new byte[raf.readInt()];
+		raf.readFully(record);
+		byte[] hashBytes = Arrays.copyOfRange(record, 0, HASH_LENGTH);
+		byte[] iv = Arrays.copyOfRange(record, HASH_LENGTH, HASH_LENGTH + IV_LENGTH);
+		byte[] ct = Arrays.copyOfRange(record, HASH_LENGTH + IV_LENGTH, record.length - HASH_LENGTH);
+		byte[] tag = Arrays.copyOfRange(record, record.length - HASH_LENGTH, record.length);
+		if (!MessageDigest.isEqual(tag, mac(new byte[][] { hashBytes, iv, ct })))
+			throw new IOException("Record of " + hash + " in " + file + " is corrupted");
+		return decode(crypt(Cipher.DECRYPT_MODE, iv, ct));
+	}
+
+	// Key set format
+	private static byte[] encode(GPKeySet keys) throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		DataOutputStream o = new DataOutputStream(bo);
+		o.writeByte(keys.getKeyVersion());
+		o.writeByte(keys.getKeyID());
+		Map<KeyType, GPKey> m = keys.getKeys();
+		o.writeByte(m.size());
+		for (Map.Entry<KeyType, GPKey> e : m.entrySet()) {
+			o.writeByte(e.getKey().ordinal());
+			o.writeByte(e.getValue().getType().ordinal());
+			o.writeByte(e.getValue().getLength());
+			o.write(e.getValue().getValue(), 0, e.getValue().getLength());
+		}
+		o.flush();
+		return bo.toByteArray();
+	}
+
+	private static GPKeySet decode(byte[] data) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		GPKeySet keys = new GPKeySet();
+		keys.setKeyVersion(in.readUnsignedByte());
+		keys.setKeyID(in.readUnsignedByte());
+		int n = in.readUnsignedByte();
+		for (int i = 0; i < n; i++) {
+			KeyType kt = KeyType.values()[in.readUnsignedByte()];
+			GPKey.Type type = GPKey.Type.values()[in.readUnsignedByte()];
+			byte[] value = new byte[in.readUnsignedByte()];
+			in.readFully(value);
+			keys.setKey(kt, new GPKey(value, type));
+		}
+		return keys;
+	}
+
+	/**
+	 * Returns the identity in the form used for lookups: hex in upper case.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if the identity is not hex
+	 */
+	public static String normalize(String identity) {
+		String s = identity.trim().toUpperCase(Locale.ROOT);
+		if (s.isEmpty() || s.length() % 2 != 0 || !s.matches("[0-9A-F]+"))
+			throw new IllegalArgumentException("Card identity must be hex: " + identity);
+		return s;
+	}
+
+	private String hash(String identity) {
+		try {
+			Mac m = Mac.getInstance("HmacSHA256");
+			m.init(indexKey);
+			return HexUtils.encodeHexString(m.doFinal(identity.getBytes(StandardCharsets.US_ASCII)));
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("HmacSHA256 not available", e);
+		}
+	}
+
+	private byte[] mac(byte[][] parts) {
+		try {
+			Mac m = Mac.getInstance("HmacSHA256");
+			m.init(macKey);
+			for (byte[] p : parts) {
+				m.update(p);
+			}
+			return m.doFinal();
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("HmacSHA256 not available", e);
+		}
+	}
+
+	private byte[] crypt(int mode, byte[] iv, byte[] data) throws IOException {
+		try {
+			Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+			c.init(mode, encKey, new IvParameterSpec(iv));
+			return c.doFinal(data);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not " + (mode == Cipher.ENCRYPT_MODE ? "encrypt" : "decrypt") + " keys: " + e.getMessage(), e);
+		}
+	}
+
+	// AES key, MAC key and index key
+	static byte[] deriveKeys(char[] password, byte[] salt, int iterations) throws IOException {
+		try {
+			SecretKeyFactory f = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+			return f.generateSecret(new PBEKeySpec(password, salt, iterations, 80 * 8)).getEncoded();
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not derive keys: " + e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package pro.javacard.gp;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.smartcardio.CardException;
+
+import pro.javacard.gp.GPKeySet.GPKey;
+
+/**
+ * GET DATA objects of the card, fetched on first use and remembered for the
+ * rest of the session. GlobalPlatform invalidates objects that change: the key
+ * information template after PUT KEY, the sequence counter after PUT KEY or
+ * INITIALIZE UPDATE and the card resources after content changes.
+ */
+public class CardProfile {
+	public static final int KEY_INFO = 0xE0;
+	public static final int CARD_DATA = 0x66;
+	public static final int IIN = 0x42;
+	public static final int CIN = 0x45;
+	public static final int SSC = 0xC1;
+	public static final int CPLC = 0x9F7F;
+	public static final int RESOURCES = 0xFF21;
+
+	/**
+	 * Extended card resources information (GET DATA FF21). Values the card
+	 * does not report are -1.
+	 */
+	public static final class Resources {
+		public final int applications;
+		public final long freeNonVolatile;
+		public final long freeVolatile;
+		// Some cards report at most 0x7FFF or 0xFFFF when there is more
+		public final boolean saturated;
+
+		Resources(int applications, long freeNonVolatile, long freeVolatile) {
+			this.applications = applications;
+			this.freeNonVolatile = freeNonVolatile;
+			this.freeVolatile = freeVolatile;
+			this.saturated = freeNonVolatile == 0x7FFF || freeNonVolatile == 0xFFFF;
+		}
+
+		public String toString() {
+			return "Applications: " + applications + ", free non-volatile memory: " + freeNonVolatile + (saturated ? "+" : "") + ", free volatile memory: " + freeVolatile;
+		}
+	}
+
+	private final GlobalPlatform gp;
+	// Tag to value. A null value means "not available on this card".
+	private final Map<Integer, byte[]> values = new HashMap<Integer, byte[]>();
+
+	CardProfile(GlobalPlatform gp) {
+		this.gp = gp;
+	}
+
+	/**
+	 * Returns the value of the GET DATA object, or null if the card does not
+	 * have it. The card is asked only once.
+	 */
+	public byte[] get(int tag) throws CardException, GPException {
+		if (!values.containsKey(tag)) {
+			values.put(tag, gp.fetchData(tag));
+		}
+		return values.get(tag);
+	}
+
+	public boolean isKnown(int tag) {
+		return values.containsKey(tag);
+	}
+
+	public void invalidate(int... tags) {
+		for (int tag : tags) {
+			values.remove(tag);
+		}
+	}
+
+	public void invalidateAll() {
+		values.clear();
+	}
+
+	public byte[] getCPLC() throws CardException, GPException {
+		return get(CPLC);
+	}
+
+	public byte[] getCardData() throws CardException, GPException {
+		return get(CARD_DATA);
+	}
+
+	public List<GPKey> getKeyInfoTemplate() throws CardException, GPException {
+		return GPData.get_key_template_list(get(KEY_INFO), GlobalPlatform.SHORT_0);
+	}
+
+	public byte[] getIIN() throws CardException, GPException {
+		return get(IIN);
+	}
+
+	public byte[] getCIN() throws CardException, GPException {
+		return get(CIN);
+	}
+
+	/**
+	 * Returns the extended card resources, or null if the card does not
+	 * report them or the data is malformed.
+	 */
+	public Resources getResources() throws CardException, GPException {
+		byte[] data = get(RESOURCES);
+		if (data == null)
+			return null;
+		int offset = 0;
+		int end = data.length;
+		int[] tlv = tlv(data, 0, end);
+		if (tlv == null)
+			return null;
+		if (tlv[0] == RESOURCES) {
+			offset = tlv[1];
+			end = offset + tlv[2];
+		}
+		long[] v = { -1, -1, -1 };
+		while (offset < end) {
+			tlv = tlv(data, offset, end);
+			if (tlv == null)
+				return null;
+			if (tlv[0] >= 0x81 && tlv[0] <= 0x83) {
+				if (tlv[2] > 4)
+					return null;
+				long value = 0;
+				for (int i = 0; i < tlv[2]; i++) {
+					value = (value << 8) | (data[tlv[1] + i] & 0xFF);
+				}
+				v[tlv[0] - 0x81] = value;
+			}
+			offset = tlv[1] + tlv[2];
+		}
+		return new Resources((int) v[0], v[1], v[2]);
+	}
+
+	// The TLV at offset, or null if it does not fit before end
+	private static int[] tlv(byte[] data, int offset, int end) {
+		if (end - offset < 2)
+			return null;
+		int[] tlv;
+		try {
+			tlv = GlobalPlatform.getTLV(data, offset);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			return null;
+		}
+		if (tlv[1] + tlv[2] > end)
+			return null;
+		return tlv;
+	}
+
+	/**
+	 * Sequence counter of the default key version, without the C1 tag.
+	 */
+	public byte[] getSSC() throws CardException, GPException {
+		byte[] ssc = get(SSC);
+		if (ssc == null)
+			return null;
+		short offset = TLVUtils.expectTag(ssc, GlobalPlatform.SHORT_0, (byte) 0xC1);
+		// Some cards return the value without the tag
+		if (offset == 0)
+			return ssc;
+		return TLVUtils.getTLVValueAsBytes(ssc, GlobalPlatform.SHORT_0);
+	}
+}
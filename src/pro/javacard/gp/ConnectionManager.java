@@ -0,0 +1,161 @@
+package pro.javacard.gp;
+
+import java.io.Closeable;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+
+import pro.javacard.gp.GlobalPlatform.APDUMode;
+
+/**
+ * Keeps cards connected between operations, so that back to back operations
+ * on the same card do not pay for a reset, SELECT and a new secure channel.
+ *
+ * A connection remembers the selected security domain and the secure channel
+ * opened on it. Nothing is sent to the card to check that they are still
+ * valid: the card being removed, a failed command or a SELECT is noticed when
+ * it happens and only the part that was lost is redone on the next use.
+ * Cards are held exclusively while connected and are disconnected without a
+ * reset.
+ *
+ * Different terminals can be used from different threads, but a terminal
+ * must be used from one thread at a time.
+ */
+public class ConnectionManager implements Closeable {
+	private final Map<CardTerminal, Connection> connections = new HashMap<CardTerminal, Connection>();
+	private GPLog log = new GPLog();
+	private ReaderScheduler scheduler = null;
+	private CardKeyStore keyStore = null;
+
+	private static final class Connection {
+		final Card card;
+		final GlobalPlatform gp;
+		GPKeySet keys = null;
+		int scpVersion = 0;
+		EnumSet<APDUMode> mode = null;
+
+		Connection(Card card, CardChannel channel, GPLog log, CardKeyStore keyStore) {
+			this.card = card;
+			this.gp = new GlobalPlatform(channel);
+			this.gp.setLog(log);
+			this.gp.setKeyStore(keyStore);
+		}
+	}
+
+	/**
+	 * Sets the log used by connections made from now on.
+	 */
+	public synchronized void setLog(GPLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * Sets the key store used by connections made from now on.
+	 */
+	public synchronized void setKeyStore(CardKeyStore keyStore) {
+		this.keyStore = keyStore;
+	}
+
+	/**
+	 * Sends the commands of connections made from now on through the
+	 * scheduler.
+	 */
+	public synchronized void setScheduler(ReaderScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Returns the connection to the card in the terminal, connecting if there
+	 * is none or the card has been removed since.
+	 */
+	public synchronized GlobalPlatform connect(CardTerminal terminal) throws CardException {
+		Connection c = connections.get(terminal);
+		if (c != null && !terminal.isCardPresent()) {
+			release(terminal);
+			c = null;
+		}
+		if (c == null) {
+			Card card = terminal.connect("*");
+			card.beginExclusive();
+			CardChannel channel = scheduler == null ? card.getBasicChannel() : scheduler.wrap(terminal.getName(), card.getBasicChannel());
+			c = new Connection(card, channel, log, keyStore);
+			connections.put(terminal, c);
+		}
+		return c.gp;
+	}
+
+	/**
+	 * Returns the connection with the security domain selected, selecting it
+	 * unless it already is.
+	 */
+	public GlobalPlatform select(CardTerminal terminal, AID sdAID) throws CardException, GPException {
+		GlobalPlatform gp = connect(terminal);
+		if (gp.sdAID == null || (sdAID != null && !sdAID.equals(gp.sdAID))) {
+			if (!gp.select(sdAID))
+				throw new GPException("Could not select security domain!");
+		}
+		return gp;
+	}
+
+	/**
+	 * Returns the connection with a secure channel to the security domain,
+	 * opening it unless one with the same keys and security level is open.
+	 */
+	public GlobalPlatform authenticate(CardTerminal terminal, AID sdAID, GPKeySet keys, int scpVersion, EnumSet<APDUMode> mode) throws CardException, GPException {
+		GlobalPlatform gp = select(terminal, sdAID);
+		Connection c;
+		synchronized (this) {
+			c = connections.get(terminal);
+		}
+		if (!gp.isSecureChannelOpen() || c.keys != keys || c.scpVersion != scpVersion || !mode.equals(c.mode)) {
+			c.keys = null;
+			gp.openSecureChannel(keys, null, scpVersion, EnumSet.copyOf(mode));
+			c.keys = keys;
+			c.scpVersion = scpVersion;
+			c.mode = EnumSet.copyOf(mode);
+		}
+		return gp;
+	}
+
+	/**
+	 * Forgets the connection after a failure, so that the next use connects
+	 * again.
+	 */
+	public synchronized void drop(CardTerminal terminal) {
+		Connection c = connections.remove(terminal);
+		if (c != null) {
+			try {
+				c.card.disconnect(true);
+			} catch (CardException e) {
+				// Gone already
+			}
+		}
+	}
+
+	/**
+	 * Disconnects from the card in the terminal, leaving it powered and as it
+	 * is.
+	 */
+	public synchronized void release(CardTerminal terminal) {
+		Connection c = connections.remove(terminal);
+		if (c != null) {
+			try {
+				c.card.endExclusive();
+				c.card.disconnect(false);
+			} catch (CardException | IllegalStateException e) {
+				// Gone already
+			}
+		}
+	}
+
+	public synchronized void close() {
+		for (CardTerminal t : connections.keySet().toArray(new CardTerminal[0])) {
+			release(t);
+		}
+	}
+}
@@ -0,0 +1,491 @@
+package pro.javacard.gp;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.crypto.BlockCipher;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.engines.DESEngine;
+import org.bouncycastle.crypto.engines.DESedeEngine;
+import org.bouncycastle.crypto.macs.CMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+import apdu4j.HexUtils;
+
+/**
+ * CryptoBackend is the SPI behind {@link GPCrypto}. A backend must provide a
+ * keyed single block cipher for DES, 3DES and AES; CBC mode, CBC-MAC, the
+ * retail MAC, AES-CMAC and the SCP03 KDF are built on top of it and can be
+ * overridden where the backend has something faster.
+ *
+ * The backend to use is chosen with the {@code pro.javacard.gp.crypto} system
+ * property (jce, bc, table or auto), JCE if not set. With auto all backends
+ * are checked against known answers and a benchmark of a few hundred
+ * kilobytes per backend picks the fastest, which pays off only for long runs.
+ */
+public abstract class CryptoBackend {
+	public static final String PROPERTY = "pro.javacard.gp.crypto";
+	public static final String AUTO = "auto";
+
+	/**
+	 * A keyed block cipher that processes exactly one block at a time.
+	 * Input and output may be the same buffer.
+	 */
+	public interface BlockEngine {
+		int getBlockSize();
+		void processBlock(byte[] in, int inOff, byte[] out, int outOff);
+	}
+
+	/**
+	 * A keyed MAC that can be reused: doFinal() resets it for the next message.
+	 */
+	public interface MacEngine {
+		void update(byte b);
+		void update(byte[] in, int inOff, int len);
+		int doFinal(byte[] out, int outOff);
+	}
+
+	public abstract String getName();
+
+	public abstract BlockEngine blockCipher(Type type, boolean encrypt, byte[] key);
+
+	public MacEngine cmac(byte[] key) {
+		return new CMacEngine(blockCipher(Type.AES, true, key));
+	}
+
+	// ECB over full blocks
+	public void ecb(Type type, boolean encrypt, byte[] key, byte[] in, int inOff, int len, byte[] out, int outOff) {
+		BlockEngine e = blockCipher(type, encrypt, key);
+		int bs = e.getBlockSize();
+		checkBlocks(len, bs);
+		for (int i = 0; i < len; i += bs) {
+			e.processBlock(in, inOff + i, out, outOff + i);
+		}
+	}
+
+	// CBC over full blocks, iv of null means a zero IV
+	public void cbc(Type type, boolean encrypt, byte[] key, byte[] iv, byte[] in, int inOff, int len, byte[] out, int outOff) {
+		BlockEngine e = blockCipher(type, encrypt, key);
+		int bs = e.getBlockSize();
+		checkBlocks(len, bs);
+		byte[] chain = iv == null ? new byte[bs] : Arrays.copyOf(iv, bs);
+		byte[] block = new byte[bs];
+		for (int i = 0; i < len; i += bs) {
+			if (encrypt) {
+				for (int j = 0; j < bs; j++) {
+					block[j] = (byte) (in[inOff + i + j] ^ chain[j]);
+				}
+				e.processBlock(block, 0, out, outOff + i);
+				System.arraycopy(out, outOff + i, chain, 0, bs);
+			} else {
+				System.arraycopy(in, inOff + i, block, 0, bs);
+				e.processBlock(in, inOff + i, out, outOff + i);
+				for (int j = 0; j < bs; j++) {
+					out[outOff + i + j] ^= chain[j];
+				}
+				System.arraycopy(block, 0, chain, 0, bs);
+			}
+		}
+	}
+
+	// Full 3DES CBC-MAC over already padded data
+	public byte[] mac_3des(byte[] key, byte[] text, int offset, int length, byte[] iv) {
+		byte[] res = new byte[length];
+		cbc(Type.DES3, true, key, iv, text, offset, length, res, 0);
+		return Arrays.copyOfRange(res, length - 8, length);
+	}
+
+	// Retail MAC (single DES CBC, 3DES for the last block) over already padded data
+	public byte[] mac_des_3des(byte[] key, byte[] text, int offset, int length, byte[] iv) {
+		byte[] result = Arrays.copyOf(iv, 8);
+		if (length > 8) {
+			byte[] temp = new byte[length - 8];
+			cbc(Type.DES, true, key, iv, text, offset, length - 8, temp, 0);
+			System.arraycopy(temp, temp.length - 8, result, 0, 8);
+		}
+		cbc(Type.DES3, true, key, result, text, (offset + length) - 8, 8, result, 0);
+		return result;
+	}
+
+	public byte[] cmac_aes(byte[] key, byte[] msg, int offset, int length) {
+		MacEngine m = cmac(key);
+		m.update(msg, offset, length);
+		byte[] out = new byte[16];
+		m.doFinal(out, 0);
+		return out;
+	}
+
+	// GP 2.2.1 Amendment D v 1.1.1: NIST SP 800-108 KDF in counter mode with AES-CMAC
+	public byte[] scp03_kdf(byte[] key, byte constant, byte[] context, int blocklen_bits) {
+		MacEngine m = cmac(key);
+		int blocks = (blocklen_bits / 8 + 15) / 16;
+		byte[] out = new byte[blocks * 16];
+		for (int i = 1; i <= blocks; i++) {
+			// 11 bytes of label
+			m.update(GPCrypto.null_bytes_16, 0, 11);
+			m.update(constant);
+			m.update((byte) 0x00); // separator
+			m.update((byte) ((blocklen_bits >> 8) & 0xFF)); // block size in two bytes
+			m.update((byte) (blocklen_bits & 0xFF));
+			m.update((byte) i); // 8 bit counter
+			m.update(context, 0, context.length);
+			m.doFinal(out, (i - 1) * 16);
+		}
+		return Arrays.copyOf(out, blocklen_bits / 8);
+	}
+
+	@Override
+	public String toString() {
+		return getName();
+	}
+
+	private static void checkBlocks(int len, int bs) {
+		if (len % bs != 0) {
+			throw new IllegalArgumentException("Data length " + len + " is not a multiple of block size " + bs);
+		}
+	}
+
+	static byte[] normalize(Type type, byte[] key) {
+		if (type == Type.DES) {
+			return Arrays.copyOf(key, 8);
+		} else if (type == Type.DES3 && key.length == 16) {
+			byte[] key24 = new byte[24];
+			System.arraycopy(key, 0, key24, 0, 16);
+			System.arraycopy(key, 0, key24, 16, 8);
+			return key24;
+		}
+		return key;
+	}
+
+	// CMAC (NIST SP 800-38B) on top of any 128 bit block cipher
+	static final class CMacEngine implements MacEngine {
+		private final BlockEngine cipher;
+		private final byte[] k1 = new byte[16];
+		private final byte[] k2 = new byte[16];
+		private final byte[] x = new byte[16];
+		private final byte[] buf = new byte[16];
+		private int bufLen = 0;
+
+		CMacEngine(BlockEngine cipher) {
+			this.cipher = cipher;
+			byte[] l = new byte[16];
+			cipher.processBlock(l, 0, l, 0);
+			dbl(l, k1);
+			dbl(k1, k2);
+		}
+
+		private static void dbl(byte[] in, byte[] out) {
+			int carry = 0;
+			for (int i = 15; i >= 0; i--) {
+				int b = in[i] & 0xFF;
+				out[i] = (byte) ((b << 1) | carry);
+				carry = b >>> 7;
+			}
+			if ((in[0] & 0x80) != 0) {
+				out[15] ^= (byte) 0x87;
+			}
+		}
+
+		public void update(byte b) {
+			if (bufLen == 16) {
+				flush();
+			}
+			buf[bufLen++] = b;
+		}
+
+		public void update(byte[] in, int inOff, int len) {
+			while (len > 0) {
+				if (bufLen == 16) {
+					flush();
+				}
+				int n = Math.min(len, 16 - bufLen);
+				System.arraycopy(in, inOff, buf, bufLen, n);
+				bufLen += n;
+				inOff += n;
+				len -= n;
+			}
+		}
+
+		private void flush() {
+			for (int i = 0; i < 16; i++) {
+				x[i] ^= buf[i];
+			}
+			cipher.processBlock(x, 0, x, 0);
+			bufLen = 0;
+		}
+
+		public int doFinal(byte[] out, int outOff) {
+			byte[] k = k1;
+			if (bufLen < 16) {
+				buf[bufLen] = (byte) 0x80;
+				Arrays.fill(buf, bufLen + 1, 16, (byte) 0x00);
+				k = k2;
+			}
+			for (int i = 0; i < 16; i++) {
+				x[i] ^= buf[i] ^ k[i];
+			}
+			cipher.processBlock(x, 0, out, outOff);
+			Arrays.fill(x, (byte) 0x00);
+			bufLen = 0;
+			return 16;
+		}
+	}
+
+	/**
+	 * JCE backend. Picks up whatever the JVM offers, including AES-NI
+	 * intrinsics of the default provider.
+	 */
+	public static class JCE extends CryptoBackend {
+		// Cipher.getInstance() is expensive, keep one instance per transformation and thread
+		private static final ThreadLocal<Map<String, Cipher>> ciphers = new ThreadLocal<Map<String, Cipher>>() {
+			@Override
+			protected Map<String, Cipher> initialValue() {
+				return new HashMap<String, Cipher>();
+			}
+		};
+
+		public String getName() {
+			return "jce";
+		}
+
+		private static String algorithm(Type type) {
+			if (type == Type.DES) {
+				return "DES";
+			} else if (type == Type.DES3) {
+				return "DESede";
+			} else if (type == Type.AES) {
+				return "AES";
+			}
+			throw new IllegalArgumentException("Don't know how to handle " + type);
+		}
+
+		private static Cipher getCipher(String transformation) throws GeneralSecurityException {
+			Map<String, Cipher> m = ciphers.get();
+			Cipher c = m.get(transformation);
+			if (c == null) {
+				c = Cipher.getInstance(transformation);
+				m.put(transformation, c);
+			}
+			return c;
+		}
+
+		public BlockEngine blockCipher(Type type, boolean encrypt, byte[] key) {
+			try {
+				// A dedicated instance, as the engine outlives the call
+				String alg = algorithm(type);
+				final Cipher c = Cipher.getInstance(alg + "/ECB/NoPadding");
+				c.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, new SecretKeySpec(normalize(type, key), alg));
+				final int bs = c.getBlockSize();
+				return new BlockEngine() {
+					public int getBlockSize() {
+						return bs;
+					}
+
+					public void processBlock(byte[] in, int inOff, byte[] out, int outOff) {
+						try {
+							c.update(in, inOff, bs, out, outOff);
+						} catch (GeneralSecurityException e) {
+							throw new RuntimeException("Block operation failed", e);
+						}
+					}
+				};
+			} catch (GeneralSecurityException e) {
+				throw new RuntimeException("Could not initialize " + type, e);
+			}
+		}
+
+		@Override
+		public void ecb(Type type, boolean encrypt, byte[] key, byte[] in, int inOff, int len, byte[] out, int outOff) {
+			try {
+				String alg = algorithm(type);
+				Cipher c = getCipher(alg + "/ECB/NoPadding");
+				c.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, new SecretKeySpec(normalize(type, key), alg));
+				c.doFinal(in, inOff, len, out, outOff);
+			} catch (GeneralSecurityException e) {
+				throw new RuntimeException("ECB operation failed", e);
+			}
+		}
+
+		@Override
+		public void cbc(Type type, boolean encrypt, byte[] key, byte[] iv, byte[] in, int inOff, int len, byte[] out, int outOff) {
+			try {
+				String alg = algorithm(type);
+				Cipher c = getCipher(alg + "/CBC/NoPadding");
+				int bs = type == Type.AES ? 16 : 8;
+				IvParameterSpec ivs = new IvParameterSpec(iv == null ? new byte[bs] : iv, 0, bs);
+				c.init(encrypt ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE, new SecretKeySpec(normalize(type, key), alg), ivs);
+				c.doFinal(in, inOff, len, out, outOff);
+			} catch (GeneralSecurityException e) {
+				throw new RuntimeException("CBC operation failed", e);
+			}
+		}
+	}
+
+	/**
+	 * BouncyCastle lightweight API backend. With fast tables it uses
+	 * AESFastEngine (large precomputed T-tables), otherwise the compact AESEngine.
+	 */
+	public static class BouncyCastle extends CryptoBackend {
+		private final boolean tables;
+
+		public BouncyCastle(boolean tables) {
+			this.tables = tables;
+		}
+
+		public String getName() {
+			return tables ? "table" : "bc";
+		}
+
+		public BlockEngine blockCipher(Type type, boolean encrypt, byte[] key) {
+			final BlockCipher c;
+			if (type == Type.DES) {
+				c = new DESEngine();
+			} else if (type == Type.DES3) {
+				c = new DESedeEngine();
+			} else if (type == Type.AES) {
+				c = tables ? new AESFastEngine() : new AESEngine();
+			} else {
+				throw new IllegalArgumentException("Don't know how to handle " + type);
+			}
+			c.init(encrypt, new KeyParameter(normalize(type, key)));
+			return new BlockEngine() {
+				public int getBlockSize() {
+					return c.getBlockSize();
+				}
+
+				public void processBlock(byte[] in, int inOff, byte[] out, int outOff) {
+					c.processBlock(in, inOff, out, outOff);
+				}
+			};
+		}
+
+		@Override
+		public MacEngine cmac(byte[] key) {
+			final CMac cmac = new CMac(tables ? new AESFastEngine() : new AESEngine());
+			cmac.init(new KeyParameter(key));
+			return new MacEngine() {
+				public void update(byte b) {
+					cmac.update(b);
+				}
+
+				public void update(byte[] in, int inOff, int len) {
+					cmac.update(in, inOff, len);
+				}
+
+				public int doFinal(byte[] out, int outOff) {
+					return cmac.doFinal(out, outOff);
+				}
+			};
+		}
+	}
+
+	public static List<CryptoBackend> getBackends() {
+		List<CryptoBackend> result = new ArrayList<CryptoBackend>();
+		result.add(new JCE());
+		result.add(new BouncyCastle(false));
+		result.add(new BouncyCastle(true));
+		return result;
+	}
+
+	/**
+	 * Returns the backend requested with the system property, JCE by
+	 * default.
+	 */
+	public static CryptoBackend select() {
+		String name = System.getProperty(PROPERTY, "jce");
+		if (name.equalsIgnoreCase(AUTO)) {
+			return fastest(getBackends());
+		}
+		for (CryptoBackend b : getBackends()) {
+			if (b.getName().equalsIgnoreCase(name))
+				return b;
+		}
+		throw new IllegalArgumentException("Unknown crypto backend: " + name);
+	}
+
+	// RFC 4493 test vector, example 2
+	private static final byte[] kat_key = HexUtils.decodeHexString("2B7E151628AED2A6ABF7158809CF4F3C");
+	private static final byte[] kat_msg = HexUtils.decodeHexString("6BC1BEE22E409F96E93D7E117393172A");
+	private static final byte[] kat_mac = HexUtils.decodeHexString("070A16B46B4D4144F79BDD9DD04A287C");
+
+	// Results that all backends must agree on
+	private static byte[] fingerprint(CryptoBackend b) {
+		byte[] data = new byte[64];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		byte[] enc = new byte[64];
+		b.cbc(Type.AES, true, kat_key, null, data, 0, data.length, enc, 0);
+		byte[] dec = new byte[64];
+		b.cbc(Type.AES, false, kat_key, null, enc, 0, enc.length, dec, 0);
+		if (!Arrays.equals(data, dec)) {
+			throw new IllegalStateException("AES round trip failed");
+		}
+		byte[] r = GPUtils.concatenate(enc, b.mac_3des(kat_key, data, 0, data.length, GPCrypto.null_bytes_8));
+		r = GPUtils.concatenate(r, b.mac_des_3des(kat_key, data, 0, data.length, GPCrypto.null_bytes_8));
+		return GPUtils.concatenate(r, b.scp03_kdf(kat_key, (byte) 0x04, data, 128));
+	}
+
+	// Enough work for the JIT to settle and for the timer to be meaningful
+	private static final int BENCH_SIZE = 4096;
+	private static final int BENCH_ROUNDS = 16;
+
+	private static long benchmark(CryptoBackend b, int rounds) {
+		byte[] data = new byte[BENCH_SIZE];
+		byte[] out = new byte[BENCH_SIZE];
+		long start = System.nanoTime();
+		for (int i = 0; i < rounds; i++) {
+			b.mac_3des(kat_key, data, 0, data.length, GPCrypto.null_bytes_8);
+			b.mac_des_3des(kat_key, data, 0, data.length, GPCrypto.null_bytes_8);
+			b.cmac_aes(kat_key, data, 0, data.length);
+			b.cbc(Type.AES, true, kat_key, null, data, 0, data.length, out, 0);
+		}
+		return System.nanoTime() - start;
+	}
+
+	static CryptoBackend fastest(List<CryptoBackend> candidates) {
+		byte[] reference = null;
+		CryptoBackend best = null;
+		long best_time = Long.MAX_VALUE;
+		for (CryptoBackend b : candidates) {
+			try {
+				if (!Arrays.equals(b.cmac_aes(kat_key, kat_msg, 0, kat_msg.length), kat_mac)) {
+					continue;
+				}
+				byte[] fp = fingerprint(b);
+				if (reference == null) {
+					reference = fp;
+				} else if (!Arrays.equals(reference, fp)) {
+					continue;
+				}
+				benchmark(b, BENCH_ROUNDS); // warm up
+				// Best of a few, so that a GC pause does not decide
+				long t = Long.MAX_VALUE;
+				for (int i = 0; i < 3; i++) {
+					t = Math.min(t, benchmark(b, BENCH_ROUNDS));
+				}
+				if (t < best_time) {
+					best_time = t;
+					best = b;
+				}
+			} catch (RuntimeException e) {
+				// Not usable on this host
+				continue;
+			}
+		}
+		if (best == null) {
+			throw new IllegalStateException("No usable crypto backend found!");
+		}
+		return best;
+	}
+}
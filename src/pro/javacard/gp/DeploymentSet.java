@@ -0,0 +1,129 @@
+package pro.javacard.gp;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * CAP files that are deployed together, typically libraries and the applets
+ * using them. All files are parsed, hashed and split into load blocks in
+ * parallel, so preparing the set takes about as long as the largest file and
+ * can be done before a card is present. Packages are kept in load order:
+ * imported packages before the packages importing them.
+ */
+public class DeploymentSet {
+	private final Map<AID, CapFile> caps;
+
+	private DeploymentSet(Map<AID, CapFile> caps) {
+		this.caps = caps;
+	}
+
+	/**
+	 * Reads and prepares the CAP files, precomputing load blocks of the given
+	 * size (see {@link GlobalPlatform#defaultLoadSize}).
+	 */
+	public static DeploymentSet prepare(List<File> files, int blockSize) throws IOException, GPException {
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			List<ForkJoinTask<CapFile>> tasks = new ArrayList<ForkJoinTask<CapFile>>();
+			for (File f : files) {
+				tasks.add(pool.submit(new Prepare(f, blockSize)));
+			}
+			Map<AID, CapFile> caps = new LinkedHashMap<AID, CapFile>();
+			for (int i = 0; i < tasks.size(); i++) {
+				CapFile cap = get(tasks.get(i), files.get(i));
+				if (caps.put(cap.getPackageAID(), cap) != null)
+					throw new GPException("Package " + cap.getPackageAID() + " is in more than one CAP file");
+			}
+			Map<AID, CapFile> ordered = new LinkedHashMap<AID, CapFile>();
+			try {
+				for (AID aid : InstallPlanner.dependencyOrder(caps, caps.keySet())) {
+					ordered.put(aid, caps.get(aid));
+				}
+			} catch (IllegalArgumentException e) {
+				throw new GPException(e.getMessage());
+			}
+			return new DeploymentSet(ordered);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private static CapFile get(ForkJoinTask<CapFile> task, File f) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while reading " + f, e);
+		} catch (ExecutionException e) {
+			// Find the IOException wrapped by compute()
+			Throwable cause = e.getCause();
+			while (!(cause instanceof IOException) && cause.getCause() != null)
+				cause = cause.getCause();
+			throw new IOException("Could not read " + f + ": " + cause.getMessage(), cause);
+		}
+	}
+
+	private static final class Prepare extends RecursiveTask<CapFile> {
+		private static final long serialVersionUID = 1L;
+		private final File file;
+		private final int blockSize;
+
+		Prepare(File file, int blockSize) {
+			this.file = file;
+			this.blockSize = blockSize;
+		}
+
+		protected CapFile compute() {
+			try {
+				CapFile cap = CapFile.open(file);
+				cap.getLoadFileDataHash(false);
+				cap.getLoadBlocks(false, false, blockSize);
+				return cap;
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/**
+	 * Returns the CAP files in load order.
+	 */
+	public List<CapFile> getCapFiles() {
+		return new ArrayList<CapFile>(caps.values());
+	}
+
+	/**
+	 * Returns imported packages that are neither in this set, nor on the card
+	 * nor part of the Java Card or GlobalPlatform API.
+	 */
+	public Set<AID> getMissingImports(AIDRegistry registry) {
+		Set<AID> onCard = new LinkedHashSet<AID>(registry.allPackageAIDs());
+		Set<AID> missing = new LinkedHashSet<AID>();
+		for (CapFile cap : caps.values()) {
+			for (AID imp : cap.getImportAIDs()) {
+				if (!caps.containsKey(imp) && !onCard.contains(imp) && !InstallPlanner.isPlatform(imp))
+					missing.add(imp);
+			}
+		}
+		return missing;
+	}
+
+	/**
+	 * Adds all packages of this set to the target of a plan.
+	 */
+	public InstallPlanner.Target addTo(InstallPlanner.Target target, boolean replace) {
+		for (CapFile cap : caps.values()) {
+			target.addPackage(cap, replace);
+		}
+		return target;
+	}
+}
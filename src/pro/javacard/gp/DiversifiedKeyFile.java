@@ -0,0 +1,414 @@
+package pro.javacard.gp;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import pro.javacard.gp.GPData.KeyType;
+import pro.javacard.gp.GPKeySet.Diversification;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+import apdu4j.HexUtils;
+
+/**
+ * Card keys diversified ahead of time for a batch of cards, so that opening
+ * a secure channel does not need the master keys or the diversification.
+ *
+ * The batch is given as a manifest of the key diversification data of the
+ * cards (the first 10 bytes of the INITIALIZE UPDATE response), as known from
+ * the card supplier. {@link #create(File, GPKeySet, List, int)} diversifies
+ * the master keys for all of them in parallel and writes a file with the
+ * records sorted by the diversification data. As a key derivation service the
+ * file only looks up the keys of the card by the diversification data the
+ * card returned; a card that is not in the batch or a session with other
+ * master keys is refused.
+ *
+ * The records are encrypted like a {@link CardKeyStore}: AES-128-CBC and
+ * HMAC-SHA256 with keys derived from a password. The file is created readable
+ * by the owner only, where the file system allows.
+ */
+public class DiversifiedKeyFile implements KeyDerivationService {
+	private static final int MAGIC = 0x47504B32; // GPK2
+	private static final int DATA_LENGTH = 10;
+	private static final int KEYS_LENGTH = 3 * 16;
+	private static final int RECORD_LENGTH = DATA_LENGTH + KEYS_LENGTH;
+	private static final int SALT_LENGTH = 16;
+	private static final int IV_LENGTH = 16;
+	private static final int MAC_LENGTH = 32;
+	// Magic, method, check values of the master keys, count, salt, iterations
+	// and IV
+	private static final int HEADER_LENGTH = 4 + 1 + 9 + 4 + SALT_LENGTH + 4 + IV_LENGTH;
+	private static final KeyType[] KEYS = { KeyType.ENC, KeyType.MAC, KeyType.KEK };
+
+	private final File file;
+	private final Diversification method;
+	private final byte[] masterKCV;
+	private final int count;
+	private final ByteBuffer records;
+	// Master keys already found to match
+	private volatile GPKeySet checked = null;
+
+	private DiversifiedKeyFile(File file, Diversification method, byte[] masterKCV, int count, ByteBuffer records) {
+		this.file = file;
+		this.method = method;
+		this.masterKCV = masterKCV;
+		this.count = count;
+		this.records = records;
+	}
+
+	/**
+	 * Reads a manifest with the diversification data of one card per line in
+	 * hex. Anything after the data on a line and lines starting with # are
+	 * ignored. Malformed lines and duplicates are reported with the line
+	 * number.
+	 */
+	public static List<byte[]> readManifest(File manifest) throws IOException {
+		List<byte[]> result = new ArrayList<byte[]>();
+		List<Integer> lines = new ArrayList<Integer>();
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), StandardCharsets.US_ASCII))) {
+			String line;
+			int n = 0;
+			while ((line = in.readLine()) != null) {
+				n++;
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#"))
+					continue;
+				String hex = line.split("\\s+")[0];
+				byte[] data;
+				try {
+					data = HexUtils.stringToBin(hex);
+				} catch (IllegalArgumentException e) {
+					throw new IOException(manifest + ":" + n + ": not hex: " + hex);
+				}
+				if (data.length != DATA_LENGTH)
+					throw new IOException(manifest + ":" + n + ": diversification data must be " + DATA_LENGTH + " bytes, not " + data.length);
+				result.add(data);
+				lines.add(n);
+			}
+		}
+		// Report duplicates by line
+		Integer[] order = new Integer[result.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+		final List<byte[]> data = result;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return compareData(data.get(a), data.get(b));
+			}
+		});
+		for (int i = 1; i < order.length; i++) {
+			if (Arrays.equals(result.get(order[i - 1]), result.get(order[i])))
+				throw new IOException(manifest + ":" + lines.get(order[i]) + ": same card as on line " + lines.get(order[i - 1]));
+		}
+		return result;
+	}
+
+	/**
+	 * Diversifies the master keys for every card with the given number of
+	 * threads and writes the result to file, protected with the password.
+	 * Returns the number of cards.
+	 */
+	public static int create(File file, char[] password, GPKeySet master, List<byte[]> cards, int threads) throws IOException {
+		if (master.diversification == Diversification.NONE)
+			throw new IllegalArgumentException("Key set does not use diversification");
+		final GPKeySet keys = master;
+		threads = Math.max(1, threads);
+		final byte[][] sorted = cards.toArray(new byte[cards.size()][]);
+		Arrays.sort(sorted, new Comparator<byte[]>() {
+			public int compare(byte[] a, byte[] b) {
+				return compareData(a, b);
+			}
+		});
+		for (int i = 1; i < sorted.length; i++) {
+			if (Arrays.equals(sorted[i - 1], sorted[i]))
+				throw new IllegalArgumentException("Card " + HexUtils.encodeHexString(sorted[i]) + " is listed twice");
+		}
+
+		// Each thread fills its own range of records
+		final byte[] body = new byte[sorted.length * RECORD_LENGTH];
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> parts = new ArrayList<Future<?>>();
+			int chunk = (sorted.length + threads - 1) / threads;
+			for (int start = 0; start < sorted.length; start += chunk) {
+				final int from = start;
+				final int to = Math.min(sorted.length, start + chunk);
+				parts.add(pool.submit(new Runnable() {
+					public void run() {
+						diversify(keys, sorted, from, to, body);
+					}
+				}));
+			}
+			for (Future<?> f : parts) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} catch (ExecutionException e) {
+			throw new IOException("Diversification failed: " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+
+		byte[] salt = new byte[SALT_LENGTH];
+		byte[] iv = new byte[IV_LENGTH];
+		SecureRandom rnd = new SecureRandom();
+		rnd.nextBytes(salt);
+		rnd.nextBytes(iv);
+		byte[] k = CardKeyStore.deriveKeys(password, salt, CardKeyStore.ITERATIONS);
+		ByteArrayOutputStream bo = new ByteArrayOutputStream(HEADER_LENGTH + body.length + 16 + MAC_LENGTH);
+		DataOutputStream o = new DataOutputStream(bo);
+		o.writeInt(MAGIC);
+		o.writeByte(master.diversification.ordinal());
+		o.write(kcv(master));
+		o.writeInt(sorted.length);
+		o.write(salt);
+		o.writeInt(CardKeyStore.ITERATIONS);
+		o.write(iv);
+		o.write(crypt(Cipher.ENCRYPT_MODE, k, iv, body));
+		Arrays.fill(body, (byte) 0);
+		o.flush();
+		byte[] data = bo.toByteArray();
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream out = createPrivate(tmp)) {
+			out.write(data);
+			out.write(mac(k, data, data.length));
+		}
+		if (!tmp.renameTo(file)) {
+			// Windows does not replace on rename
+			if (!file.delete() || !tmp.renameTo(file))
+				throw new IOException("Could not replace " + file);
+		}
+		return sorted.length;
+	}
+
+	// One cipher per master key for the whole range
+	private static void diversify(GPKeySet master, byte[][] cards, int from, int to, byte[] body) {
+		CryptoBackend.BlockEngine[] engines = new CryptoBackend.BlockEngine[KEYS.length];
+		for (int k = 0; k < KEYS.length; k++) {
+			engines[k] = GPCrypto.getBackend().blockCipher(Type.DES3, true, master.getKey(KEYS[k]).getValue());
+		}
+		for (int i = from; i < to; i++) {
+			int offset = i * RECORD_LENGTH;
+			System.arraycopy(cards[i], 0, body, offset, DATA_LENGTH);
+			for (int k = 0; k < KEYS.length; k++) {
+				byte[] kv;
+				if (master.diversification == Diversification.VISA2) {
+					kv = GPKeySet.fillVisa(cards[i], KEYS[k]);
+				} else {
+					kv = GPKeySet.fillEmv(cards[i], KEYS[k]);
+				}
+				int out = offset + DATA_LENGTH + k * 16;
+				engines[k].processBlock(kv, 0, body, out);
+				engines[k].processBlock(kv, 8, body, out + 8);
+			}
+		}
+	}
+
+	/**
+	 * Opens a file written by
+	 * {@link #create(File, char[], GPKeySet, List, int)}.
+	 */
+	public static DiversifiedKeyFile open(File file, char[] password) throws IOException {
+		byte[] data;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			if (raf.length() < HEADER_LENGTH + MAC_LENGTH || raf.length() > Integer.MAX_VALUE)
+				throw new IOException(file + " is not a key file");
+			data = new byte[(int) raf.length()];
+			raf.readFully(data);
+		}
+		ByteBuffer all = ByteBuffer.wrap(data);
+		if (all.getInt() != MAGIC)
+			throw new IOException(file + " is not a key file");
+		int m = all.get() & 0xFF;
+		if (m >= Diversification.values().length)
+			throw new IOException(file + " has unknown diversification " + m);
+		byte[] kcv = new byte[9];
+		all.get(kcv);
+		int count = all.getInt();
+		byte[] salt = new byte[SALT_LENGTH];
+		all.get(salt);
+		int iterations = all.getInt();
+		byte[] iv = new byte[IV_LENGTH];
+		all.get(iv);
+		// PKCS#5 padding adds one to 16 bytes
+		long ct = ((long) count * RECORD_LENGTH / 16 + 1) * 16;
+		if (count < 0 || iterations < 1 || data.length != HEADER_LENGTH + ct + MAC_LENGTH)
+			throw new IOException(file + " is truncated");
+		byte[] k = CardKeyStore.deriveKeys(password, salt, iterations);
+		byte[] tag = Arrays.copyOfRange(data, data.length - MAC_LENGTH, data.length);
+		if (!MessageDigest.isEqual(tag, mac(k, data, data.length - MAC_LENGTH)))
+			throw new IOException("Wrong password for " + file + ", or the file is corrupted");
+		byte[] body = crypt(Cipher.DECRYPT_MODE, k, iv, Arrays.copyOfRange(data, HEADER_LENGTH, data.length - MAC_LENGTH));
+		return new DiversifiedKeyFile(file, Diversification.values()[m], kcv, count, ByteBuffer.wrap(body).asReadOnlyBuffer());
+	}
+
+	// Readable and writable by the owner only, where the file system can
+	// tell owners apart
+	private static FileOutputStream createPrivate(File f) throws IOException {
+		Files.deleteIfExists(f.toPath());
+		try {
+			Files.createFile(f.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		} catch (UnsupportedOperationException e) {
+			Files.createFile(f.toPath());
+			f.setReadable(false, false);
+			f.setWritable(false, false);
+			f.setReadable(true, true);
+			f.setWritable(true, true);
+		}
+		return new FileOutputStream(f);
+	}
+
+	// First 16 bytes of the derived keys for AES, next 32 for HMAC
+	private static byte[] crypt(int mode, byte[] keys, byte[] iv, byte[] data) throws IOException {
+		try {
+			Cipher c = Cipher.getInstance("AES/CBC/PKCS5Padding");
+			c.init(mode, new SecretKeySpec(keys, 0, 16, "AES"), new IvParameterSpec(iv));
+			return c.doFinal(data);
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Could not " + (mode == Cipher.ENCRYPT_MODE ? "encrypt" : "decrypt") + " keys: " + e.getMessage(), e);
+		}
+	}
+
+	private static byte[] mac(byte[] keys, byte[] data, int length) {
+		try {
+			Mac m = Mac.getInstance("HmacSHA256");
+			m.init(new SecretKeySpec(keys, 16, 32, "HmacSHA256"));
+			m.update(data, 0, length);
+			return m.doFinal();
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException("HmacSHA256 not available", e);
+		}
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public Diversification getDiversification() {
+		return method;
+	}
+
+	/**
+	 * Returns the keys of the card with the diversification data, for the
+	 * given major SCP version, or null if the card is not in the batch.
+	 */
+	public GPKeySet lookup(byte[] diversification_data, int scp) {
+		int lo = 0;
+		int hi = count - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int c = compareRecord(mid, diversification_data);
+			if (c < 0) {
+				lo = mid + 1;
+			} else if (c > 0) {
+				hi = mid - 1;
+			} else {
+				GPKeySet ks = new GPKeySet();
+				int offset = mid * RECORD_LENGTH + DATA_LENGTH;
+				for (int k = 0; k < KEYS.length; k++) {
+					byte[] key = new byte[16];
+					for (int j = 0; j < 16; j++) {
+						key[j] = records.get(offset + k * 16 + j);
+					}
+					// As in GPKeySet.diversify()
+					ks.setKey(KEYS[k], new GPKey(key, scp == 3 ? Type.AES : Type.DES3));
+				}
+				ks.diversification = method;
+				ks.setDiversified(true);
+				return ks;
+			}
+		}
+		return null;
+	}
+
+	public List<Result> derive(List<Request> requests) {
+		List<Result> results = new ArrayList<Result>(requests.size());
+		for (Request r : requests) {
+			results.add(derive(r));
+		}
+		return results;
+	}
+
+	public Result derive(Request r) {
+		if (!r.diversify)
+			return LocalKeyDerivationService.getInstance().derive(r);
+		if (r.keys.diversification != method)
+			return new Result("Key file " + file + " is for " + method + " diversification, not " + r.keys.diversification);
+		if (checked != r.keys) {
+			if (!Arrays.equals(kcv(r.keys), masterKCV))
+				return new Result("Key file " + file + " was made with other master keys");
+			checked = r.keys;
+		}
+		byte[] data = Arrays.copyOf(r.diversification_data, DATA_LENGTH);
+		GPKeySet keys = lookup(data, r.scp);
+		if (keys == null)
+			return new Result("Card " + HexUtils.encodeHexString(data) + " is not in " + file);
+		keys.setKeyVersion(r.keys.getKeyVersion());
+		keys.setKeyID(r.keys.getKeyID());
+		Request precomputed = new Request(keys, false, r.scp, r.diversification_data, r.sequence, r.host_challenge, r.card_challenge);
+		return LocalKeyDerivationService.getInstance().derive(precomputed);
+	}
+
+	private int compareRecord(int index, byte[] data) {
+		int offset = index * RECORD_LENGTH;
+		for (int i = 0; i < DATA_LENGTH; i++) {
+			int c = (records.get(offset + i) & 0xFF) - (data[i] & 0xFF);
+			if (c != 0)
+				return c;
+		}
+		return 0;
+	}
+
+	private static int compareData(byte[] a, byte[] b) {
+		for (int i = 0; i < DATA_LENGTH; i++) {
+			int c = (a[i] & 0xFF) - (b[i] & 0xFF);
+			if (c != 0)
+				return c;
+		}
+		return 0;
+	}
+
+	// First three bytes of encrypted zeros, for each master key
+	private static byte[] kcv(GPKeySet master) {
+		byte[] result = new byte[9];
+		byte[] block = new byte[8];
+		for (int k = 0; k < KEYS.length; k++) {
+			GPCrypto.getBackend().ecb(Type.DES3, true, master.getKey(KEYS[k]).getValue(), new byte[8], 0, 8, block, 0);
+			System.arraycopy(block, 0, result, k * 3, 3);
+		}
+		return result;
+	}
+
+	public String toString() {
+		return file + ": " + count + " cards, " + method + " diversification";
+	}
+}
@@ -0,0 +1,307 @@
+package pro.javacard.gp;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+import pro.javacard.gp.GlobalPlatform.APDUMode;
+
+/**
+ * Runs the usual card job (select, secure channel, load, install, lock)
+ * on fresh simulated cards in several readers at once and reports how many
+ * cards per hour the host gets through, with latency percentiles per phase.
+ *
+ * CPU time and allocations spent inside the simulated cards are subtracted,
+ * so the CPU and heap numbers per card are those of the host side only.
+ */
+public class FleetBenchmark {
+	public static final String[] PHASES = { "connect", "select", "auth", "load", "install", "lock", "total" };
+
+	private final int readers;
+	private final int cards;
+	private final SimulatedCard.Latency latency;
+	private final List<CapFile> caps;
+	private int hubs = 0;
+	private double busOverhead = 0;
+	private ReaderScheduler scheduler = null;
+
+	// Measured inside the simulated cards
+	private final AtomicLong cardCpu = new AtomicLong();
+	private final AtomicLong cardAllocated = new AtomicLong();
+
+	/**
+	 * Cards in total over the readers. CAP files are loaded in the given
+	 * order and the first applet of the last one is installed.
+	 */
+	public FleetBenchmark(int readers, int cards, SimulatedCard.Latency latency, List<CapFile> caps) {
+		if (caps.isEmpty() || caps.get(caps.size() - 1).getAppletAIDs().isEmpty())
+			throw new IllegalArgumentException("Need a CAP file with an applet");
+		this.readers = readers;
+		this.cards = cards;
+		this.latency = latency;
+		this.caps = caps;
+	}
+
+	/**
+	 * Spreads the readers over shared buses, see {@link SimulatedCard.Bus}.
+	 */
+	public void setHubs(int hubs, double overhead) {
+		this.hubs = hubs;
+		this.busOverhead = overhead;
+	}
+
+	/**
+	 * Sends all commands through the scheduler, with one group per hub.
+	 */
+	public void setScheduler(ReaderScheduler scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	public static final class Report {
+		public final int readers;
+		public final int cards;
+		public final int failed;
+		public final long wallNanos;
+		public final long[][] phases;
+		public final long cpuPerCard;
+		public final long allocatedPerCard;
+		public final long gcCount;
+		public final long gcMillis;
+
+		Report(int readers, int cards, int failed, long wallNanos, long[][] phases, long cpuPerCard, long allocatedPerCard, long gcCount, long gcMillis) {
+			this.readers = readers;
+			this.cards = cards;
+			this.failed = failed;
+			this.wallNanos = wallNanos;
+			this.phases = phases;
+			this.cpuPerCard = cpuPerCard;
+			this.allocatedPerCard = allocatedPerCard;
+			this.gcCount = gcCount;
+			this.gcMillis = gcMillis;
+		}
+
+		public double getCardsPerHour() {
+			return (cards - failed) * 3600e9 / wallNanos;
+		}
+
+		// Sorted phase durations, in nanoseconds
+		public long percentile(int phase, double p) {
+			long[] v = phases[phase];
+			if (v.length == 0)
+				return 0;
+			int i = (int) Math.ceil(p / 100 * v.length) - 1;
+			return v[Math.max(0, Math.min(i, v.length - 1))];
+		}
+
+		public void print(PrintStream out) {
+			out.println(String.format("%d cards (%d failed) in %d readers in %.1f s: %.0f cards/hour", cards, failed, readers, wallNanos / 1e9, getCardsPerHour()));
+			out.println(String.format("%-8s %9s %9s %9s %9s", "phase", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+			for (int i = 0; i < PHASES.length; i++) {
+				out.println(String.format("%-8s %9.2f %9.2f %9.2f %9.2f", PHASES[i], percentile(i, 50) / 1e6, percentile(i, 90) / 1e6, percentile(i, 99) / 1e6, percentile(i, 100) / 1e6));
+			}
+			out.println(String.format("Host CPU per card: %.2f ms", cpuPerCard / 1e6));
+			if (allocatedPerCard >= 0)
+				out.println(String.format("Host allocations per card: %d KB", allocatedPerCard / 1024));
+			out.println(String.format("GC: %d collections, %d ms", gcCount, gcMillis));
+		}
+	}
+
+	public Report run() throws InterruptedException {
+		final SimulatedTerminals terminals = new SimulatedTerminals(readers);
+		final List<List<long[]>> results = new ArrayList<List<long[]>>();
+		final AtomicInteger next = new AtomicInteger(1);
+		final AtomicInteger failed = new AtomicInteger();
+		final AtomicLong hostCpu = new AtomicLong();
+		final AtomicLong hostAllocated = new AtomicLong();
+		final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+
+		SimulatedCard.Bus[] buses = new SimulatedCard.Bus[hubs];
+		for (int i = 0; i < hubs; i++) {
+			buses[i] = new SimulatedCard.Bus(busOverhead);
+		}
+
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < readers; i++) {
+			final SimulatedTerminals.SimulatedTerminal terminal = (SimulatedTerminals.SimulatedTerminal) terminals.getTerminal("Simulated reader " + (i + 1));
+			final SimulatedCard.Bus bus = hubs > 0 ? buses[i % hubs] : null;
+			if (scheduler != null && hubs > 0)
+				scheduler.assign(terminal.getName(), "Hub " + (i % hubs + 1));
+			final List<long[]> timings = new ArrayList<long[]>();
+			results.add(timings);
+			threads.add(new Thread(new Runnable() {
+				public void run() {
+					long cpu = cpuTime(mx);
+					long allocated = allocatedBytes(mx);
+					int serial;
+					while ((serial = next.getAndIncrement()) <= cards) {
+						SimulatedCard card = new SimulatedCard(serial);
+						card.setLatency(latency);
+						card.setBus(bus);
+						terminal.insert(card);
+						try {
+							timings.add(personalize(terminal));
+						} catch (CardException | GPException e) {
+							failed.incrementAndGet();
+						}
+					}
+					hostCpu.addAndGet(cpuTime(mx) - cpu);
+					hostAllocated.addAndGet(allocatedBytes(mx) - allocated);
+				}
+			}, "Benchmark " + terminal.getName()));
+		}
+
+		long gcCount = 0, gcTime = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount -= gc.getCollectionCount();
+			gcTime -= gc.getCollectionTime();
+		}
+		long start = System.nanoTime();
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		long wall = System.nanoTime() - start;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			gcCount += gc.getCollectionCount();
+			gcTime += gc.getCollectionTime();
+		}
+
+		List<long[]> all = new ArrayList<long[]>();
+		for (List<long[]> r : results) {
+			all.addAll(r);
+		}
+		long[][] phases = new long[PHASES.length][all.size()];
+		for (int i = 0; i < all.size(); i++) {
+			for (int p = 0; p < PHASES.length; p++) {
+				phases[p][i] = all.get(i)[p];
+			}
+		}
+		for (long[] p : phases) {
+			Arrays.sort(p);
+		}
+		int n = Math.max(1, cards);
+		// Not all JVMs count allocations
+		long allocated = allocatedBytes(mx) < 0 ? -1 : (hostAllocated.get() - cardAllocated.get()) / n;
+		return new Report(readers, cards, failed.get(), wall, phases, (hostCpu.get() - cardCpu.get()) / n, allocated, gcCount, gcTime);
+	}
+
+	// One card from insertion to removal, returns the phase durations
+	private long[] personalize(SimulatedTerminals.SimulatedTerminal terminal) throws CardException, GPException {
+		long[] t = new long[PHASES.length];
+		long start = System.nanoTime();
+		long s = start;
+
+		Card card = terminal.connect("*");
+		CardChannel channel = card.getBasicChannel();
+		if (scheduler != null)
+			channel = scheduler.wrap(terminal.getName(), channel);
+		GlobalPlatform gp = new GlobalPlatform(new MeteredChannel(channel));
+		t[0] = lap(s);
+
+		s = System.nanoTime();
+		if (!gp.select(null))
+			throw new GPException("Could not select security domain!");
+		t[1] = lap(s);
+
+		s = System.nanoTime();
+		gp.openSecureChannel(new GPKeySet(new GPKey(GPData.defaultKey, Type.DES3)), null, 0, EnumSet.of(APDUMode.MAC));
+		t[2] = lap(s);
+
+		CapFile applet = caps.get(caps.size() - 1);
+		AID aid = applet.getAppletAIDs().get(0);
+		InstallPlanner.Target target = new InstallPlanner.Target();
+		for (CapFile cap : caps) {
+			target.addPackage(cap, false);
+		}
+		target.addInstance(applet.getPackageAID(), aid, aid, (byte) 0x00, null);
+		for (InstallPlanner.Step step : InstallPlanner.plan(gp.getRegistry(), target)) {
+			s = System.nanoTime();
+			InstallPlanner.execute(gp, Collections.singletonList(step));
+			t[step.op == InstallPlanner.Step.Op.LOAD ? 3 : 4] += lap(s);
+		}
+
+		s = System.nanoTime();
+		byte[] key = GPRandom.getInstance().challenge(16);
+		GPKey newKey = new GPKey(key, Type.DES3);
+		List<GPKey> keys = new ArrayList<GPKey>();
+		for (int id = 1; id <= 3; id++) {
+			keys.add(new GPKey(1, id, newKey));
+		}
+		gp.putKeys(keys, true);
+		card.disconnect(true);
+		t[5] = lap(s);
+
+		t[6] = lap(start);
+		return t;
+	}
+
+	private static long lap(long since) {
+		return System.nanoTime() - since;
+	}
+
+	private static long cpuTime(ThreadMXBean mx) {
+		return mx.isCurrentThreadCpuTimeSupported() ? mx.getCurrentThreadCpuTime() : 0;
+	}
+
+	private static long allocatedBytes(ThreadMXBean mx) {
+		if (mx instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	// Accounts what happens inside the simulated card to the card
+	private final class MeteredChannel extends CardChannel {
+		private final CardChannel channel;
+		private final ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+
+		MeteredChannel(CardChannel channel) {
+			this.channel = channel;
+		}
+
+		public Card getCard() {
+			return channel.getCard();
+		}
+
+		public int getChannelNumber() {
+			return channel.getChannelNumber();
+		}
+
+		public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+			long cpu = cpuTime(mx);
+			long allocated = allocatedBytes(mx);
+			try {
+				return channel.transmit(command);
+			} finally {
+				cardCpu.addAndGet(cpuTime(mx) - cpu);
+				cardAllocated.addAndGet(allocatedBytes(mx) - allocated);
+			}
+		}
+
+		public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+			return channel.transmit(command, response);
+		}
+
+		public void close() throws CardException {
+			channel.close();
+		}
+	}
+}
@@ -243,11 +243,17 @@ public class GPData {
 		// Requires GP?
 		// Print CardData
 		System.out.println("***** CARD DATA");
-		byte [] card_data = gp.fetchCardData();
+		byte [] card_data = gp.getProfile().getCardData();
 		pretty_print_card_data(card_data, System.out);
 		// Print Key Info Template
 		System.out.println("***** KEY INFO");
 		pretty_print_key_template(gp.getKeyInfoTemplate(), System.out);
+		// Print extended card resources
+		CardProfile.Resources res = gp.getProfile().getResources();
+		if (res != null) {
+			System.out.println("***** CARD RESOURCES");
+			System.out.println(res);
+		}
 	}
 
 	public static final byte[] defaultKey = { 0x40, 0x41, 0x42, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49, 0x4A, 0x4B, 0x4C, 0x4D, 0x4E, 0x4F };
@@ -305,6 +311,10 @@ public class GPData {
 			values.put(Field.ICPersonalizationEquipmentID, Arrays.copyOfRange(data, offset, offset + 4)); offset += 4;
 		}
 
+		public byte[] get(Field f) {
+			return values == null ? null : values.get(f);
+		}
+
 		public String toString() {
 			String s = "Card CPLC:";
 			for (Field f: Field.values()) {
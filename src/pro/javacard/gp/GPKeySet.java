@@ -1,15 +1,9 @@
 package pro.javacard.gp;
 
-import java.security.InvalidKeyException;
 import java.security.Key;
-import java.security.NoSuchAlgorithmException;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.SecretKeySpec;
 
 import pro.javacard.gp.GPData.KeyType;
@@ -175,6 +169,23 @@ public class GPKeySet {
 		this(master, Diversification.NONE);
 	}
 
+	// A copy of a key set, so that it can be diversified without touching the original
+	public GPKeySet(GPKeySet other) {
+		keys.putAll(other.keys);
+		keyVersion = other.keyVersion;
+		keyID = other.keyID;
+		diversification = other.diversification;
+		diversified = other.diversified;
+	}
+
+	public boolean isDiversified() {
+		return diversified;
+	}
+
+	void setDiversified(boolean diversified) {
+		this.diversified = diversified;
+	}
+
 	public void setKey(KeyType type, GPKey k) {
 		keys.put(type, k);
 	}
@@ -185,41 +196,28 @@ public class GPKeySet {
 			throw new IllegalStateException("Already diversified or not needed!");
 		}
 
-		try {
-			Cipher cipher = Cipher.getInstance("DESede/ECB/NoPadding");
-			for (KeyType v : KeyType.values()) {
-				if (v == KeyType.RMAC)
-					continue;
-				byte [] kv = null;
-				// shift around and fill initialize update data as required.
-				if (diversification == Diversification.VISA2) {
-					kv = fillVisa(initialize_update_response, v);
-				} else if (diversification == Diversification.EMV) {
-					kv = fillEmv(initialize_update_response, v);
-				}
-
-				// Encrypt with current master key
-				cipher.init(Cipher.ENCRYPT_MODE, getKey(v).getKey(Type.DES3));
-
-				byte [] keybytes = cipher.doFinal(kv);
-				// Replace the key, possibly changing type. G&D SCE 6.0 uses EMV 3DES and resulting keys
-				// must be interpreted as AES-128
-				GPKey nk = new GPKey(keybytes, scp == 3 ? Type.AES : Type.DES3);
-				keys.put(v, nk);
+		CryptoBackend backend = GPCrypto.getBackend();
+		for (KeyType v : KeyType.values()) {
+			if (v == KeyType.RMAC)
+				continue;
+			byte [] kv = null;
+			// shift around and fill initialize update data as required.
+			if (diversification == Diversification.VISA2) {
+				kv = fillVisa(initialize_update_response, v);
+			} else if (diversification == Diversification.EMV) {
+				kv = fillEmv(initialize_update_response, v);
 			}
 
-			diversified = true;
-		} catch (BadPaddingException e) {
-			throw new RuntimeException("Diversification failed.", e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("Diversification failed.", e);
-		} catch (NoSuchPaddingException e) {
-			throw new RuntimeException("Diversification failed.", e);
-		} catch (InvalidKeyException e) {
-			throw new RuntimeException("Diversification failed.", e);
-		} catch (IllegalBlockSizeException e) {
-			throw new RuntimeException("Diversification failed.", e);
+			// Encrypt with current master key
+			byte [] keybytes = new byte[kv.length];
+			backend.ecb(Type.DES3, true, getKey(v).getValue(), kv, 0, kv.length, keybytes, 0);
+			// Replace the key, possibly changing type. G&D SCE 6.0 uses EMV 3DES and resulting keys
+			// must be interpreted as AES-128
+			GPKey nk = new GPKey(keybytes, scp == 3 ? Type.AES : Type.DES3);
+			keys.put(v, nk);
 		}
+
+		diversified = true;
 	}
 
 	public static byte[] fillVisa(byte[] init_update_response, KeyType key) {
@@ -0,0 +1,220 @@
+package pro.javacard.gp;
+
+import java.io.Closeable;
+import java.io.PrintStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import apdu4j.HexUtils;
+
+/**
+ * Leveled log with a threshold per category.
+ *
+ * Messages are templates where each "{}" is replaced by the next argument.
+ * Arguments are formatted only if the message is going to be written, byte
+ * arrays as hex. There are methods for up to three arguments, so that nothing
+ * is allocated for a disabled message (primitive arguments are still boxed,
+ * check {@link #isEnabled(Category, Level)} first where that matters). A
+ * message that is costly to produce in other ways can be given as a
+ * {@link Message}.
+ *
+ * Messages are written by an {@link Appender}. {@link AsyncAppender} moves
+ * the writing to a background thread, for runs with many readers.
+ */
+public class GPLog {
+	public enum Level {
+		ERROR, WARN, INFO, DEBUG, TRACE
+	}
+
+	public enum Category {
+		CARD, SCP, LOAD, REGISTRY, KEYS
+	}
+
+	/**
+	 * A message produced only when it is written.
+	 */
+	public interface Message {
+		String get();
+	}
+
+	public interface Appender {
+		void append(Category category, Level level, String message);
+	}
+
+	private static final int OFF = -1;
+
+	private final Appender appender;
+	private final int[] thresholds = new int[Category.values().length];
+
+	/**
+	 * A log that writes nothing.
+	 */
+	public GPLog() {
+		this(null, null);
+	}
+
+	/**
+	 * A log that writes messages up to the given level in all categories.
+	 */
+	public GPLog(Appender appender, Level level) {
+		this.appender = appender;
+		for (Category c : Category.values()) {
+			setLevel(c, level);
+		}
+	}
+
+	/**
+	 * Sets the most detailed level written for the category, null for none.
+	 */
+	public void setLevel(Category category, Level level) {
+		thresholds[category.ordinal()] = (appender == null || level == null) ? OFF : level.ordinal();
+	}
+
+	public boolean isEnabled(Category category, Level level) {
+		return level.ordinal() <= thresholds[category.ordinal()];
+	}
+
+	public void log(Category category, Level level, String message) {
+		if (isEnabled(category, level))
+			appender.append(category, level, message);
+	}
+
+	public void log(Category category, Level level, String template, Object a) {
+		if (isEnabled(category, level))
+			appender.append(category, level, format(template, a, null, null, 1));
+	}
+
+	public void log(Category category, Level level, String template, Object a, Object b) {
+		if (isEnabled(category, level))
+			appender.append(category, level, format(template, a, b, null, 2));
+	}
+
+	public void log(Category category, Level level, String template, Object a, Object b, Object c) {
+		if (isEnabled(category, level))
+			appender.append(category, level, format(template, a, b, c, 3));
+	}
+
+	public void log(Category category, Level level, Message message) {
+		if (isEnabled(category, level))
+			appender.append(category, level, message.get());
+	}
+
+	public void debug(Category category, String message) {
+		log(category, Level.DEBUG, message);
+	}
+
+	public void debug(Category category, String template, Object a) {
+		log(category, Level.DEBUG, template, a);
+	}
+
+	public void debug(Category category, String template, Object a, Object b) {
+		log(category, Level.DEBUG, template, a, b);
+	}
+
+	public void debug(Category category, String template, Object a, Object b, Object c) {
+		log(category, Level.DEBUG, template, a, b, c);
+	}
+
+	public void debug(Category category, Message message) {
+		log(category, Level.DEBUG, message);
+	}
+
+	static String format(String template, Object a, Object b, Object c, int count) {
+		StringBuilder sb = new StringBuilder(template.length() + 32);
+		int arg = 0;
+		int from = 0;
+		int at;
+		while (arg < count && (at = template.indexOf("{}", from)) >= 0) {
+			sb.append(template, from, at);
+			Object o = arg == 0 ? a : arg == 1 ? b : c;
+			sb.append(o instanceof byte[] ? HexUtils.encodeHexString((byte[]) o) : String.valueOf(o));
+			arg++;
+			from = at + 2;
+		}
+		sb.append(template, from, template.length());
+		return sb.toString();
+	}
+
+	/**
+	 * Writes messages as lines to a stream.
+	 */
+	public static class StreamAppender implements Appender {
+		private final PrintStream out;
+
+		public StreamAppender(PrintStream out) {
+			this.out = out;
+		}
+
+		public void append(Category category, Level level, String message) {
+			out.println(message);
+		}
+	}
+
+	/**
+	 * Hands messages to a background thread that passes them on to another
+	 * appender, prefixed with the name of the thread that logged them. If the
+	 * queue is full, messages are dropped and the number of dropped messages
+	 * is written later, so a slow console does not slow down the readers.
+	 */
+	public static class AsyncAppender implements Appender, Closeable {
+		private static final Entry STOP = new Entry(null, null, null);
+
+		private final Appender target;
+		private final BlockingQueue<Entry> queue;
+		private final AtomicInteger dropped = new AtomicInteger();
+		private final Thread writer;
+
+		private static final class Entry {
+			final Category category;
+			final Level level;
+			final String message;
+
+			Entry(Category category, Level level, String message) {
+				this.category = category;
+				this.level = level;
+				this.message = message;
+			}
+		}
+
+		public AsyncAppender(Appender target, int queueSize) {
+			this.target = target;
+			this.queue = new ArrayBlockingQueue<Entry>(queueSize);
+			writer = new Thread(new Runnable() {
+				public void run() {
+					try {
+						Entry e;
+						while ((e = queue.take()) != STOP) {
+							int n = dropped.getAndSet(0);
+							if (n > 0)
+								AsyncAppender.this.target.append(e.category, Level.WARN, n + " log messages dropped");
+							AsyncAppender.this.target.append(e.category, e.level, e.message);
+						}
+					} catch (InterruptedException e) {
+						// Done
+					}
+				}
+			}, "GPLog writer");
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		public void append(Category category, Level level, String message) {
+			if (!queue.offer(new Entry(category, level, "[" + Thread.currentThread().getName() + "] " + message)))
+				dropped.incrementAndGet();
+		}
+
+		/**
+		 * Writes what is queued and stops the background thread.
+		 */
+		public void close() {
+			try {
+				if (writer.isAlive() && queue.offer(STOP, 1, TimeUnit.SECONDS))
+					writer.join(TimeUnit.SECONDS.toMillis(5));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package pro.javacard.gp;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Source of random bytes for host challenges and key padding.
+ *
+ * The default instance seeds one SHA1PRNG per thread from a secret taken once
+ * from SecureRandom, so that the possibly slow seeding happens once and new
+ * threads do not wait on each other.
+ * Host challenges are taken from a pool that a background thread keeps full.
+ * Another instance can be set with {@link #setInstance(GPRandom)}, for example
+ * a {@link Deterministic} one for tests and replay.
+ */
+public abstract class GPRandom {
+	private static volatile GPRandom instance = null;
+
+	public static GPRandom getInstance() {
+		GPRandom r = instance;
+		if (r == null) {
+			synchronized (GPRandom.class) {
+				if (instance == null)
+					instance = new Pooled(64);
+				r = instance;
+			}
+		}
+		return r;
+	}
+
+	public static void setInstance(GPRandom random) {
+		instance = random;
+	}
+
+	public abstract void nextBytes(byte[] bytes);
+
+	/**
+	 * Returns a fresh host challenge.
+	 */
+	public byte[] challenge(int length) {
+		byte[] c = new byte[length];
+		nextBytes(c);
+		return c;
+	}
+
+	/**
+	 * Thread-local generators with a pool of 8 byte challenges.
+	 */
+	public static class Pooled extends GPRandom {
+		private final byte[] secret = new byte[32];
+		private final AtomicLong generators = new AtomicLong();
+		private final BlockingQueue<byte[]> pool;
+		private final ThreadLocal<SecureRandom> local = new ThreadLocal<SecureRandom>() {
+			protected SecureRandom initialValue() {
+				return newGenerator();
+			}
+		};
+
+		public Pooled(int poolSize) {
+			new SecureRandom().nextBytes(secret);
+			pool = new ArrayBlockingQueue<byte[]>(poolSize);
+			Thread filler = new Thread(new Runnable() {
+				public void run() {
+					SecureRandom sr = newGenerator();
+					try {
+						while (true) {
+							byte[] c = new byte[8];
+							sr.nextBytes(c);
+							pool.put(c);
+						}
+					} catch (InterruptedException e) {
+						// Done
+					}
+				}
+			}, "GPRandom pool");
+			filler.setDaemon(true);
+			filler.start();
+		}
+
+		// Hash of the secret and a counter, different for every generator
+		private SecureRandom newGenerator() {
+			byte[] seed;
+			try {
+				MessageDigest md = MessageDigest.getInstance("SHA-256");
+				md.update(secret);
+				md.update(ByteBuffer.allocate(8).putLong(generators.incrementAndGet()).array());
+				seed = md.digest();
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException("SHA-256 not available", e);
+			}
+			try {
+				SecureRandom sr = SecureRandom.getInstance("SHA1PRNG");
+				// Seeded before first use, so nothing else is mixed in
+				sr.setSeed(seed);
+				return sr;
+			} catch (NoSuchAlgorithmException e) {
+				return new SecureRandom(seed);
+			}
+		}
+
+		public void nextBytes(byte[] bytes) {
+			local.get().nextBytes(bytes);
+		}
+
+		public byte[] challenge(int length) {
+			if (length == 8) {
+				byte[] c = pool.poll();
+				if (c != null)
+					return c;
+			}
+			return super.challenge(length);
+		}
+	}
+
+	/**
+	 * The same bytes for the same seed, for tests and replay. Not random.
+	 */
+	public static class Deterministic extends GPRandom {
+		private final SecureRandom sr;
+
+		public Deterministic(byte[] seed) {
+			try {
+				sr = SecureRandom.getInstance("SHA1PRNG");
+				sr.setSeed(seed);
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException("SHA1PRNG not available", e);
+			}
+		}
+
+		public synchronized void nextBytes(byte[] bytes) {
+			sr.nextBytes(bytes);
+		}
+	}
+}
@@ -0,0 +1,469 @@
+package pro.javacard.gp;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CardTerminals.State;
+
+import pro.javacard.gp.GPKeySet.Diversification;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+import apdu4j.HexUtils;
+
+/**
+ * Keeps running and serves GlobalPlatform requests for a set of readers, so
+ * that the JVM, PC/SC context and card connections are set up once and not
+ * for every command.
+ *
+ * Every reader has its own worker thread: requests to the same reader are
+ * executed in order, requests to different readers in parallel. The number of
+ * requests waiting or in progress is bounded, a request beyond that is
+ * refused instead of queued.
+ *
+ * Requests are lists of words, the first being the operation:
+ * <pre>
+ * readers
+ * list &lt;reader&gt;
+ * install &lt;reader&gt; &lt;cap file&gt; [applet AID]
+ * delete &lt;reader&gt; &lt;AID&gt;
+ * lock &lt;reader&gt; &lt;new key hex&gt; [key version]
+ * </pre>
+ * A reader is given by its name or its index in the "readers" output.
+ *
+ * Cards are authenticated with the keys given to the service, or with the
+ * keys they were locked with by the service, found by the card ID in CPLC or
+ * from the key store (see {@link #setKeyStore(CardKeyStore)}). The keys
+ * follow the card, not the reader.
+ *
+ * Over TCP (see {@link #listen(int)}) a request is a line and the response is
+ * "OK n" or "ERROR n message", followed by n lines of output and a "TIME" line
+ * with the time spent in each phase, in microseconds.
+ */
+public class GPService implements Closeable {
+	private final List<Reader> readers = new ArrayList<Reader>();
+	private final ConnectionManager connections = new ConnectionManager();
+	private final Semaphore queue;
+	private final GPKeySet keys;
+	// Keys of cards locked by the service, by card ID
+	private final Map<String, GPKeySet> locked = new ConcurrentHashMap<String, GPKeySet>();
+	private volatile CardKeyStore keyStore = null;
+	private volatile ServerSocket server = null;
+
+	/**
+	 * The result of a request, with the time spent in each phase.
+	 */
+	public static final class Response {
+		public final boolean ok;
+		public final String error;
+		public final List<String> output;
+		public final long queue;
+		public final long connect;
+		public final long select;
+		public final long auth;
+		public final long op;
+		public final long total;
+
+		Response(boolean ok, String error, List<String> output, long[] timings) {
+			this.ok = ok;
+			this.error = error;
+			this.output = Collections.unmodifiableList(output);
+			this.queue = timings[0];
+			this.connect = timings[1];
+			this.select = timings[2];
+			this.auth = timings[3];
+			this.op = timings[4];
+			this.total = timings[5];
+		}
+
+		public String getTimings() {
+			return "queue=" + queue + " connect=" + connect + " select=" + select + " auth=" + auth + " op=" + op + " total=" + total;
+		}
+
+		public String toString() {
+			return (ok ? "OK" : "ERROR " + error) + " " + output + " " + getTimings();
+		}
+	}
+
+	// A reader and the thread working with it
+	private static final class Reader {
+		final CardTerminal terminal;
+		final ExecutorService worker = Executors.newSingleThreadExecutor();
+
+		Reader(CardTerminal terminal) {
+			this.terminal = terminal;
+		}
+	}
+
+	// An operation on an authenticated card
+	private interface Operation {
+		void run(GlobalPlatform gp, Reader r, List<String> output) throws CardException, GPException, IOException;
+	}
+
+	/**
+	 * Serves the readers that have a card present, with at most queueSize
+	 * requests outstanding.
+	 */
+	public GPService(CardTerminals terminals, GPKeySet keys, int queueSize) throws CardException {
+		for (CardTerminal t : terminals.list(State.CARD_PRESENT)) {
+			readers.add(new Reader(t));
+		}
+		this.keys = keys;
+		queue = new Semaphore(queueSize);
+	}
+
+	/**
+	 * Takes the keys of cards from the store and writes the keys of locked
+	 * cards to it.
+	 */
+	public void setKeyStore(CardKeyStore keyStore) {
+		this.keyStore = keyStore;
+		connections.setKeyStore(keyStore);
+	}
+
+	public void setLog(GPLog log) {
+		connections.setLog(log);
+	}
+
+	/**
+	 * Balances the readers with the scheduler, see {@link ReaderScheduler}.
+	 */
+	public void setScheduler(ReaderScheduler scheduler) {
+		connections.setScheduler(scheduler);
+	}
+
+	public Response execute(String... request) {
+		return execute(Arrays.asList(request));
+	}
+
+	public Response execute(List<String> request) {
+		final long start = System.nanoTime();
+		final long[] timings = new long[6];
+		final List<String> output = new ArrayList<String>();
+		if (!queue.tryAcquire()) {
+			return new Response(false, "Queue full", output, timings);
+		}
+		try {
+			if (request.isEmpty())
+				return new Response(false, "Empty request", output, timings);
+			String cmd = request.get(0);
+			if (cmd.equals("readers")) {
+				for (int i = 0; i < readers.size(); i++) {
+					output.add(i + " " + readers.get(i).terminal.getName());
+				}
+				timings[5] = micros(start);
+				return new Response(true, null, output, timings);
+			}
+			if (request.size() < 2)
+				return new Response(false, "No reader given", output, timings);
+			final Reader reader = getReader(request.get(1));
+			if (reader == null)
+				return new Response(false, "Reader " + request.get(1) + " not found", output, timings);
+			final Operation op = parse(cmd, request.subList(2, request.size()));
+			if (op == null)
+				return new Response(false, "Unknown request: " + request, output, timings);
+
+			String error = reader.worker.submit(new Callable<String>() {
+				public String call() {
+					timings[0] = micros(start);
+					return run(reader, op, output, timings);
+				}
+			}).get();
+			timings[5] = micros(start);
+			return new Response(error == null, error, output, timings);
+		} catch (ExecutionException e) {
+			timings[5] = micros(start);
+			return new Response(false, String.valueOf(e.getCause()), output, timings);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new Response(false, "Interrupted", output, timings);
+		} catch (IllegalArgumentException e) {
+			return new Response(false, e.getMessage(), output, timings);
+		} finally {
+			queue.release();
+		}
+	}
+
+	private Reader getReader(String name) {
+		for (Reader r : readers) {
+			if (r.terminal.getName().equals(name))
+				return r;
+		}
+		try {
+			int i = Integer.parseInt(name);
+			if (i >= 0 && i < readers.size())
+				return readers.get(i);
+		} catch (NumberFormatException e) {
+			// Not an index
+		}
+		return null;
+	}
+
+	private Operation parse(String cmd, final List<String> params) {
+		switch (cmd) {
+		case "list":
+			return new Operation() {
+				public void run(GlobalPlatform gp, Reader r, List<String> output) throws CardException, GPException {
+					for (AIDRegistryEntry e : gp.getRegistry()) {
+						output.add(e.getKind().toShortString() + " " + e.getAID() + " " + e.getLifeCycleString());
+					}
+				}
+			};
+		case "install":
+			if (params.isEmpty() || params.size() > 2)
+				throw new IllegalArgumentException("install <reader> <cap file> [applet AID]");
+			return new Operation() {
+				public void run(GlobalPlatform gp, Reader r, List<String> output) throws CardException, GPException, IOException {
+					CapFile cap = CapFile.open(new File(params.get(0)));
+					if (cap.getAppletAIDs().isEmpty() && params.size() < 2)
+						throw new GPException("No applets in CAP file");
+					AID applet = params.size() > 1 ? new AID(params.get(1)) : cap.getAppletAIDs().get(0);
+					InstallPlanner.Target target = new InstallPlanner.Target();
+					target.addPackage(cap, true);
+					target.addInstance(cap.getPackageAID(), applet, applet, (byte) 0x00, null);
+					List<InstallPlanner.Step> plan = InstallPlanner.plan(gp.getRegistry(), target, gp.getLoadFileHashes());
+					new InstallTransaction(gp, InstallTransaction.retries(1)).execute(plan);
+					for (InstallPlanner.Step s : plan) {
+						output.add(s.toString());
+					}
+				}
+			};
+		case "delete":
+			if (params.size() != 1)
+				throw new IllegalArgumentException("delete <reader> <AID>");
+			final AID aid = new AID(params.get(0));
+			return new Operation() {
+				public void run(GlobalPlatform gp, Reader r, List<String> output) throws CardException, GPException {
+					gp.deleteAID(aid, true);
+					output.add("Deleted " + aid);
+				}
+			};
+		case "lock":
+			if (params.isEmpty() || params.size() > 2)
+				throw new IllegalArgumentException("lock <reader> <new key hex> [key version]");
+			final byte[] value = HexUtils.stringToBin(params.get(0));
+			// As with --lock and --new-keyver
+			final int version = params.size() > 1 ? Integer.parseInt(params.get(1)) : 1;
+			if (version < 1 || version > 0x7F)
+				throw new IllegalArgumentException("Key version must be 1..127: " + version);
+			return new Operation() {
+				public void run(GlobalPlatform gp, Reader r, List<String> output) throws CardException, GPException, IOException {
+					String id = CardInventory.getCardID(gp.getCPLC());
+					if (id == null && keyStore == null)
+						throw new GPException("Card has no CPLC and there is no key store, its new keys would be lost");
+					GPKey key = new GPKey(value, gp.getSCPVersion() == 3 ? Type.AES : Type.DES3);
+					List<GPKey> keys = new ArrayList<GPKey>();
+					keys.add(new GPKey(version, 1, key));
+					keys.add(new GPKey(version, 2, key));
+					keys.add(new GPKey(version, 3, key));
+					// Factory keys and keys diversified from a master key are
+					// added, as with --virgin, --emv and --visa2, others replaced
+					int current = gp.getKeyInfoTemplate().get(0).getVersion();
+					boolean add = current < 1 || current > 0x7F || GPService.this.keys.diversification != Diversification.NONE;
+					gp.putKeys(keys, !add);
+					GPKeySet ks = new GPKeySet(key);
+					ks.setKeyVersion(version);
+					if (id != null)
+						locked.put(id, ks);
+					if (keyStore != null)
+						keyStore.put(CardKeyStore.identity(gp.getDiversificationData()), ks);
+					output.add("Locked with " + key.toStringKey() + " version " + version);
+				}
+			};
+		default:
+			return null;
+		}
+	}
+
+	// On the worker thread of the reader. Returns the error, if any
+	private String run(Reader r, Operation op, List<String> output, long[] timings) {
+		try {
+			// Connection, selection and secure channel are kept between requests
+			long t = System.nanoTime();
+			connections.connect(r.terminal);
+			timings[1] = micros(t);
+
+			// The card may have been changed in between, so the connection
+			// of the last step is the one to use
+			t = System.nanoTime();
+			GlobalPlatform gp = connections.select(r.terminal, null);
+			timings[2] = micros(t);
+
+			t = System.nanoTime();
+			gp = connections.authenticate(r.terminal, null, getKeys(gp), 0, gp.defaultMode);
+			timings[3] = micros(t);
+
+			t = System.nanoTime();
+			op.run(gp, r, output);
+			timings[4] = micros(t);
+			return null;
+		} catch (CardException e) {
+			// Connect again with the next request
+			connections.drop(r.terminal);
+			return "Card: " + e.getMessage();
+		} catch (GPException e) {
+			return e.getMessage();
+		} catch (IOException e) {
+			return "I/O: " + e.getMessage();
+		} catch (RuntimeException e) {
+			return e.toString();
+		}
+	}
+
+	// Keys the card was locked with, or the keys of the service
+	private GPKeySet getKeys(GlobalPlatform gp) throws CardException, GPException {
+		String id = CardInventory.getCardID(gp.getCPLC());
+		GPKeySet ks = id == null ? null : locked.get(id);
+		return ks != null ? ks : keys;
+	}
+
+	private static long micros(long since) {
+		return (System.nanoTime() - since) / 1000;
+	}
+
+	/**
+	 * Serves requests from local TCP clients until closed. Blocks.
+	 */
+	public void listen(int port) throws IOException {
+		server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		try {
+			while (true) {
+				final Socket client;
+				try {
+					client = server.accept();
+				} catch (SocketException e) {
+					if (server.isClosed())
+						return;
+					throw e;
+				}
+				Thread t = new Thread(new Runnable() {
+					public void run() {
+						serve(client);
+					}
+				}, "GPService client " + client.getPort());
+				t.setDaemon(true);
+				t.start();
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	private void serve(Socket client) {
+		try (Socket s = client;
+			 BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), "UTF-8"));
+			 PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), "UTF-8"))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty())
+					continue;
+				Response r = execute(Arrays.asList(line.split("\\s+")));
+				out.print((r.ok ? "OK " + r.output.size() : "ERROR " + r.output.size() + " " + r.error) + "\n");
+				for (String o : r.output) {
+					out.print(o + "\n");
+				}
+				out.print("TIME " + r.getTimings() + "\n");
+				out.flush();
+			}
+		} catch (IOException e) {
+			// Client went away
+		}
+	}
+
+	public void close() throws IOException {
+		if (server != null)
+			server.close();
+		// Exclusive access is released by the thread that holds it
+		for (final Reader r : readers) {
+			r.worker.submit(new Runnable() {
+				public void run() {
+					connections.release(r.terminal);
+				}
+			});
+			r.worker.shutdown();
+		}
+		try {
+			for (Reader r : readers) {
+				r.worker.awaitTermination(10, TimeUnit.SECONDS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Talks to a service on the local host.
+	 */
+	public static class Client implements Closeable {
+		private final Socket socket;
+		private final BufferedReader in;
+		private final PrintWriter out;
+
+		public Client(int port) throws IOException {
+			socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+		}
+
+		public Response call(String... request) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			for (String s : request) {
+				if (sb.length() > 0)
+					sb.append(" ");
+				sb.append(s);
+			}
+			out.print(sb.toString() + "\n");
+			out.flush();
+
+			String status = readLine();
+			String[] words = status.split(" ", 3);
+			boolean ok = words[0].equals("OK");
+			int n = Integer.parseInt(words[1]);
+			List<String> output = new ArrayList<String>();
+			for (int i = 0; i < n; i++) {
+				output.add(readLine());
+			}
+			long[] timings = new long[6];
+			String[] times = readLine().split(" ");
+			for (int i = 1; i < times.length && i <= timings.length; i++) {
+				timings[i - 1] = Long.parseLong(times[i].substring(times[i].indexOf('=') + 1));
+			}
+			return new Response(ok, ok ? null : (words.length > 2 ? words[2] : ""), output, timings);
+		}
+
+		private String readLine() throws IOException {
+			String line = in.readLine();
+			if (line == null)
+				throw new IOException("Service closed the connection");
+			return line;
+		}
+
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+}
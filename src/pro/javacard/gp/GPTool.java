@@ -8,6 +8,7 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 
 import javax.smartcardio.Card;
 import javax.smartcardio.CardException;
@@ -20,6 +21,7 @@ import javax.smartcardio.TerminalFactory;
 import joptsimple.OptionException;
 import joptsimple.OptionParser;
 import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
 import pro.javacard.gp.GPData.KeyType;
 import pro.javacard.gp.GPKeySet.Diversification;
 import pro.javacard.gp.GPKeySet.GPKey;
@@ -45,6 +47,9 @@ public class GPTool {
 	private final static String CMD_MAKE_DEFAULT = "make-default";
 	private final static String CMD_APDU = "apdu";
 	private final static String CMD_SECURE_APDU = "secure-apdu";
+	private final static String CMD_FIND = "find";
+	private final static String CMD_STORE_DATA = "store-data";
+	private final static String OPT_PERSONALIZE = "personalize";
 	private final static String OPT_SCP = "scp";
 
 	private final static String OPT_DELETEDEPS = "deletedeps";
@@ -55,7 +60,26 @@ public class GPTool {
 	private final static String OPT_INSTANCE = "instance";
 	private final static String OPT_DO_ALL_READERS = "all";
 	private final static String OPT_NOFIX = "nofix";
+	private final static String OPT_CRYPTO = "crypto";
+	private final static String OPT_INVENTORY = "inventory";
+	private final static String OPT_CACHED = "cached";
+	private final static String OPT_CAPABILITIES = "capabilities";
+	private final static String OPT_MANIFEST = "manifest";
+	private final static String OPT_IJC = "ijc";
+	private final static String OPT_INDEXED = "indexed";
+	private final static String OPT_SIMULATE = "simulate";
+	private final static String CMD_SERVICE = "service";
+	private final static String CMD_BENCHMARK = "benchmark";
+	private final static String OPT_LATENCY = "latency";
+	private final static String OPT_HUBS = "hubs";
+	private final static String OPT_SCHEDULE = "schedule";
 	private final static String OPT_PARAMS = "params";
+	private final static String OPT_LOAD_MARGIN = "load-margin";
+	private final static String OPT_RETRIES = "retries";
+	private final static String OPT_KEY_BATCH = "key-batch";
+	private final static String CMD_PRECOMPUTE = "precompute";
+	private final static String OPT_KEY_STORE = "key-store";
+	private final static String CMD_STORE_KEYS = "store-keys";
 
 	private final static String OPT_CONTINUE = "skip-error";
 	private final static String OPT_RELAX = "relax";
@@ -82,7 +106,7 @@ public class GPTool {
 	private final static String OPT_VISA2 = "visa2";
 
 
-	private static OptionSet parseArguments(String[] argv) throws IOException {
+	static OptionSet parseArguments(String[] argv) throws IOException {
 		OptionSet args = null;
 		OptionParser parser = new OptionParser();
 
@@ -95,8 +119,16 @@ public class GPTool {
 		parser.acceptsAll(Arrays.asList("i", CMD_INFO), "Show information");
 		parser.acceptsAll(Arrays.asList("a", CMD_APDU), "Send raw APDU (hex)").withRequiredArg();
 		parser.acceptsAll(Arrays.asList("s", CMD_SECURE_APDU), "Send raw APDU (hex) via SCP").withRequiredArg();
+		parser.accepts(CMD_STORE_DATA, "Send DGI record (hex) with STORE DATA").withRequiredArg();
+		parser.accepts(OPT_PERSONALIZE, "Send STORE DATA to application <AID>").withRequiredArg().withValuesConvertedBy(ArgMatchers.aid());
 		parser.accepts(OPT_DUMP, "Dump APDU communication to <File>").withRequiredArg().ofType(File.class);
 		parser.accepts(OPT_REPLAY, "Replay APDU responses from <File>").withRequiredArg().ofType(File.class);
+		parser.accepts(OPT_SIMULATE, "Use <count> simulated readers and cards").withRequiredArg().ofType(Integer.class);
+		parser.accepts(CMD_SERVICE, "Serve requests on local <port>").withRequiredArg().ofType(Integer.class);
+		parser.accepts(CMD_BENCHMARK, "Load, install and lock <count> simulated cards").withRequiredArg().ofType(Integer.class);
+		parser.accepts(OPT_LATENCY, "Simulated card latency (none, contact, contactless, slow)").withRequiredArg();
+		parser.accepts(OPT_HUBS, "Put simulated readers behind <count> shared USB hubs").withRequiredArg().ofType(Integer.class);
+		parser.accepts(OPT_SCHEDULE, "Balance readers that share a hub (--service, --benchmark)");
 
 		parser.accepts(OPT_VERSION, "Show information about the program");
 
@@ -104,16 +136,26 @@ public class GPTool {
 		parser.accepts(OPT_RELAX, "Relaxed error checking");
 		parser.accepts(OPT_DO_ALL_READERS, "Work with multiple readers");
 		parser.accepts(OPT_NOFIX, "Do not try to fix PCSC/Java/OS issues");
+		parser.accepts(OPT_CRYPTO, "Crypto backend to use (jce/bc/table/auto, default jce)").withRequiredArg();
+		parser.accepts(OPT_CAPABILITIES, "Remember card capabilities in <File>").withRequiredArg().ofType(File.class);
+		parser.accepts(OPT_MANIFEST, "Remember loaded packages in <File>, reinstall only changed").withRequiredArg().ofType(File.class);
+		parser.accepts(OPT_CACHED, "Use inventory contents not older than <seconds>").withRequiredArg().ofType(Integer.class);
+		parser.accepts(CMD_FIND, "Find cards with AID from inventory").withRequiredArg().withValuesConvertedBy(ArgMatchers.aid());
+		parser.accepts(OPT_INVENTORY, "Record card contents to inventory <File>").requiredIf(CMD_FIND, OPT_CACHED).withRequiredArg().ofType(File.class);
 
 
 		// Applet operation options
 		parser.accepts(OPT_CAP, "Use a CAP file as source").withRequiredArg().ofType(File.class);
-		parser.accepts(CMD_LOAD, "Load a CAP file").withRequiredArg().ofType(File.class);
+		parser.accepts(CMD_LOAD, "Load a CAP file (can be repeated)").withRequiredArg().ofType(File.class);
+		parser.accepts(OPT_IJC, "Write load file of CAP to IJC <File>").withRequiredArg().ofType(File.class);
+		parser.accepts(OPT_INDEXED, "Write CAP to indexed load image <File>").withRequiredArg().ofType(File.class);
 
 		parser.accepts(CMD_INSTALL, "Install applet").withOptionalArg().ofType(File.class);
 		parser.accepts(OPT_PARAMS, "Installation parameters").withRequiredArg();
 
 		parser.accepts(CMD_UNINSTALL, "Uninstall applet/package").withRequiredArg().ofType(File.class);
+		parser.accepts(OPT_LOAD_MARGIN, "Free memory to leave after LOAD, in bytes (-1 to not check)").withRequiredArg().ofType(Integer.class);
+		parser.accepts(OPT_RETRIES, "Retry a failed load or install step <count> times (default 1)").withRequiredArg().ofType(Integer.class);
 		parser.accepts(OPT_DEFAULT, "Indicate Default Selected");
 		parser.accepts(OPT_DELETEDEPS, "Also delete dependencies");
 		parser.accepts(OPT_REINSTALL, "Remove card content during installation");
@@ -139,6 +181,10 @@ public class GPTool {
 		parser.accepts(OPT_NEW_KEY_VERSION, "key version for the new key").withRequiredArg().ofType(Integer.class);
 
 		parser.accepts(OPT_VIRGIN, "Card has virgin keys");
+		parser.accepts(CMD_PRECOMPUTE, "Diversify keys for cards in manifest <File> to --key-batch (encrypted, owner-only)").withRequiredArg().ofType(File.class);
+		parser.accepts(OPT_KEY_BATCH, "Use card keys diversified in advance from <File> (password in $GP_KEY_BATCH_PASSWORD)").requiredIf(CMD_PRECOMPUTE).withRequiredArg().ofType(File.class);
+		parser.accepts(CMD_STORE_KEYS, "Store the given keys for card <diversification data or CPLC ID> in --key-store").withRequiredArg().withValuesConvertedBy(ArgMatchers.identity());
+		parser.accepts(OPT_KEY_STORE, "Use per-card keys from <File> (password in $GP_KEY_STORE_PASSWORD)").requiredIf(CMD_STORE_KEYS).withRequiredArg().ofType(File.class);
 
 
 		// Key diversification and AID options
@@ -174,15 +220,8 @@ public class GPTool {
 		return args;
 	}
 
-	public static void main(String[] argv) throws Exception {
-
-		OptionSet args = parseArguments(argv);
-
-		if (args.has(OPT_VERSION)) {
-			System.out.println("OpenKMS GlobalPlatform version " + GlobalPlatform.sdk_version);
-		}
-
-		// Parameters for opening the secure channel
+	// Parameters for opening the secure channel
+	static GPKeySet getKeySet(OptionSet args) {
 		// Assume a single master key
 		GPKeySet ks = null;
 		if (args.has(OPT_KEY)) {
@@ -215,38 +254,217 @@ public class GPTool {
 		} else if (args.has(OPT_EMV)) {
 			ks.diversification = Diversification.EMV;
 		}
+		return ks;
+	}
+
+	// From the environment, or asked on the console
+	private static char[] getPassword(String variable, String prompt, String option) {
+		String password = System.getenv(variable);
+		if (password != null)
+			return password.toCharArray();
+		if (System.console() == null)
+			throw new IllegalArgumentException("Need " + variable + " for --" + option);
+		return System.console().readPassword(prompt);
+	}
+
+	public static void main(String[] argv) throws Exception {
+
+		OptionSet args = parseArguments(argv);
+
+		if (args.has(OPT_VERSION)) {
+			System.out.println("OpenKMS GlobalPlatform version " + GlobalPlatform.sdk_version);
+		}
+
+		// Nothing else to do
+		if (args.has(OPT_VERSION) && args.specs().size() == 1) {
+			return;
+		}
+
+		// Select crypto backend, it is initialized on first use
+		if (args.has(OPT_CRYPTO)) {
+			System.setProperty(CryptoBackend.PROPERTY, (String) args.valueOf(OPT_CRYPTO));
+		}
+
+		// Card inventory
+		CardInventory inventory = null;
+		if (args.has(OPT_INVENTORY)) {
+			inventory = CardInventory.open((File) args.valueOf(OPT_INVENTORY));
+		}
+
+		// Card capabilities
+		CapabilityCache capabilities = null;
+		if (args.has(OPT_CAPABILITIES)) {
+			capabilities = new CapabilityCache((File) args.valueOf(OPT_CAPABILITIES));
+		}
+
+		// Loaded packages
+		LoadFileManifest manifest = null;
+		if (args.has(OPT_MANIFEST)) {
+			manifest = new LoadFileManifest((File) args.valueOf(OPT_MANIFEST));
+		}
+
+		// Diversify keys for a batch of cards
+		if (args.has(CMD_PRECOMPUTE)) {
+			GPKeySet master = getKeySet(args);
+			if (master.diversification == Diversification.NONE) {
+				throw new IllegalArgumentException("Need --" + OPT_EMV + " or --" + OPT_VISA2);
+			}
+			List<byte[]> batch = DiversifiedKeyFile.readManifest((File) args.valueOf(CMD_PRECOMPUTE));
+			long start = System.currentTimeMillis();
+			char[] password = getPassword("GP_KEY_BATCH_PASSWORD", "Key batch password: ", OPT_KEY_BATCH);
+			int n = DiversifiedKeyFile.create((File) args.valueOf(OPT_KEY_BATCH), password, master, batch, Runtime.getRuntime().availableProcessors());
+			System.out.println("Diversified keys for " + n + " cards in " + (System.currentTimeMillis() - start) + " ms");
+			return;
+		}
+
+		// Card keys diversified in advance
+		DiversifiedKeyFile keyBatch = null;
+		if (args.has(OPT_KEY_BATCH)) {
+			keyBatch = DiversifiedKeyFile.open((File) args.valueOf(OPT_KEY_BATCH), getPassword("GP_KEY_BATCH_PASSWORD", "Key batch password: ", OPT_KEY_BATCH));
+		}
+
+		// Keys of individual cards
+		CardKeyStore keyStore = null;
+		if (args.has(OPT_KEY_STORE)) {
+			char[] password = getPassword("GP_KEY_STORE_PASSWORD", "Key store password: ", OPT_KEY_STORE);
+			keyStore = CardKeyStore.open((File) args.valueOf(OPT_KEY_STORE), password, 1024);
+			if (args.has(CMD_STORE_KEYS)) {
+				keyStore.put((String) args.valueOf(CMD_STORE_KEYS), getKeySet(args));
+				keyStore.close();
+				return;
+			}
+		}
+
+		// --find <aid> works without cards
+		if (args.has(CMD_FIND)) {
+			for (CardInventory.Snapshot s : inventory.findByAID((AID) args.valueOf(CMD_FIND))) {
+				System.out.println(s);
+			}
+			inventory.close();
+			return;
+		}
 
 		// Load a CAP file, if specified
 		CapFile cap = null;
 		if (args.has(OPT_CAP)) {
 			File capfile = (File) args.valueOf(OPT_CAP);
-			cap = new CapFile(new FileInputStream(capfile));
+			cap = CapFile.open(capfile);
 			if (args.has(OPT_VERBOSE)) {
 				System.out.println("**** CAP info:");
 				cap.dump(System.out);
 			}
 		}
 
+		// Convert the CAP file to load images
+		if (args.has(OPT_IJC) || args.has(OPT_INDEXED)) {
+			if (cap == null) {
+				throw new IllegalArgumentException("Need --" + OPT_CAP);
+			}
+			if (args.has(OPT_IJC)) {
+				try (OutputStream out = new FileOutputStream((File) args.valueOf(OPT_IJC))) {
+					cap.writeIJC(out, false);
+				}
+			}
+			if (args.has(OPT_INDEXED)) {
+				try (OutputStream out = new FileOutputStream((File) args.valueOf(OPT_INDEXED))) {
+					cap.writeIndexed(out);
+				}
+			}
+			// Nothing else to do
+			boolean card = false;
+			for (OptionSpec<?> spec : args.specs()) {
+				for (String o : spec.options()) {
+					if (!Arrays.asList(OPT_CAP, OPT_IJC, OPT_INDEXED, OPT_VERBOSE).contains(o))
+						card = true;
+				}
+			}
+			if (!card) {
+				return;
+			}
+		}
+
+		// Measure throughput with simulated cards, --load-ed packages and --cap
+		if (args.has(CMD_BENCHMARK)) {
+			List<CapFile> caps = new ArrayList<CapFile>();
+			for (Object f : args.valuesOf(CMD_LOAD)) {
+				caps.add(CapFile.open((File) f));
+			}
+			if (cap == null) {
+				throw new IllegalArgumentException("Need --" + OPT_CAP);
+			}
+			caps.add(cap);
+			int readers = args.has(OPT_SIMULATE) ? (int) args.valueOf(OPT_SIMULATE) : 1;
+			SimulatedCard.Latency latency = SimulatedCard.Latency.valueOf(args.has(OPT_LATENCY) ? (String) args.valueOf(OPT_LATENCY) : "contact");
+			FleetBenchmark benchmark = new FleetBenchmark(readers, (int) args.valueOf(CMD_BENCHMARK), latency, caps);
+			if (args.has(OPT_HUBS)) {
+				benchmark.setHubs((int) args.valueOf(OPT_HUBS), 0.25);
+			}
+			ReaderScheduler scheduler = args.has(OPT_SCHEDULE) ? new ReaderScheduler() : null;
+			benchmark.setScheduler(scheduler);
+			benchmark.run().print(System.out);
+			if (scheduler != null) {
+				System.out.println(scheduler);
+			}
+			return;
+		}
+
+		// Prepare CAP files to load before talking to cards
+		DeploymentSet deployment = null;
+		if (args.has(CMD_LOAD)) {
+			List<File> files = new ArrayList<File>();
+			for (Object f : args.valuesOf(CMD_LOAD)) {
+				files.add((File) f);
+			}
+			// Block size of the default MAC mode
+			deployment = DeploymentSet.prepare(files, GlobalPlatform.defaultLoadSize - 8);
+			if (args.has(OPT_VERBOSE)) {
+				for (CapFile c : deployment.getCapFiles()) {
+					System.out.println("Load order: " + c.getPackageAID() + " (" + c.getPackageName() + ")");
+				}
+			}
+		}
+
 		// Now actually talk to possible terminals
 		try {
-			TerminalFactory tf = TerminalManager.getTerminalFactory(args.has(OPT_NOFIX) ? false : true);
+			TerminalFactory tf = null;
+			CardTerminals terminals = null;
 
-			// Replay responses from a file
-			if (args.has(OPT_REPLAY)) {
-				File f = (File) args.valueOf(OPT_REPLAY);
-				tf = TerminalFactory.getInstance("PC/SC", new FileInputStream(f), new APDUReplayProvider());
+			// Simulated cards, or replay responses from a file
+			if (args.has(OPT_SIMULATE)) {
+				terminals = new SimulatedTerminals((int) args.valueOf(OPT_SIMULATE));
+			} else {
+				if (args.has(OPT_REPLAY)) {
+					File f = (File) args.valueOf(OPT_REPLAY);
+					tf = TerminalFactory.getInstance("PC/SC", new FileInputStream(f), new APDUReplayProvider());
+				} else {
+					tf = TerminalManager.getTerminalFactory(args.has(OPT_NOFIX) ? false : true);
+				}
+				terminals = tf.terminals();
 			}
 
-			CardTerminals terminals = tf.terminals();
-
 			// List terminals if needed
 			if (args.has(OPT_DEBUG)) {
-				System.out.println("# Detected readers from " + tf.getProvider().getName());
+				System.out.println("# Detected readers from " + (tf == null ? "simulator" : tf.getProvider().getName()));
 				for (CardTerminal term : terminals.list()) {
 					System.out.println((term.isCardPresent() ? "[*] " : "[ ] ") + term.getName());
 				}
 			}
 
+			// Serve requests for all readers until killed
+			if (args.has(CMD_SERVICE)) {
+				try (GPService service = new GPService(terminals, getKeySet(args), 64); GPLog.AsyncAppender log = new GPLog.AsyncAppender(new GPLog.StreamAppender(System.out), 1024)) {
+					if (args.has(OPT_VERBOSE))
+						service.setLog(new GPLog(log, GPLog.Level.DEBUG));
+					if (args.has(OPT_SCHEDULE))
+						service.setScheduler(new ReaderScheduler());
+					if (keyStore != null)
+						service.setKeyStore(keyStore);
+					System.out.println("Serving on port " + args.valueOf(CMD_SERVICE));
+					service.listen((int) args.valueOf(CMD_SERVICE));
+				}
+				return;
+			}
+
 			// Select terminals to work on
 			List<CardTerminal> do_readers;
 			if (args.has(OPT_READER)) {
@@ -302,6 +520,31 @@ public class GPTool {
 					// Disable strict mode if requested
 					gp.setStrict(!args.has(OPT_RELAX));
 
+					if (capabilities != null) {
+						gp.setCapabilityCache(capabilities);
+					}
+
+					if (manifest != null) {
+						gp.setLoadFileManifest(manifest);
+					}
+
+					if (args.has(OPT_LOAD_MARGIN)) {
+						gp.setLoadMargin((int) args.valueOf(OPT_LOAD_MARGIN));
+					}
+
+					if (keyBatch != null) {
+						gp.setKeyDerivationService(keyBatch);
+					}
+
+					if (keyStore != null) {
+						gp.setKeyStore(keyStore);
+					}
+
+					if (inventory != null) {
+						int cached = args.has(OPT_CACHED) ? (int) args.valueOf(OPT_CACHED) : 0;
+						gp.setInventory(inventory, cached * 1000L);
+					}
+
 					if (args.has(CMD_INFO) || args.has(OPT_VERBOSE)) {
 						System.out.println("Reader: " + reader.getName());
 						System.out.println("ATR: " + HexUtils.encodeHexString(card.getATR().getBytes()));
@@ -327,20 +570,23 @@ public class GPTool {
 						GPData.print_card_info(gp);
 					}
 
-					// check for possible diversification for virgin cards
-					if (Arrays.equals(ks.getKey(KeyType.MAC).getValue(), GPData.defaultKey) && args.has(OPT_VIRGIN) && !args.has(OPT_RELAX)) {
-						if (GPData.suggestDiversification(gp.getCPLC()) != Diversification.NONE && ks.getKeyVersion() == 0x00) {
-							System.err.println("A virgin card that has not been used with GlobalPlatformPro before");
-							System.err.println("probably requires EMV diversification but is not asked for.");
-							System.err.println("Use -emv for EMV diversification. Or don't run with -virgin or use -relax.");
-							System.exit(1);
-						}
-					}
-
 					// Authenticate, only if needed
-					if (args.has(CMD_LIST) || args.has(CMD_INSTALL) || args.has(CMD_DELETE)
+					if (args.has(CMD_LIST) || args.has(CMD_INSTALL) || args.has(CMD_LOAD) || args.has(CMD_DELETE)
 							|| args.has(CMD_CREATE) || args.has(CMD_LOCK) || args.has(CMD_UNLOCK)
-							|| args.has(CMD_MAKE_DEFAULT) || args.has(CMD_UNINSTALL) || args.has(CMD_SECURE_APDU)) {
+							|| args.has(CMD_MAKE_DEFAULT) || args.has(CMD_UNINSTALL) || args.has(CMD_SECURE_APDU) || args.has(CMD_STORE_DATA)) {
+
+						// Keys are only needed with a secure channel
+						GPKeySet ks = getKeySet(args);
+
+						// check for possible diversification for virgin cards
+						if (Arrays.equals(ks.getKey(KeyType.MAC).getValue(), GPData.defaultKey) && args.has(OPT_VIRGIN) && !args.has(OPT_RELAX)) {
+							if (GPData.suggestDiversification(gp.getCPLC()) != Diversification.NONE && ks.getKeyVersion() == 0x00) {
+								System.err.println("A virgin card that has not been used with GlobalPlatformPro before");
+								System.err.println("probably requires EMV diversification but is not asked for.");
+								System.err.println("Use -emv for EMV diversification. Or don't run with -virgin or use -relax.");
+								System.exit(1);
+							}
+						}
 
 						// Override default mode if needed.
 						if (args.has(OPT_MODE)) {
@@ -365,6 +611,21 @@ public class GPTool {
 							}
 						}
 
+						// Failed steps of --load and --install are retried, then undone
+						InstallTransaction.RetryPolicy retries = InstallTransaction.retries(args.has(OPT_RETRIES) ? (int) args.valueOf(OPT_RETRIES) : 1);
+
+						// --store-data <DGI> [--personalize <aid>]
+						if (args.has(CMD_STORE_DATA)) {
+							if (args.has(OPT_PERSONALIZE)) {
+								gp.installForPersonalization((AID) args.valueOf(OPT_PERSONALIZE));
+							}
+							StoreData sd = gp.storeData(StoreData.DGI);
+							for (Object s: args.valuesOf(CMD_STORE_DATA)) {
+								sd.write(HexUtils.stringToBin((String) s));
+							}
+							sd.close();
+						}
+
 						// --delete <aid> or --delete --default
 						if (args.has(CMD_DELETE)) {
 							if (args.has(OPT_DEFAULT)) {
@@ -392,7 +653,7 @@ public class GPTool {
 						// --uninstall <cap>
 						if (args.has(CMD_UNINSTALL)) {
 							File capfile = (File) args.valueOf(CMD_UNINSTALL);
-							CapFile instcap = new CapFile(new FileInputStream(capfile));
+							CapFile instcap = CapFile.open(capfile);
 							AID aid = instcap.getPackageAID();
 							if (!gp.getRegistry().allAIDs().contains(aid)) {
 								System.out.println(aid + " is not present on card!");
@@ -402,19 +663,28 @@ public class GPTool {
 							}
 						}
 
-						// --install <applet.cap>
-						if (args.has(CMD_INSTALL)) {
-							AID def = gp.getRegistry().getDefaultSelectedPackageAID();
-							if (def != null && args.has(OPT_DEFAULT)) {
-								if (args.has(OPT_REINSTALL)) {
-									gp.verbose("Removing current default applet/package");
-									// Remove all instances of default selected app package
-									gp.deleteAID(def, true);
-								}
+						// --load <cap> (several times)
+						if (args.has(CMD_LOAD)) {
+							AIDRegistry reg = gp.getRegistry();
+							Set<AID> missing = deployment.getMissingImports(reg);
+							if (!missing.isEmpty()) {
+								throw new GPException("Imported packages not on card: " + missing);
+							}
+							InstallPlanner.Target target = deployment.addTo(new InstallPlanner.Target(), args.has(OPT_REINSTALL));
+							List<InstallPlanner.Step> plan = InstallPlanner.plan(reg, target, gp.getLoadFileHashes());
+							if (plan.isEmpty()) {
+								System.out.println("All packages already loaded");
+							}
+							for (InstallPlanner.Step step : plan) {
+								gp.getLog().debug(GPLog.Category.LOAD, "Plan: {}", step);
 							}
+							new InstallTransaction(gp, retries).execute(plan);
+						}
 
+						// --install <applet.cap>
+						if (args.has(CMD_INSTALL)) {
 							File capfile = (File) args.valueOf(CMD_INSTALL);
-							CapFile instcap = new CapFile(new FileInputStream(capfile));
+							CapFile instcap = CapFile.open(capfile);
 
 							if (args.has(OPT_VERBOSE)) {
 								instcap.dump(System.out);
@@ -424,25 +694,38 @@ public class GPTool {
 							if (args.has(OPT_APPLET))
 								aid = (AID) args.valueOf(OPT_APPLET);
 
-							if (gp.getRegistry().allAIDs().contains(aid)) {
-								System.err.println("WARNING: Applet " + aid + " already present on card");
+							byte[] params = null;
+							if (args.has(OPT_PARAMS)) {
+								params = HexUtils.stringToBin((String) args.valueOf(OPT_PARAMS));
 							}
 
-							gp.verbose("Installing applet from package " + instcap.getPackageName());
+							// Describe the wanted state and let the planner figure out the steps
+							InstallPlanner.Target target = new InstallPlanner.Target();
+							target.addPackage(instcap, args.has(OPT_REINSTALL));
+							target.addInstance(instcap.getPackageAID(), aid, null, (byte) 0x00, params);
+							if (args.has(OPT_DEFAULT)) {
+								target.setDefaultSelected(aid);
+								AID def = gp.getRegistry().getDefaultSelectedPackageAID();
+								if (def != null && args.has(OPT_REINSTALL) && !def.equals(instcap.getPackageAID())) {
+									// Remove all instances of default selected app package
+									target.remove(def);
+								}
+							}
+							List<InstallPlanner.Step> plan = InstallPlanner.plan(gp.getRegistry(), target, gp.getLoadFileHashes());
+							if (plan.isEmpty()) {
+								System.out.println("Applet " + aid + " from " + instcap.getPackageName() + " already installed");
+							}
+							for (InstallPlanner.Step step : plan) {
+								gp.getLog().debug(GPLog.Category.LOAD, "Plan: {}", step);
+							}
 							try {
-								gp.loadCapFile(instcap);
+								new InstallTransaction(gp, retries).execute(plan);
 							} catch (GPException e) {
 								if (e.sw == 0x6985) {
 									System.err.println("Applet loading failed. Are you sure the CAP file version is compatible with your card?");
-								} else {
-									throw e;
 								}
+								throw e;
 							}
-							byte[] params = null;
-							if (args.has(OPT_PARAMS)) {
-								params = HexUtils.stringToBin((String) args.valueOf(OPT_PARAMS));
-							}
-							gp.installAndMakeSelectable(instcap.getPackageAID(), aid, null, args.has(OPT_DEFAULT) ? (byte) 0x04 : 0x00, params, null);
 						}
 
 						// --create <aid> (--applet <aid> --package <aid> or --cap <cap>)
@@ -513,6 +796,11 @@ public class GPTool {
 								// normally replace
 								gp.putKeys(keys, true);
 							}
+							if (keyStore != null) {
+								GPKeySet locked = new GPKeySet(new_key);
+								locked.setKeyVersion(new_version);
+								keyStore.put(CardKeyStore.identity(gp.getDiversificationData()), locked);
+							}
 							System.out.println("Card locked with: " + new_key.toStringKey());
 							System.out.println("Write this down, DO NOT FORGET/LOSE IT!");
 						}
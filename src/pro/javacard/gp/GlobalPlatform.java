@@ -26,19 +26,13 @@ package pro.javacard.gp;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
 import javax.smartcardio.CardChannel;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
@@ -46,6 +40,8 @@ import javax.smartcardio.ResponseAPDU;
 
 import pro.javacard.gp.GPData.KeyType;
 import pro.javacard.gp.GPKeySet.Diversification;
+import pro.javacard.gp.GPLog.Category;
+import pro.javacard.gp.GPLog.Level;
 import pro.javacard.gp.GPKeySet.GPKey;
 import pro.javacard.gp.GPKeySet.GPKey.Type;
 import apdu4j.HexUtils;
@@ -71,7 +67,7 @@ public class GlobalPlatform {
 	public static final int SCP_02_1B = 10;
 	public enum APDUMode {
 		// bit values as expected by EXTERNAL AUTHENTICATE
-		CLR(0x00), MAC(0x01), ENC(0x02), RMAC(0x10);
+		CLR(0x00), MAC(0x01), ENC(0x02), RMAC(0x10), RENC(0x20);
 
 		private final int value;
 		private APDUMode(int value) {this.value = value;}
@@ -95,6 +91,7 @@ public class GlobalPlatform {
 	private static final byte INS_DELETE = (byte) 0xE4;
 	private static final byte INS_GET_STATUS = (byte) 0xF2;
 	private static final byte INS_PUT_KEY = (byte) 0xD8;
+	static final byte INS_STORE_DATA = (byte) 0xE2;
 
 
 	// AID of the card successfully selected or null
@@ -105,14 +102,29 @@ public class GlobalPlatform {
 
 	public static final int defaultLoadSize = 255; // TODO: Check CardData
 	private SCPWrapper wrapper = null;
+	// True while the card is known to keep the secure channel
+	private boolean secure = false;
 	private GPKeySet staticKeys = null;
 	private CardChannel channel = null;
 
-	private byte[] cplc = null;
+	private final CardProfile profile = new CardProfile(this);
 	private AIDRegistry registry = null;
 	private boolean dirty = true; // True if registry is dirty.
-	private PrintStream verboseTo = null;
+	private boolean modified = false; // True if card content was changed in this session
+	private CardInventory inventory = null;
+	private long inventoryMaxAge = 0;
+	private CapabilityCache capabilityCache = null;
+	private LoadFileManifest manifest = null;
+	private CapabilityCache.Capabilities caps = new CapabilityCache.Capabilities();
+	private int blockSize = defaultLoadSize;
+	private int loadMargin = 0;
+	private GPLog log = new GPLog();
 	protected boolean strict = true;
+	private KeyDerivationService derivation = LocalKeyDerivationService.getInstance();
+	// Null for GPRandom.getInstance() at the time of use
+	private GPRandom random = null;
+	private CardKeyStore keyStore = null;
+	private byte[] diversificationData = null;
 
 
 	/**
@@ -127,22 +139,187 @@ public class GlobalPlatform {
 		this.channel = channel;
 	}
 
-	protected boolean beVerbose() {
-		return verboseTo != null;
-	}
 	public void beVerboseTo(PrintStream out) {
-		this.verboseTo = new PrintStream(out, true);
+		this.log = new GPLog(new GPLog.StreamAppender(new PrintStream(out, true)), Level.DEBUG);
 	}
-	protected void verbose(String s) {
-		if (!beVerbose())
-			return;
-		verboseTo.println(s);
+	public void setLog(GPLog log) {
+		this.log = log;
+	}
+	public GPLog getLog() {
+		return log;
 	}
 
 	public void setStrict(boolean strict) {
 		this.strict = strict;
 	}
 
+	public void setKeyDerivationService(KeyDerivationService derivation) {
+		this.derivation = derivation;
+	}
+
+	/**
+	 * Free memory the card must have left after a LOAD, in bytes. The check is
+	 * done before loading when the card reports its resources (GET DATA FF21).
+	 * Negative disables the check.
+	 */
+	public void setLoadMargin(int bytes) {
+		this.loadMargin = bytes;
+	}
+
+	/**
+	 * Checks that the card has room for load files of the given total size
+	 * before anything is sent.
+	 */
+	public void checkLoadResources(int length) throws CardException, GPException {
+		if (loadMargin < 0)
+			return;
+		CardProfile.Resources res = profile.getResources();
+		if (res == null || res.freeNonVolatile < 0) {
+			log.debug(Category.LOAD, "Card does not report free memory, not checking");
+			return;
+		}
+		long needed = (long) length + loadMargin;
+		log.debug(Category.LOAD, "Need {} bytes, {}", needed, res);
+		if (res.freeNonVolatile < needed && !res.saturated) {
+			printStrictWarning("Not enough memory on card: " + needed + " bytes needed (" + length + " + margin " + loadMargin + "), " + res.freeNonVolatile + " free");
+		}
+	}
+
+	/**
+	 * Use a specific source of host challenges and key padding instead of
+	 * {@link GPRandom#getInstance()}.
+	 */
+	public void setRandom(GPRandom random) {
+		this.random = random;
+	}
+
+	private GPRandom getRandom() {
+		return random != null ? random : GPRandom.getInstance();
+	}
+
+	/**
+	 * Use the keys of the card from the store, when it has them, instead of
+	 * the keys given to {@link #openSecureChannel}.
+	 */
+	public void setKeyStore(CardKeyStore keyStore) {
+		this.keyStore = keyStore;
+	}
+
+	/**
+	 * Key diversification data from the last INITIALIZE UPDATE, or null.
+	 */
+	public byte[] getDiversificationData() {
+		return diversificationData == null ? null : diversificationData.clone();
+	}
+
+	/**
+	 * Record registry snapshots of cards into the inventory. If maxAge is
+	 * positive, a snapshot of this card not older than maxAge milliseconds is
+	 * used by {@link #getRegistry()} instead of GET STATUS, until the card
+	 * content is changed.
+	 */
+	public void setInventory(CardInventory inventory, long maxAge) {
+		this.inventory = inventory;
+		this.inventoryMaxAge = maxAge;
+	}
+
+	/**
+	 * Record the hash of every loaded package in the manifest, so that
+	 * unchanged packages need not be loaded again. See
+	 * {@link #getLoadFileHashes()}.
+	 */
+	public void setLoadFileManifest(LoadFileManifest manifest) {
+		this.manifest = manifest;
+	}
+
+	/**
+	 * Returns the hashes of load file data of packages loaded to this card,
+	 * as remembered in the manifest. Empty if not known.
+	 */
+	public Map<AID, byte[]> getLoadFileHashes() throws CardException, GPException {
+		String id = manifest == null ? null : CardInventory.getCardID(getCPLC());
+		if (id == null)
+			return Collections.emptyMap();
+		return manifest.get(id);
+	}
+
+	/**
+	 * Opens a new logical channel (MANAGE CHANNEL) to the same card. The
+	 * returned instance has its own selected security domain and secure
+	 * channel session, but shares settings with this one. Several instances
+	 * can be used from different threads; APDU-s are serialized on the card.
+	 *
+	 * @return GlobalPlatform instance talking over the new logical channel
+	 * @throws CardException
+	 *             if the card or reader does not support logical channels
+	 */
+	public GlobalPlatform openLogicalChannel() throws CardException {
+		CardChannel logical = channel.getCard().openLogicalChannel();
+		log.debug(Category.CARD, "Opened logical channel {}", logical.getChannelNumber());
+		GlobalPlatform gp = new GlobalPlatform(logical);
+		gp.log = log;
+		gp.strict = strict;
+		gp.derivation = derivation;
+		gp.random = random;
+		gp.keyStore = keyStore;
+		gp.manifest = manifest;
+		gp.inventory = inventory;
+		gp.inventoryMaxAge = inventoryMaxAge;
+		// Same card, same capabilities
+		gp.capabilityCache = capabilityCache;
+		gp.caps = caps.copy();
+		gp.blockSize = blockSize;
+		gp.loadMargin = loadMargin;
+		gp.defaultMode = EnumSet.copyOf(defaultMode);
+		return gp;
+	}
+
+	public int getChannelNumber() {
+		return channel.getChannelNumber();
+	}
+
+	/**
+	 * Closes a logical channel opened with {@link #openLogicalChannel()}.
+	 * The basic channel can not be closed.
+	 */
+	public void closeLogicalChannel() throws CardException {
+		if (channel.getChannelNumber() == 0)
+			throw new IllegalStateException("Can not close the basic channel");
+		wrapper = null;
+		secure = false;
+		log.debug(Category.CARD, "Closing logical channel {}", channel.getChannelNumber());
+		channel.close();
+	}
+
+	/**
+	 * Use and update remembered capabilities of cards with the same ATR, to
+	 * skip probing. Must be set before {@link #select(AID)}.
+	 */
+	public void setCapabilityCache(CapabilityCache cache) {
+		this.capabilityCache = cache;
+		this.caps = cache.get(channel.getCard().getATR().getBytes());
+		log.debug(Category.CARD, "Remembered capabilities: {}", caps);
+	}
+
+	public CapabilityCache.Capabilities getCapabilities() {
+		return caps.copy();
+	}
+
+	private void rememberCapabilities() {
+		if (capabilityCache == null)
+			return;
+		try {
+			capabilityCache.put(channel.getCard().getATR().getBytes(), caps);
+		} catch (IOException e) {
+			log.debug(Category.CARD, "Could not store capabilities: {}", e.getMessage());
+		}
+	}
+
+	private void forgetCapabilities() {
+		caps = new CapabilityCache.Capabilities();
+		rememberCapabilities();
+	}
+
 	public void imFeelingLucky() throws CardException, GPException {
 		select(null); // auto-detect ISD AID
 		Diversification div = GPData.suggestDiversification(getCPLC());
@@ -165,20 +342,33 @@ public class GlobalPlatform {
 		return CLA_GP;
 	}
 	public boolean select(AID sdAID) throws GPException, CardException {
+		// SELECT ends a secure channel
+		secure = false;
+		// Try the ISD AID that worked with this card type before
+		if (sdAID == null && caps.sdAID != null) {
+			CommandAPDU command = new CommandAPDU(ISO7816.CLA_ISO7816, ISO7816.INS_SELECT, 0x04, 0x00, caps.sdAID.bytes(), 256);
+			ResponseAPDU resp = transmitRaw(command);
+			if (resp.getSW() == 0x9000 || resp.getSW() == 0x6283) {
+				return selected(resp, null);
+			}
+			log.debug(Category.CARD, "Remembered ISD AID {} failed, probing", caps.sdAID);
+			forgetCapabilities();
+		}
+
 		// Try to select ISD without giving the sdAID
 		CommandAPDU command = null;
 		if (sdAID == null ) {
 			command = new CommandAPDU(ISO7816.CLA_ISO7816, ISO7816.INS_SELECT, 0x04, 0x00, 256);
 		} else {
-			command = new CommandAPDU(ISO7816.CLA_ISO7816, ISO7816.INS_SELECT, 0x04, 0x00, sdAID.getBytes(), 256);
+			command = new CommandAPDU(ISO7816.CLA_ISO7816, ISO7816.INS_SELECT, 0x04, 0x00, sdAID.bytes(), 256);
 		}
-		ResponseAPDU resp = channel.transmit(command);
+		ResponseAPDU resp = transmitRaw(command);
 
 		// Unfused JCOP replies with 0x6A82 to everything
 		if (sdAID == null && resp.getSW() == 0x6A82) {
 			byte [] identify_aid = HexUtils.decodeHexString("A000000167413000FF");
 			CommandAPDU identify = new CommandAPDU(ISO7816.CLA_ISO7816, ISO7816.INS_SELECT, 0x04, 0x00, identify_aid, 256);
-			ResponseAPDU identify_resp = channel.transmit(identify);
+			ResponseAPDU identify_resp = transmitRaw(identify);
 			byte[] identify_data = identify_resp.getData();
 			if (identify_data.length > 15) {
 				if (identify_data[14] == 0x00) {
@@ -187,27 +377,80 @@ public class GlobalPlatform {
 			}
 		}
 
+		if (resp.getSW() == 0x9000 || resp.getSW() == 0x6283) {
+			return selected(resp, sdAID);
+		}
+		return false;
+	}
+
+	private boolean selected(ResponseAPDU resp, AID sdAID) throws GPException {
 		if (resp.getSW() == 0x6283) {
 			printStrictWarning("SELECT ISD returned 6283 - CARD_LOCKED");
 		}
-		if (resp.getSW() == 0x9000 || resp.getSW() == 0x6283) {
-			// The security domain AID is in FCI.
-			byte[] fci = resp.getData();
+		// The security domain AID is in FCI.
+		byte[] fci = resp.getData();
+
+		// Skip template information and find tag 0x84
+		short aid_offset = TLVUtils.findTag(fci, TLVUtils.skipTagAndLength(fci, (short) 0, (byte) 0x6F), (byte) 0x84);
+		int aid_length = TLVUtils.getTagLength(fci, aid_offset);
 
-			// Skip template information and find tag 0x84
-			short aid_offset = TLVUtils.findTag(fci, TLVUtils.skipTagAndLength(fci, (short) 0, (byte) 0x6F), (byte) 0x84);
-			int aid_length = TLVUtils.getTagLength(fci, aid_offset);
+		AID detectedAID = new AID(fci, aid_offset + 2, aid_length);
+		log.debug(Category.CARD, "Auto-detected ISD AID: {}", detectedAID);
+		if (sdAID != null && !detectedAID.equals(sdAID)) {
+			printStrictWarning("SD AID in FCI does not match the requested AID!");
+		}
+		this.sdAID = sdAID == null ? detectedAID : sdAID;
+
+		// Maximum length of data field in command message
+		int max = getMaxCommandLength(fci);
+		if (max > 0) {
+			log.debug(Category.CARD, "Maximum command data length: {}", max);
+			blockSize = Math.min(max, defaultLoadSize);
+		} else if (caps.blockSize != null) {
+			blockSize = caps.blockSize;
+		}
 
-			AID detectedAID = new AID(fci, aid_offset + 2, aid_length);
-			verbose("Auto-detected ISD AID: " + detectedAID);
-			if (sdAID != null && !detectedAID.equals(sdAID)) {
-				printStrictWarning("SD AID in FCI does not match the requested AID!");
+		if (sdAID == null && !detectedAID.equals(caps.sdAID)) {
+			caps.sdAID = detectedAID;
+			rememberCapabilities();
+		}
+		if (max > 0 && (caps.blockSize == null || caps.blockSize != blockSize)) {
+			caps.blockSize = blockSize;
+			rememberCapabilities();
+		}
+		return true;
+	}
+
+	// Tag 9F65 from the proprietary template (A5) of FCI, or -1
+	static int getMaxCommandLength(byte[] fci) {
+		int offset = 0;
+		int end = fci.length;
+		while (offset < end) {
+			int tag = fci[offset++] & 0xFF;
+			if ((tag & 0x1F) == 0x1F && offset < end) {
+				tag = (tag << 8) | (fci[offset++] & 0xFF);
+			}
+			if (offset >= end)
+				break;
+			int len = fci[offset++] & 0xFF;
+			if (len == 0x81 && offset < end) {
+				len = fci[offset++] & 0xFF;
+			}
+			if (tag == 0x6F || tag == 0xA5) {
+				// Descend into template
+				end = Math.min(end, offset + len);
+				continue;
 			}
-			this.sdAID = sdAID == null ? detectedAID : sdAID;
-			return true;
-			// TODO: parse the maximum command size as well and use with defaultLoadSize
+			if (tag == 0x9F65 && offset + len <= end) {
+				int v = 0;
+				for (int i = 0; i < len; i++) {
+					v = (v << 8) | (fci[offset + i] & 0xFF);
+				}
+				return v;
+			}
+			offset += len;
 		}
-		return false;
+		return -1;
 	}
 
 	/**
@@ -227,31 +470,85 @@ public class GlobalPlatform {
 	}
 
 
-	public List<GPKeySet.GPKey> getKeyInfoTemplate() throws CardException, GPException {
-		// Key Information Template
-		CommandAPDU command = new CommandAPDU(getGPCLA(), ISO7816.INS_GET_DATA, 0x00, 0xE0, 256);
+	// GET DATA with GP CLA, falling back to ISO CLA. Outside of a secure
+	// channel the CLA that worked last time is tried first.
+	private ResponseAPDU getData(int p1, int p2) throws CardException, GPException {
+		int cla = getGPCLA();
+		if (wrapper == null && caps.cla != null) {
+			cla = caps.cla;
+		}
+		CommandAPDU command = new CommandAPDU(cla, ISO7816.INS_GET_DATA, p1, p2, 256);
 		ResponseAPDU resp = always_transmit(command);
 
 		if (resp.getSW() == ISO7816.SW_CLA_NOT_SUPPORTED) {
-			command = new CommandAPDU(ISO7816.CLA_ISO7816, ISO7816.INS_GET_DATA, 0x00, 0xE0, 256);
+			cla = cla == ISO7816.CLA_ISO7816 ? getGPCLA() : ISO7816.CLA_ISO7816;
+			command = new CommandAPDU(cla, ISO7816.INS_GET_DATA, p1, p2, 256);
 			resp = always_transmit(command);
 		}
-		if (resp.getSW() == ISO7816.SW_NO_ERROR) {
-			return GPData.get_key_template_list(resp.getData(), SHORT_0);
-		} else {
-			verbose("GET DATA(Key Information Template) not supported");
+		if (wrapper == null && resp.getSW() != ISO7816.SW_CLA_NOT_SUPPORTED && (caps.cla == null || caps.cla != cla)) {
+			caps.cla = cla;
+			rememberCapabilities();
+		}
+		return resp;
+	}
+
+	/**
+	 * GET DATA objects of the card, remembered for this session.
+	 */
+	public CardProfile getProfile() {
+		return profile;
+	}
+
+	// Used by CardProfile, returns null if the object is not available
+	byte[] fetchData(int tag) throws CardException, GPException {
+		ResponseAPDU resp = null;
+		switch (tag) {
+		case CardProfile.CPLC:
+			return fetchCPLC();
+		case CardProfile.CARD_DATA:
+			return fetchCardData();
+		case CardProfile.KEY_INFO:
+			resp = getData(0x00, 0xE0);
+			if (resp.getSW() == ISO7816.SW_NO_ERROR) {
+				return resp.getData();
+			}
+			log.debug(Category.KEYS, "GET DATA(Key Information Template) not supported");
+			return null;
+		default:
+			resp = getData(tag >> 8, tag & 0xFF);
+			if (resp.getSW() == ISO7816.SW_NO_ERROR) {
+				return resp.getData();
+			}
+			if (log.isEnabled(Category.CARD, Level.DEBUG))
+				log.debug(Category.CARD, String.format("GET DATA(%04X) returned SW: %s", tag, GPUtils.swToString(resp.getSW())));
+			return null;
 		}
-		return GPData.get_key_template_list(null, SHORT_0);
+	}
+
+	public List<GPKeySet.GPKey> getKeyInfoTemplate() throws CardException, GPException {
+		return profile.getKeyInfoTemplate();
 	}
 
 	public byte[] fetchCardData() throws CardException, GPException {
+		if (Boolean.FALSE.equals(caps.cardData)) {
+			log.debug(Category.CARD, "GET DATA(CardData) not supported by this card type");
+			return null;
+		}
 		// Card data
 		CommandAPDU command = new CommandAPDU(getGPCLA(), ISO7816.INS_GET_DATA, 0x00, 0x66, 256);
 		ResponseAPDU resp = always_transmit(command);
 		if (resp.getSW() == 0x6A86) {
-			verbose("GET DATA(CardData) not supported, Open Platform 2.0.1 card? " + GPUtils.swToString(resp.getSW()));
+			log.debug(Category.CARD, "GET DATA(CardData) not supported, Open Platform 2.0.1 card? {}", GPUtils.swToString(resp.getSW()));
+			if (caps.cardData == null) {
+				caps.cardData = false;
+				rememberCapabilities();
+			}
 			return null;
 		} else if (resp.getSW() == 0x9000) {
+			if (!Boolean.TRUE.equals(caps.cardData)) {
+				caps.cardData = true;
+				rememberCapabilities();
+			}
 			return resp.getData();
 		}
 		return null;
@@ -268,30 +565,25 @@ public class GlobalPlatform {
 		System.out.println("***** GET DATA:");
 
 		// Issuer Identification Number (IIN)
-		CommandAPDU command = new CommandAPDU(CLA_GP, ISO7816.INS_GET_DATA, 0x00, 0x42, 256);
-		ResponseAPDU resp = channel.transmit(command);
-		if (resp.getSW() == 0x9000) {
-			System.out.println("IIN " + HexUtils.encodeHexString(resp.getData()));
+		byte[] iin = profile.getIIN();
+		if (iin != null) {
+			System.out.println("IIN " + HexUtils.encodeHexString(iin));
 		} else {
 			System.out.println("GET DATA(IIN) not supported");
 		}
 
 		// Card Image Number (CIN)
-		command = new CommandAPDU(CLA_GP, ISO7816.INS_GET_DATA, 0x00, 0x45, 256);
-		resp = channel.transmit(command);
-		if (resp.getSW() == 0x9000) {
-			System.out.println("CIN " + HexUtils.encodeHexString(resp.getData()));
+		byte[] cin = profile.getCIN();
+		if (cin != null) {
+			System.out.println("CIN " + HexUtils.encodeHexString(cin));
 		} else {
 			System.out.println("GET DATA(CIN) not supported");
 		}
 
 		// Sequence Counter of the default Key Version Number
-		command = new CommandAPDU(CLA_GP, ISO7816.INS_GET_DATA, 0x00, 0xC1, 256);
-		resp = channel.transmit(command);
-		if (resp.getSW() == 0x9000) {
-			byte [] ssc = resp.getData();
-			TLVUtils.expectTag(ssc, SHORT_0, (byte) 0xC1);
-			System.out.println("SSC " + HexUtils.encodeHexString(TLVUtils.getTLVValueAsBytes(ssc, SHORT_0)));
+		byte[] ssc = profile.getSSC();
+		if (ssc != null) {
+			System.out.println("SSC " + HexUtils.encodeHexString(ssc));
 		} else {
 			System.out.println("GET DATA(SSC) not supported");
 		}
@@ -299,26 +591,29 @@ public class GlobalPlatform {
 	}
 
 	public byte[] fetchCPLC() throws CardException, GPException {
-		CommandAPDU command = new CommandAPDU(getGPCLA(), ISO7816.INS_GET_DATA, 0x9F, 0x7F, 256);
-		ResponseAPDU resp = always_transmit(command);
-		// If GP CLA fails, try with ISO
-		if (resp.getSW() == ISO7816.SW_CLA_NOT_SUPPORTED) {
-			command = new CommandAPDU(ISO7816.CLA_ISO7816, ISO7816.INS_GET_DATA, 0x9F, 0x7F, 256);
-			resp = always_transmit(command);
-		}
-
+		ResponseAPDU resp = getData(0x9F, 0x7F);
 		if (resp.getSW() == ISO7816.SW_NO_ERROR) {
-			return resp.getData();
+			byte[] cplc = resp.getData();
+			// Verify that this is the card type we remember
+			String type = CapabilityCache.getCardType(cplc);
+			if (type != null && !type.equals(caps.cplc)) {
+				if (caps.cplc != null) {
+					log.debug(Category.CARD, "Card type differs from the remembered one, forgetting capabilities");
+					caps = new CapabilityCache.Capabilities();
+					caps.sdAID = sdAID;
+				}
+				caps.cplc = type;
+				rememberCapabilities();
+			}
+			return cplc;
 		} else {
-			verbose("GET DATA(CPLC) returned SW: " + GPUtils.swToString(resp.getSW()));
+			log.debug(Category.CARD, "GET DATA(CPLC) returned SW: {}", GPUtils.swToString(resp.getSW()));
 		}
 		return null;
 	}
 
 	public byte[] getCPLC() throws CardException, GPException {
-		if (cplc == null)
-			cplc = fetchCPLC();
-		return cplc;
+		return profile.getCPLC();
 	}
 
 	/**
@@ -334,6 +629,13 @@ public class GlobalPlatform {
 
 		this.staticKeys = staticKeys;
 		GPKeySet sessionKeys = null;
+		secure = false;
+
+		// R-ENC requires R-MAC and ENC
+		if (securityLevel.contains(APDUMode.RENC)) {
+			securityLevel.add(APDUMode.RMAC);
+			securityLevel.add(APDUMode.ENC);
+		}
 
 		// ENC requires MAC
 		if (securityLevel.contains(APDUMode.ENC)) {
@@ -342,9 +644,7 @@ public class GlobalPlatform {
 
 		// Generate host challenge
 		if (host_challenge == null) {
-			host_challenge = new byte[8];
-			SecureRandom sr = new SecureRandom();
-			sr.nextBytes(host_challenge);
+			host_challenge = getRandom().challenge(8);
 		}
 
 		// P1 key version (SCP1)
@@ -352,8 +652,9 @@ public class GlobalPlatform {
 		// TODO: use it here for KeyID?
 		CommandAPDU initUpdate = new CommandAPDU(CLA_GP, INS_INITIALIZE_UPDATE, staticKeys.getKeyVersion(), staticKeys.getKeyID(), host_challenge);
 
-		ResponseAPDU response = channel.transmit(initUpdate);
+		ResponseAPDU response = transmitRaw(initUpdate);
 		int sw = response.getSW();
+		profile.invalidate(CardProfile.SSC);
 
 		// Detect and report locked cards in a more sensible way.
 		if ((sw == ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED) || (sw == ISO7816.SW_AUTHENTICATION_METHOD_BLOCKED)) {
@@ -372,6 +673,7 @@ public class GlobalPlatform {
 		int offset = 0;
 		byte diversification_data[] = Arrays.copyOfRange(update_response, 0, 10);
 		offset += diversification_data.length;
+		diversificationData = diversification_data;
 		// Get used key version from response
 		int keyVersion = update_response[offset] & 0xFF;
 		offset++;
@@ -394,8 +696,25 @@ public class GlobalPlatform {
 		byte card_cryptogram[] = Arrays.copyOfRange(update_response, offset, offset + 8);
 		offset += card_cryptogram.length;
 
-		verbose("Host challenge: " + HexUtils.encodeHexString(host_challenge));
-		verbose("Card challenge: " + HexUtils.encodeHexString(card_challenge));
+		// Keys of this card, if known
+		if (keyStore != null) {
+			GPKeySet stored;
+			try {
+				stored = keyStore.find(diversification_data, profile.isKnown(CardProfile.CPLC) ? getCPLC() : null);
+			} catch (IOException e) {
+				throw new GPException("Could not read key store: " + e.getMessage());
+			}
+			if (stored != null) {
+				log.debug(Category.KEYS, "Using keys of {} from key store", diversification_data);
+				staticKeys = stored;
+				this.staticKeys = staticKeys;
+			} else {
+				log.debug(Category.KEYS, "Card {} not in key store", diversification_data);
+			}
+		}
+
+		log.debug(Category.SCP, "Host challenge: {}", host_challenge);
+		log.debug(Category.SCP, "Card challenge: {}", card_challenge);
 
 		// Verify response
 		// If using explicit key version, it must match.
@@ -403,8 +722,8 @@ public class GlobalPlatform {
 			throw new GPException("Key version mismatch: " + staticKeys.getKeyVersion() + " != " + keyVersion);
 		}
 
-		verbose("Card reports SCP0" + scpMajorVersion + " with version " + keyVersion + " keys");
-		verbose("Master keys: " + staticKeys);
+		log.debug(Category.SCP, "Card reports SCP0{} with version {} keys", scpMajorVersion, keyVersion);
+		log.debug(Category.KEYS, "Master keys: {}", staticKeys);
 
 		// Set default SCP version based on major version, if not explicitly known.
 		if (scpVersion == SCP_ANY) {
@@ -413,11 +732,20 @@ public class GlobalPlatform {
 			} else if (scpMajorVersion == 2) {
 				scpVersion = SCP_02_15;
 			} else if (scpMajorVersion == 3) {
-				verbose("SCP03 i=" + scp_i);
+				log.debug(Category.SCP, "SCP03 i={}", scp_i);
 				scpVersion = 3; // FIXME: the symbolic numbering of versions needs to be gixed.
 			}
+			// Remember what the card reports
+			if (caps.scp == null || caps.scp != scpMajorVersion || (scp_i != -1 && (caps.scp_i == null || caps.scp_i != scp_i))) {
+				if (caps.scp != null) {
+					log.debug(Category.SCP, "Card reports SCP0{} but SCP0{} was remembered", scpMajorVersion, caps.scp);
+				}
+				caps.scp = scpMajorVersion;
+				caps.scp_i = scp_i == -1 ? null : scp_i;
+				rememberCapabilities();
+			}
 		} else if (scpVersion != scpMajorVersion) {
-			verbose("Overriding SCP version: card reports " + scpMajorVersion + " but user requested " + scpVersion);
+			log.debug(Category.SCP, "Overriding SCP version: card reports {} but user requested {}", scpMajorVersion, scpVersion);
 			scpMajorVersion = scpVersion;
 			if (scpVersion == 1) {
 				scpVersion = SCP_01_05;
@@ -430,78 +758,86 @@ public class GlobalPlatform {
 
 		// Remove RMAC if SCP01 TODO: this should be generic sanitizer somewhere
 		if (scpMajorVersion == 1 && securityLevel.contains(APDUMode.RMAC)) {
-			verbose("SCP01 does not support RMAC, removing.");
+			log.debug(Category.SCP, "SCP01 does not support RMAC, removing.");
 			securityLevel.remove(APDUMode.RMAC);
 		}
+		// Only SCP03 knows about R-ENC
+		if (scpMajorVersion != 3 && securityLevel.contains(APDUMode.RENC)) {
+			log.debug(Category.SCP, "SCP0{} does not support RENC, removing.", scpMajorVersion);
+			securityLevel.remove(APDUMode.RENC);
+		}
 
 		// Response processed. Derive keys.
 
 		// Only diversify default key sets that require it.
 		// FIXME: keyset version does not matter here.
+		boolean diversify = false;
 		if ((staticKeys.getKeyVersion() == 0) || (staticKeys.getKeyVersion() == 255)) {
-			if (staticKeys.diversification != Diversification.NONE) {
-				staticKeys.diversify(update_response, scpMajorVersion);
-				verbose("Diversififed master keys: " + staticKeys);
-			}
-		}
-
-		// Check that SCP03 would be using AES keys
-		if (scpMajorVersion == 3) {
-			for (GPKey k: staticKeys.getKeys().values()) {
-				if (k.getType() != Type.AES) {
-					printStrictWarning("Usign SCP03 but key set has 3DES keys?");
-				}
-			}
+			diversify = staticKeys.diversification != Diversification.NONE && !staticKeys.isDiversified();
 		}
 
-		// Derive session keys
 		byte [] seq = null;
-		if (scpMajorVersion == 1) {
-			sessionKeys = deriveSessionKeysSCP01(staticKeys, host_challenge, card_challenge);
-		} else if (scpMajorVersion == 2) {
+		if (scpMajorVersion == 2) {
 			seq = Arrays.copyOfRange(update_response, 12, 14);
-			verbose("Sequnce counter: " + HexUtils.encodeHexString(seq));
-			sessionKeys = deriveSessionKeysSCP02(staticKeys, seq, false);
+			log.debug(Category.SCP, "Sequnce counter: {}", seq);
 		} else if (scpMajorVersion == 3) {
 			if (update_response.length == 32) {
 				seq = Arrays.copyOfRange(update_response, 29, 32);
 			}
-			sessionKeys = deriveSessionKeysSCP03(staticKeys, host_challenge, card_challenge);
 		}
-		verbose("Derived session keys: " + sessionKeys);
 
-		// Verify card cryptogram
-		byte[] my_card_cryptogram = null;
-		byte[] cntx = GPUtils.concatenate(host_challenge, card_challenge);
-		if (scpMajorVersion == 1 || scpMajorVersion == 2) {
-			my_card_cryptogram = GPCrypto.mac_3des_nulliv(sessionKeys.getKey(KeyType.ENC), cntx);
-		} else {
-			my_card_cryptogram = GPCrypto.scp03_kdf(sessionKeys.getKey(KeyType.MAC), (byte) 0x00, cntx, 64);
+		// Derive static and session keys and cryptograms
+		KeyDerivationService.Request request = new KeyDerivationService.Request(staticKeys, diversify, scpMajorVersion, diversification_data, seq, host_challenge, card_challenge);
+		KeyDerivationService.Result derived = null;
+		try {
+			derived = derivation.derive(Collections.singletonList(request)).get(0);
+		} catch (IOException e) {
+			throw new GPException("Key derivation failed: " + e.getMessage());
+		}
+		if (derived.isError()) {
+			throw new GPException(derived.error);
+		}
+		staticKeys = derived.staticKeys;
+		this.staticKeys = staticKeys;
+		sessionKeys = derived.sessionKeys;
+		if (diversify) {
+			log.debug(Category.KEYS, "Diversififed master keys: {}", staticKeys);
 		}
 
+		// Check that SCP03 would be using AES keys
+		if (scpMajorVersion == 3) {
+			for (GPKey k: staticKeys.getKeys().values()) {
+				if (k.getType() != Type.AES) {
+					printStrictWarning("Usign SCP03 but key set has 3DES keys?");
+				}
+			}
+		}
+		log.debug(Category.KEYS, "Derived session keys: {}", sessionKeys);
+
 		// This is the main check for possible successful authentication.
+		byte[] my_card_cryptogram = derived.card_cryptogram;
 		if (!Arrays.equals(card_cryptogram, my_card_cryptogram)) {
 			printStrictWarning("Card cryptogram invalid!\nCard: " + HexUtils.encodeHexString(card_cryptogram) + "\nHost: "+ HexUtils.encodeHexString(my_card_cryptogram) + "\n!!! DO NOT RE-TRY THE SAME COMMAND/KEYS OR YOU MAY BRICK YOUR CARD !!!");
 		} else {
-			verbose("Verified card cryptogram: " + HexUtils.encodeHexString(my_card_cryptogram));
+			log.debug(Category.SCP, "Verified card cryptogram: {}", my_card_cryptogram);
 		}
 
-		// Calculate host cryptogram and initialize SCP wrapper
-		byte[] host_cryptogram = null;
+		// Initialize SCP wrapper
+		byte[] host_cryptogram = derived.host_cryptogram;
 		if (scpMajorVersion == 1 || scpMajorVersion == 2) {
-			host_cryptogram = GPCrypto.mac_3des_nulliv(sessionKeys.getKey(KeyType.ENC), GPUtils.concatenate(card_challenge, host_challenge));
 			wrapper = new SCP0102Wrapper(sessionKeys, scpVersion, EnumSet.of(APDUMode.MAC), null, null);
 		} else {
-			host_cryptogram = GPCrypto.scp03_kdf(sessionKeys.getKey(KeyType.MAC), (byte) 0x01, cntx, 64);
 			wrapper = new SCP03Wrapper(sessionKeys, scpVersion, EnumSet.of(APDUMode.MAC), null, null);
 		}
+		wrapper.blockSize = blockSize;
 
-		verbose("Calculated host cryptogram: " + HexUtils.encodeHexString(host_cryptogram));
+		log.debug(Category.SCP, "Calculated host cryptogram: {}", host_cryptogram);
 		int P1 = APDUMode.getSetValue(securityLevel);
 		CommandAPDU externalAuthenticate = new CommandAPDU(CLA_MAC, ISO7816.INS_EXTERNAL_AUTHENTICATE_82, P1, 0, host_cryptogram);
 		response = transmit(externalAuthenticate);
 		check(response, "External authenticate failed");
 		wrapper.setSecurityLevel(securityLevel);
+		secure = true;
 
 		// FIXME: ugly stuff, ugly...
 		if (scpMajorVersion != 3) {
@@ -512,128 +848,61 @@ public class GlobalPlatform {
 		}
 	}
 
-	private GPKeySet deriveSessionKeysSCP01(GPKeySet staticKeys, byte[] host_challenge, byte[] card_challenge) {
-		GPKeySet sessionKeys = new GPKeySet();
+	public ResponseAPDU transmit(CommandAPDU command) throws CardException, GPException {
+		return transmitWrapped(wrap(command));
+	}
 
-		byte[] derivationData = new byte[16];
-		System.arraycopy(card_challenge, 4, derivationData, 0, 4);
-		System.arraycopy(host_challenge, 0, derivationData, 4, 4);
-		System.arraycopy(card_challenge, 0, derivationData, 8, 4);
-		System.arraycopy(host_challenge, 4, derivationData, 12, 4);
+	// Wrapping and transmission separately, so that the next command can be
+	// wrapped while the previous one is with the card
+	CommandAPDU wrap(CommandAPDU command) throws CardException {
+		return wrapper.wrap(command);
+	}
 
+	ResponseAPDU transmitWrapped(CommandAPDU wrapped) throws CardException, GPException {
+		ResponseAPDU wr = transmitRaw(wrapped);
+		// The card has dropped the secure channel: security status, or
+		// secure messaging data objects incorrect or missing
+		int sw = wr.getSW();
+		if (sw == ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED || sw == 0x6987 || sw == 0x6988)
+			secure = false;
 		try {
-			Cipher cipher = Cipher.getInstance("DESede/ECB/NoPadding");
-			for (KeyType v: KeyType.values()) {
-				if (v == KeyType.RMAC) // skip RMAC key
-					continue;
-				cipher.init(Cipher.ENCRYPT_MODE, staticKeys.getKeyFor(v));
-				GPKey nk = new GPKey(cipher.doFinal(derivationData), Type.DES3);
-				sessionKeys.setKey(v, nk);
-			}
-			// KEK is the same
-			sessionKeys.setKey(KeyType.KEK, staticKeys.getKey(KeyType.KEK));
-			return sessionKeys;
-		} catch (BadPaddingException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		} catch (NoSuchPaddingException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		} catch (InvalidKeyException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		} catch (IllegalBlockSizeException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
+			return wrapper.unwrap(wr);
+		} catch (GPException | RuntimeException e) {
+			// The MAC chain is broken, nothing more can be sent in this session
+			secure = false;
+			throw e;
 		}
 	}
 
-	private GPKeySet deriveSessionKeysSCP02(GPKeySet staticKeys, byte[] sequence, boolean implicitChannel) {
-		GPKeySet sessionKeys = new GPKeySet();
-
-		try {
-			Cipher cipher = Cipher.getInstance("DESede/CBC/NoPadding");
-
-			byte[] derivationData = new byte[16];
-			System.arraycopy(sequence, 0, derivationData, 2, 2);
-
-			byte[] constantMAC = new byte[] { (byte) 0x01, (byte) 0x01 };
-			System.arraycopy(constantMAC, 0, derivationData, 0, 2);
-			cipher.init(Cipher.ENCRYPT_MODE, staticKeys.getKeyFor(KeyType.MAC), GPCrypto.iv_null_des);
-			GPKey nk = new GPKey(cipher.doFinal(derivationData), Type.DES3);
-			sessionKeys.setKey(KeyType.MAC, nk);
-
-			// TODO: is this correct? - increment by one for all other than C-MAC
-			if (implicitChannel) {
-				TLVUtils.buffer_increment(derivationData, (short)2, (short)2);
-			}
+	// With R-MAC the responses are part of the MAC chain
+	boolean canWrapAhead() {
+		return !wrapper.rmac;
+	}
 
-			byte[] constantRMAC = new byte[] { (byte) 0x01, (byte) 0x02 };
-			System.arraycopy(constantRMAC, 0, derivationData, 0, 2);
-			cipher.init(Cipher.ENCRYPT_MODE, staticKeys.getKeyFor(KeyType.MAC), GPCrypto.iv_null_des);
-			nk = new GPKey(cipher.doFinal(derivationData), Type.DES3);
-			sessionKeys.setKey(KeyType.RMAC, nk);
-
-
-			byte[] constantENC = new byte[] { (byte) 0x01, (byte) 0x82 };
-			System.arraycopy(constantENC, 0, derivationData, 0, 2);
-			cipher.init(Cipher.ENCRYPT_MODE, staticKeys.getKeyFor(KeyType.ENC), GPCrypto.iv_null_des);
-			nk = new GPKey(cipher.doFinal(derivationData), Type.DES3);
-			sessionKeys.setKey(KeyType.ENC, nk);
-
-			byte[] constantDEK = new byte[] { (byte) 0x01, (byte) 0x81 };
-			System.arraycopy(constantDEK, 0, derivationData, 0, 2);
-			cipher.init(Cipher.ENCRYPT_MODE, staticKeys.getKeyFor(KeyType.KEK), GPCrypto.iv_null_des);
-			nk = new GPKey(cipher.doFinal(derivationData), Type.DES3);
-			sessionKeys.setKey(KeyType.KEK, nk);
-			return sessionKeys;
-
-		} catch (BadPaddingException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		} catch (NoSuchPaddingException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		} catch (InvalidKeyException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		} catch (IllegalBlockSizeException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		} catch (InvalidAlgorithmParameterException e) {
-			throw new RuntimeException("Session keys calculation failed.", e);
-		}
-	}
-
-	private GPKeySet deriveSessionKeysSCP03(GPKeySet staticKeys, byte[] host_challenge, byte[] card_challenge) {
-		GPKeySet sessionKeys = new GPKeySet();
-		final byte mac_constant = 0x06;
-		final byte enc_constant = 0x04;
-		final byte rmac_constant = 0x07;
-
-		byte []context = GPUtils.concatenate(host_challenge, card_challenge);
-
-		// MAC
-		byte []kdf = GPCrypto.scp03_kdf(staticKeys.getKey(KeyType.MAC), mac_constant, context, 128);
-		sessionKeys.setKey(KeyType.MAC, new GPKey(kdf, Type.AES));
-		// ENC
-		kdf = GPCrypto.scp03_kdf(staticKeys.getKey(KeyType.ENC), enc_constant, context, 128);
-		sessionKeys.setKey(KeyType.ENC, new GPKey(kdf, Type.AES));
-		// RMAC
-		kdf = GPCrypto.scp03_kdf(staticKeys.getKey(KeyType.MAC), rmac_constant, context, 128);
-		sessionKeys.setKey(KeyType.RMAC, new GPKey(kdf, Type.AES));
-
-		// KEK remains the same
-		sessionKeys.setKey(KeyType.KEK, staticKeys.getKey(KeyType.KEK));
-		return sessionKeys;
+	// Data field length available in a command of the secure channel
+	int getPayloadSize() {
+		return wrapper.getBlockSize();
 	}
 
+	/**
+	 * True if a secure channel has been opened with {@link #openSecureChannel}
+	 * and nothing seen since indicates that the card has closed it.
+	 */
+	public boolean isSecureChannelOpen() {
+		return secure;
+	}
 
-	public ResponseAPDU transmit(CommandAPDU command) throws CardException, GPException {
-		CommandAPDU wc = wrapper.wrap(command);
-		ResponseAPDU wr = channel.transmit(wc);
-		return wrapper.unwrap(wr);
+	// javax.smartcardio puts the channel number into CLA, so that secure
+	// messaging is always computed over the CLA of the basic channel.
+	private ResponseAPDU transmitRaw(CommandAPDU command) throws CardException {
+		synchronized (channel.getCard()) {
+			return channel.transmit(command);
+		}
 	}
 
 	private ResponseAPDU always_transmit(CommandAPDU command) throws CardException, GPException {
 		if (wrapper == null)
-			return channel.transmit(command);
+			return transmitRaw(command);
 		else
 			return transmit(command);
 	}
@@ -641,7 +910,26 @@ public class GlobalPlatform {
 
 	public AIDRegistry getRegistry() throws GPException, CardException{
 		if (dirty) {
-			registry = getStatus();
+			if (inventory == null) {
+				registry = getStatus();
+			} else {
+				String id = CardInventory.getCardID(getCPLC());
+				CardInventory.Snapshot known = id == null ? null : inventory.get(id);
+				if (!modified && known != null && inventoryMaxAge > 0 && known.isFresh(inventoryMaxAge) && known.sdAID != null && known.sdAID.equals(sdAID)) {
+					log.debug(Category.REGISTRY, "Using registry of {} from inventory", id);
+					registry = known.registry;
+				} else {
+					registry = getStatus();
+					if (id != null) {
+						byte[] atr = channel.getCard().getATR().getBytes();
+						try {
+							inventory.record(new CardInventory.Snapshot(id, System.currentTimeMillis(), atr, getCPLC(), sdAID, getKeyInfoTemplate(), registry));
+						} catch (IOException e) {
+							log.debug(Category.REGISTRY, "Could not record card to inventory: {}", e.getMessage());
+						}
+					}
+				}
+			}
 			dirty = false;
 		}
 		return registry;
@@ -663,6 +951,7 @@ public class GlobalPlatform {
 		}
 		byte[] hash = useHash ? cap.getLoadFileDataHash(includeDebug) : new byte[0];
 		int len = cap.getCodeLength(includeDebug);
+		checkLoadResources(len);
 		byte[] loadParams = loadParam ? new byte[] { (byte) 0xEF, 0x04, (byte) 0xC6, 0x02, (byte) ((len & 0xFF00) >> 8),
 				(byte) (len & 0xFF) } : new byte[0];
 
@@ -670,10 +959,10 @@ public class GlobalPlatform {
 
 		try {
 			bo.write(cap.getPackageAID().getLength());
-			bo.write(cap.getPackageAID().getBytes());
+			bo.write(cap.getPackageAID().bytes());
 
 			bo.write(sdAID.getLength());
-			bo.write(sdAID.getBytes());
+			bo.write(sdAID.bytes());
 
 			bo.write(hash.length);
 			bo.write(hash);
@@ -695,6 +984,65 @@ public class GlobalPlatform {
 			response = transmit(load);
 			check(response, "LOAD failed");
 		}
+		dirty = modified = true;
+		profile.invalidate(CardProfile.RESOURCES);
+		String id = manifest == null ? null : CardInventory.getCardID(getCPLC());
+		if (id != null) {
+			try {
+				manifest.put(id, cap.getPackageAID(), cap.getLoadFileDataHash(includeDebug));
+			} catch (IOException e) {
+				log.debug(Category.LOAD, "Could not record package to manifest: {}", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Starts sending data with STORE DATA to the security domain or, after
+	 * {@link #installForPersonalization(AID)}, to an application.
+	 *
+	 * @param format
+	 *            {@link StoreData#DGI}, {@link StoreData#BER_TLV} or 0
+	 */
+	public StoreData storeData(int format) {
+		if (wrapper == null)
+			throw new IllegalStateException("No secure channel");
+		return new StoreData(this, format);
+	}
+
+	/**
+	 * Makes the following STORE DATA commands go to the application.
+	 */
+	public void installForPersonalization(AID aid) throws CardException, GPException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		bo.write(0);
+		bo.write(0);
+		bo.write(aid.getLength());
+		bo.write(aid.bytes(), 0, aid.getLength());
+		bo.write(0);
+		bo.write(0);
+		bo.write(0);
+		CommandAPDU install = new CommandAPDU(CLA_GP, INS_INSTALL, 0x20, 0x00, bo.toByteArray());
+		ResponseAPDU response = transmit(install);
+		check(response, "Install for personalization failed");
+	}
+
+	/**
+	 * Encrypts sensitive data (such as DGI values) the way keys are
+	 * encrypted in PUT KEY. Data that is not a multiple of the block size
+	 * is padded with 0x80 0x00...
+	 */
+	byte[] encryptData(byte[] data) {
+		GPKey kek = scpMajorVersion == 1 ? staticKeys.getKey(KeyType.KEK) : wrapper.sessionKeys.getKey(KeyType.KEK);
+		int bs = kek.getType() == Type.AES ? 16 : 8;
+		if (data.length % bs != 0)
+			data = GPCrypto.pad80(data, bs);
+		byte[] result = new byte[data.length];
+		if (kek.getType() == Type.AES) {
+			GPCrypto.getBackend().cbc(Type.AES, true, kek.getValue(), null, data, 0, data.length, result, 0);
+		} else {
+			GPCrypto.getBackend().ecb(Type.DES3, true, kek.getValue(), data, 0, data.length, result, 0);
+		}
+		return result;
 	}
 
 	/**
@@ -741,13 +1089,13 @@ public class GlobalPlatform {
 		ByteArrayOutputStream bo = new ByteArrayOutputStream();
 		try {
 			bo.write(packageAID.getLength());
-			bo.write(packageAID.getBytes());
+			bo.write(packageAID.bytes());
 
 			bo.write(appletAID.getLength());
-			bo.write(appletAID.getBytes());
+			bo.write(appletAID.bytes());
 
 			bo.write(instanceAID.getLength());
-			bo.write(instanceAID.getBytes());
+			bo.write(instanceAID.bytes());
 
 			bo.write(1);
 			bo.write(privileges);
@@ -764,7 +1112,8 @@ public class GlobalPlatform {
 		CommandAPDU install = new CommandAPDU(CLA_GP, INS_INSTALL, 0x0C, 0x00, bo.toByteArray());
 		ResponseAPDU response = transmit(install);
 		check(response, "Install for Install and make selectable failed");
-		dirty = true;
+		dirty = modified = true;
+		profile.invalidate(CardProfile.RESOURCES);
 	}
 
 
@@ -776,7 +1125,7 @@ public class GlobalPlatform {
 			bo.write(0);
 			bo.write(0);
 			bo.write(aid.getLength());
-			bo.write(aid.getBytes());
+			bo.write(aid.bytes());
 			bo.write(1);
 			bo.write(privileges);
 			bo.write(0);
@@ -788,15 +1137,30 @@ public class GlobalPlatform {
 		CommandAPDU install = new CommandAPDU(CLA_GP, INS_INSTALL, 0x08, 0x00, bo.toByteArray());
 		ResponseAPDU response = transmit(install);
 		check(response, "Install for make selectable failed");
-		dirty = true;
+		dirty = modified = true;
+		profile.invalidate(CardProfile.RESOURCES);
 	}
 
+	/**
+	 * Removes the default selected applet. With deps, the load file it was
+	 * created from is deleted together with all its instances.
+	 */
 	public void uninstallDefaultSelected(boolean deps) throws CardException, GPException {
-		AID def = getRegistry().getDefaultSelectedAID();
-		if (def != null) {
-			deleteAID(def, deps); // Can not work, need to locate the executable module
+		AIDRegistry reg = getRegistry();
+		AID def = reg.getDefaultSelectedAID();
+		if (def == null) {
+			log.debug(Category.REGISTRY, "No default selected applet!");
+			return;
+		}
+		AID pkg = reg.getPackageAID(def);
+		if (deps && pkg != null) {
+			log.debug(Category.LOAD, "Deleting {}, the load file of default selected {}", pkg, def);
+			deleteAID(pkg, true);
 		} else {
-			verbose("No default selected applet!");
+			if (deps) {
+				log.debug(Category.LOAD, "Load file of {} not found, deleting only the instance", def);
+			}
+			deleteAID(def, false);
 		}
 	}
 
@@ -818,14 +1182,23 @@ public class GlobalPlatform {
 		try {
 			bo.write(0x4f);
 			bo.write(aid.getLength());
-			bo.write(aid.getBytes());
+			bo.write(aid.bytes());
 		} catch (IOException ioe) {
 			throw new RuntimeException(ioe);
 		}
 		CommandAPDU delete = new CommandAPDU(CLA_GP, INS_DELETE, 0x00, deleteDeps ? 0x80 : 0x00, bo.toByteArray());
 		ResponseAPDU response = transmit(delete);
 		check(response, "Deletion failed");
-		dirty = true;
+		dirty = modified = true;
+		profile.invalidate(CardProfile.RESOURCES);
+		String id = manifest == null ? null : CardInventory.getCardID(getCPLC());
+		if (id != null) {
+			try {
+				manifest.remove(id, aid);
+			} catch (IOException e) {
+				log.debug(Category.LOAD, "Could not update manifest: {}", e.getMessage());
+			}
+		}
 	}
 
 	// FIXME: remove the withCheck parameter, as always true?
@@ -837,15 +1210,15 @@ public class GlobalPlatform {
 				// Length
 				baos.write(16);
 				// Encrypt key with KEK
-				Cipher cipher;
-				cipher = Cipher.getInstance("DESede/ECB/NoPadding");
-				cipher.init(Cipher.ENCRYPT_MODE, kek.getKey());
-				baos.write(cipher.doFinal(key.getValue(), 0, 16));
+				CryptoBackend backend = GPCrypto.getBackend();
+				byte[] cgram = new byte[16];
+				backend.ecb(Type.DES3, true, kek.getValue(), key.getValue(), 0, 16, cgram, 0);
+				baos.write(cgram);
 				if (withCheck) {
 					// key check value, 3 bytes with new key over 8 null bytes
 					baos.write(3);
-					cipher.init(Cipher.ENCRYPT_MODE, key.getKey());
-					byte check[] = cipher.doFinal(GPCrypto.null_bytes_8);
+					byte check[] = new byte[8];
+					backend.ecb(Type.DES3, true, key.getValue(), GPCrypto.null_bytes_8, 0, 8, check, 0);
 					baos.write(check, 0, 3);
 				} else {
 					baos.write(0);
@@ -854,7 +1227,7 @@ public class GlobalPlatform {
 				//	baos.write(0xFF);
 				baos.write(0x88); // AES
 				baos.write(0x11); // 128b keys only currently
-				byte [] cgram = GPCrypto.scp03_encrypt_key(kek, key);
+				byte [] cgram = GPCrypto.scp03_encrypt_key(kek, key, getRandom());
 				baos.write(cgram.length);
 				baos.write(cgram);
 				byte [] check = GPCrypto.scp03_key_check_value(key);
@@ -866,16 +1239,6 @@ public class GlobalPlatform {
 			return baos.toByteArray();
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} catch (InvalidKeyException e) {
-			throw new RuntimeException(e);
-		} catch (IllegalBlockSizeException e) {
-			throw new RuntimeException(e);
-		} catch (BadPaddingException e) {
-			throw new RuntimeException(e);
-		} catch (NoSuchAlgorithmException e) {
-			throw new RuntimeException(e);
-		} catch (NoSuchPaddingException e) {
-			throw new RuntimeException(e);
 		}
 	}
 
@@ -886,9 +1249,11 @@ public class GlobalPlatform {
 		}
 
 		// Debug
-		verbose("Replace: " + replace);
-		for (GPKey k: keys) {
-			verbose("PUT KEY:" + k);
+		if (log.isEnabled(Category.KEYS, Level.DEBUG)) {
+			log.debug(Category.KEYS, "Replace: {}", replace);
+			for (GPKey k: keys) {
+				log.debug(Category.KEYS, "PUT KEY:{}", k);
+			}
 		}
 
 		// Check for sainity.
@@ -951,14 +1316,19 @@ public class GlobalPlatform {
 		CommandAPDU command = new CommandAPDU(CLA_GP, INS_PUT_KEY, P1, P2, bo.toByteArray());
 		ResponseAPDU response = transmit(command);
 		check(response,"PUT KEY failed");
+		profile.invalidate(CardProfile.KEY_INFO, CardProfile.SSC, CardProfile.RESOURCES);
+		dirty = modified = true;
 	}
 
 
-	private byte[] getConcatenatedStatus(int p1, byte[] data) throws CardException, GPException {
-		CommandAPDU getStatus = new CommandAPDU(CLA_GP, INS_GET_STATUS, p1, 0x00, data);
+	private byte[] getConcatenatedStatus(int p1, int p2, byte[] data) throws CardException, GPException {
+		CommandAPDU getStatus = new CommandAPDU(CLA_GP, INS_GET_STATUS, p1, p2, data);
 		ResponseAPDU response = transmit(getStatus);
 		int sw = response.getSW();
 		if ((sw != ISO7816.SW_NO_ERROR) && (sw != 0x6310)) {
+			// Nothing found is fine
+			if (p2 == 0x02 && sw != 0x6A88)
+				throw new GPException(sw, "GET STATUS in tagged format failed");
 			return response.getData(); // Should be empty
 		}
 		ByteArrayOutputStream bo = new ByteArrayOutputStream();
@@ -966,7 +1336,7 @@ public class GlobalPlatform {
 			bo.write(response.getData());
 
 			while (response.getSW() == 0x6310) {
-				getStatus = new CommandAPDU(CLA_GP, INS_GET_STATUS, p1, 0x01, data);
+				getStatus = new CommandAPDU(CLA_GP, INS_GET_STATUS, p1, p2 | 0x01, data);
 				response = transmit(getStatus);
 
 				bo.write(response.getData());
@@ -993,15 +1363,32 @@ public class GlobalPlatform {
 	 * @throws GPException
 	 */
 	private AIDRegistry getStatus() throws CardException, GPException {
+		if (caps.taggedStatus == null || caps.taggedStatus) {
+			try {
+				AIDRegistry registry = getTaggedStatus();
+				if (caps.taggedStatus == null) {
+					caps.taggedStatus = true;
+					rememberCapabilities();
+				}
+				return registry;
+			} catch (GPException e) {
+				// Only when the card says it does not know the format
+				if (e.sw != 0x6A86 && e.sw != 0x6A80 && e.sw != 0x6D00)
+					throw e;
+				log.debug(Category.REGISTRY, "Falling back to legacy GET STATUS: {}", GPUtils.swToString(e.sw));
+				caps.taggedStatus = false;
+				rememberCapabilities();
+			}
+		}
 		AIDRegistry registry = new AIDRegistry();
 		int[] p1s = { 0x80, 0x40 };
 		for (int p1 : p1s) {
 			// parse data no sub-AID
 			int index = 0;
-			byte[] data = getConcatenatedStatus(p1, new byte[] { 0x4F, 0x00 });
+			byte[] data = getConcatenatedStatus(p1, 0x00, new byte[] { 0x4F, 0x00 });
 			while (index < data.length) {
 				int len = data[index++];
-				AID aid = new AID(data, index, len);
+				AID aid = AID.valueOf(data, index, len);
 				index += len;
 				int life_cycle = data[index++];
 				int privileges = data[index++];
@@ -1023,10 +1410,10 @@ public class GlobalPlatform {
 		p1s = new int[] { 0x20, 0x10 };
 		for (int p1 : p1s) {
 			int index = 0;
-			byte[] data = getConcatenatedStatus(p1, new byte[] { 0x4F, 0x00 });
+			byte[] data = getConcatenatedStatus(p1, 0x00, new byte[] { 0x4F, 0x00 });
 			while (index < data.length) {
 				int len = data[index++];
-				AID aid = new AID(data, index, len);
+				AID aid = AID.valueOf(data, index, len);
 				index += len;
 				AIDRegistryEntry entry = new AIDRegistryEntry(aid, data[index++], data[index++],
 						p1 == 0x10 ? AIDRegistryEntry.Kind.ExecutableLoadFilesAndModules : AIDRegistryEntry.Kind.ExecutableLoadFiles);
@@ -1034,7 +1421,7 @@ public class GlobalPlatform {
 					int num = data[index++];
 					for (int i = 0; i < num; i++) {
 						len = data[index++];
-						aid = new AID(data, index, len);
+						aid = AID.valueOf(data, index, len);
 						index += len;
 						entry.addExecutableAID(aid);
 					}
@@ -1045,6 +1432,91 @@ public class GlobalPlatform {
 		return registry;
 	}
 
+	// GET STATUS in the tagged format of GP 2.2, which also tells the load
+	// file of applications and the version of load files
+	private AIDRegistry getTaggedStatus() throws CardException, GPException {
+		AIDRegistry registry = new AIDRegistry();
+		int[] p1s = { 0x80, 0x40, 0x10 };
+		for (int p1 : p1s) {
+			byte[] data = getConcatenatedStatus(p1, 0x02, new byte[] { 0x4F, 0x00 });
+			int index = 0;
+			while (index < data.length) {
+				int[] entry = getTLV(data, index);
+				if (entry[0] != 0xE3)
+					throw new GPException("Invalid GET STATUS response: " + HexUtils.encodeHexString(data));
+				AID aid = null;
+				AID loadFile = null;
+				byte[] version = null;
+				int life_cycle = 0;
+				int privileges = 0;
+				List<AID> modules = new ArrayList<AID>();
+				int offset = entry[1];
+				while (offset < entry[1] + entry[2]) {
+					int[] tlv = getTLV(data, offset);
+					switch (tlv[0]) {
+					case 0x4F:
+						aid = AID.valueOf(data, tlv[1], tlv[2]);
+						break;
+					case 0x9F70:
+						life_cycle = data[tlv[1]];
+						break;
+					case 0xC5:
+						// First byte has the same meaning as in the legacy format
+						if (tlv[2] > 0)
+							privileges = data[tlv[1]];
+						break;
+					case 0xC4:
+						loadFile = AID.valueOf(data, tlv[1], tlv[2]);
+						break;
+					case 0xCE:
+						version = Arrays.copyOfRange(data, tlv[1], tlv[1] + tlv[2]);
+						break;
+					case 0x84:
+						modules.add(AID.valueOf(data, tlv[1], tlv[2]));
+						break;
+					}
+					offset = tlv[1] + tlv[2];
+				}
+				index = entry[1] + entry[2];
+
+				AIDRegistryEntry.Kind kind = AIDRegistryEntry.Kind.IssuerSecurityDomain;
+				if (p1 == 0x40) {
+					if ((privileges & 0x80) == 0) {
+						kind = AIDRegistryEntry.Kind.Application;
+					} else {
+						kind = AIDRegistryEntry.Kind.SecurityDomain;
+					}
+				} else if (p1 == 0x10) {
+					kind = modules.isEmpty() ? AIDRegistryEntry.Kind.ExecutableLoadFiles : AIDRegistryEntry.Kind.ExecutableLoadFilesAndModules;
+				}
+				AIDRegistryEntry e = new AIDRegistryEntry(aid, life_cycle, privileges, kind);
+				for (AID module : modules) {
+					e.addExecutableAID(module);
+				}
+				e.setLoadFileAID(loadFile);
+				e.setVersion(version);
+				registry.add(e);
+			}
+		}
+		return registry;
+	}
+
+	// Returns tag, offset of value and length of value of the BER-TLV at offset
+	static int[] getTLV(byte[] data, int offset) {
+		int tag = data[offset++] & 0xFF;
+		if ((tag & 0x1F) == 0x1F) {
+			tag = (tag << 8) | (data[offset++] & 0xFF);
+		}
+		int len = data[offset++] & 0xFF;
+		if (len == 0x81) {
+			len = data[offset++] & 0xFF;
+		} else if (len == 0x82) {
+			len = ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+			offset += 2;
+		}
+		return new int[] { tag, offset, len };
+	}
+
 
 	private static void check(ResponseAPDU r, String msg) throws GPException {
 		int sw = r.getSW();
@@ -1155,16 +1627,9 @@ public class GlobalPlatform {
 					if (icv == null) {
 						icv = new byte[8];
 					} else if (icvEnc) {
-						Cipher c = null;
-						if (scp == 1) {
-							c = Cipher.getInstance(GPCrypto.DES3_ECB_CIPHER);
-							c.init(Cipher.ENCRYPT_MODE, sessionKeys.getKeyFor(KeyType.MAC));
-						} else {
-							c = Cipher.getInstance(GPCrypto.DES_ECB_CIPHER);
-							c.init(Cipher.ENCRYPT_MODE, sessionKeys.getKey(KeyType.MAC).getKey(Type.DES));
-						}
 						// encrypts the future ICV ?
-						icv = c.doFinal(icv);
+						byte[] key = sessionKeys.getKey(KeyType.MAC).getValue();
+						GPCrypto.getBackend().ecb(scp == 1 ? Type.DES3 : Type.DES, true, key, icv, 0, icv.length, icv, 0);
 					}
 
 					if (preAPDU) {
@@ -1206,9 +1671,9 @@ public class GlobalPlatform {
 					}
 					newLc += t.size() - origData.length;
 
-					Cipher c = Cipher.getInstance(GPCrypto.DES3_CBC_CIPHER);
-					c.init(Cipher.ENCRYPT_MODE, sessionKeys.getKeyFor(KeyType.ENC), GPCrypto.iv_null_des);
-					newData = c.doFinal(t.toByteArray());
+					byte[] plain = t.toByteArray();
+					newData = new byte[plain.length];
+					GPCrypto.getBackend().cbc(Type.DES3, true, sessionKeys.getKey(KeyType.ENC).getValue(), null, plain, 0, plain.length, newData, 0);
 					t.reset();
 				}
 				t.write(newCLA);
@@ -1229,18 +1694,6 @@ public class GlobalPlatform {
 				return wrapped;
 			} catch (IOException e) {
 				throw new RuntimeException("APDU wrapping failed", e);
-			} catch (NoSuchAlgorithmException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
-			} catch (NoSuchPaddingException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
-			} catch (InvalidKeyException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
-			} catch (InvalidAlgorithmParameterException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
-			} catch (IllegalBlockSizeException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
-			} catch (BadPaddingException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
 			}
 		}
 
@@ -1277,6 +1730,17 @@ public class GlobalPlatform {
 		byte [] chaining_value = new byte[16];
 		byte [] encryption_counter = new byte[16];
 
+		// Session state, keyed once and reused for every APDU
+		private final CryptoBackend.MacEngine cmac;
+		private final CryptoBackend.MacEngine rcmac;
+		private final CryptoBackend.BlockEngine ecb_enc;
+		private final CryptoBackend.BlockEngine ecb_dec;
+
+		// Scratch buffers for response processing
+		private final byte[] rmac_buffer = new byte[16];
+		private final byte[] icv = new byte[16];
+		private final byte[] block = new byte[16];
+
 		private SCP03Wrapper(GPKeySet sessionKeys, int scp, EnumSet<APDUMode> securityLevel, byte[] icv, byte[] ricv) {
 			this.sessionKeys = sessionKeys;
 			// initialize chaining value.
@@ -1284,92 +1748,132 @@ public class GlobalPlatform {
 			// initialize encryption counter.
 			System.arraycopy(GPCrypto.null_bytes_16, 0, encryption_counter, 0, GPCrypto.null_bytes_16.length);
 
+			CryptoBackend backend = GPCrypto.getBackend();
+			cmac = backend.cmac(sessionKeys.getKey(KeyType.MAC).getValue());
+			rcmac = backend.cmac(sessionKeys.getKey(KeyType.RMAC).getValue());
+			ecb_enc = backend.blockCipher(Type.AES, true, sessionKeys.getKey(KeyType.ENC).getValue());
+			ecb_dec = backend.blockCipher(Type.AES, false, sessionKeys.getKey(KeyType.ENC).getValue());
 			setSecurityLevel(securityLevel);
 		}
+
 		@Override
 		protected CommandAPDU wrap(CommandAPDU command) throws CardException {
-			byte [] cmd_mac = null;
-
-			try {
-				int cla = command.getCLA();
-				int lc = command.getNc();
-				byte [] data = command.getData();
-
-				// Encrypt if needed
-				if (enc) {
-					cla = 0x84;
-					// Counter shall always be incremented
-					GPCrypto.buffer_increment(encryption_counter);
-					if (command.getData().length > 0) {
-						byte [] d = GPCrypto.pad80(command.getData(), 16);
-						// Encrypt with S-ENC, after increasing the counter
-						Cipher c = Cipher.getInstance(GPCrypto.AES_CBC_CIPHER);
-						c.init(Cipher.ENCRYPT_MODE, sessionKeys.getKeyFor(KeyType.ENC), GPCrypto.iv_null_aes);
-						byte [] iv = c.doFinal(encryption_counter);
-						// Now encrypt the data with S-ENC.
-						c.init(Cipher.ENCRYPT_MODE, sessionKeys.getKeyFor(KeyType.ENC), new IvParameterSpec(iv));
-						data = c.doFinal(d);
-						lc = data.length;
+			int cla = command.getCLA();
+			int lc = command.getNc();
+			byte [] data = command.getData();
+
+			// Encrypt if needed
+			if (enc) {
+				cla = 0x84;
+				// Counter shall always be incremented
+				GPCrypto.buffer_increment(encryption_counter);
+				if (command.getData().length > 0) {
+					data = GPCrypto.pad80(command.getData(), 16);
+					// Encrypt with S-ENC, after increasing the counter
+					ecb_enc.processBlock(encryption_counter, 0, icv, 0);
+					// Now encrypt the data with S-ENC, in place
+					for (int offset = 0; offset < data.length; offset += 16) {
+						for (int i = 0; i < 16; i++) {
+							data[offset + i] ^= icv[i];
+						}
+						ecb_enc.processBlock(data, offset, data, offset);
+						System.arraycopy(data, offset, icv, 0, 16);
 					}
+					lc = data.length;
 				}
-				// Calculate C-MAC
-				if (mac) {
-					cla = 0x84;
-					lc = lc + 8;
-
-					ByteArrayOutputStream bo = new ByteArrayOutputStream();
-					bo.write(chaining_value);
-					bo.write(cla);
-					bo.write(command.getINS());
-					bo.write(command.getP1());
-					bo.write(command.getP2());
-					bo.write(lc);
-					bo.write(data);
-					byte [] cmac_input = bo.toByteArray();
-					byte [] cmac = GPCrypto.scp03_mac(sessionKeys.getKey(KeyType.MAC), cmac_input, 128);
-					// Set new chaining value
-					System.arraycopy(cmac, 0, chaining_value, 0, chaining_value.length);
-					// 8 bytes for actual mac
-					cmd_mac = Arrays.copyOf(cmac, 8);
-				}
-				// Construct new command
-				ByteArrayOutputStream na = new ByteArrayOutputStream();
-				na.write(cla); // possibly fiddled
-				na.write(command.getINS());
-				na.write(command.getP1());
-				na.write(command.getP2());
-				na.write(lc);
-				na.write(data);
-				if (mac)
-					na.write(cmd_mac);
-				byte [] new_apdu = na.toByteArray();
-				return new CommandAPDU(new_apdu);
-			} catch (IOException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
 			}
-			catch (NoSuchAlgorithmException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
+			// Calculate C-MAC
+			if (mac) {
+				cla = 0x84;
+				lc = lc + 8;
+
+				cmac.update(chaining_value, 0, chaining_value.length);
+				cmac.update((byte) cla);
+				cmac.update((byte) command.getINS());
+				cmac.update((byte) command.getP1());
+				cmac.update((byte) command.getP2());
+				cmac.update((byte) lc);
+				cmac.update(data, 0, data.length);
+				// Set new chaining value
+				cmac.doFinal(chaining_value, 0);
 			}
-			catch (NoSuchPaddingException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
+			// Construct new command
+			byte [] new_apdu = new byte[5 + lc];
+			new_apdu[0] = (byte) cla; // possibly fiddled
+			new_apdu[1] = (byte) command.getINS();
+			new_apdu[2] = (byte) command.getP1();
+			new_apdu[3] = (byte) command.getP2();
+			new_apdu[4] = (byte) lc;
+			System.arraycopy(data, 0, new_apdu, 5, data.length);
+			// 8 bytes for actual mac
+			if (mac)
+				System.arraycopy(chaining_value, 0, new_apdu, 5 + data.length, 8);
+			return new CommandAPDU(new_apdu);
+		}
+
+		@Override
+		protected ResponseAPDU unwrap(ResponseAPDU response) throws GPException {
+			if (!rmac) {
+				return response;
 			}
-			catch (InvalidKeyException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
+			byte [] r = response.getBytes();
+			int len = r.length - 2;
+			int sw1 = response.getSW1();
+
+			// Errors are not protected, warnings and success are
+			if (len == 0 && sw1 != 0x90 && sw1 != 0x62 && sw1 != 0x63) {
+				return response;
 			}
-			catch (IllegalBlockSizeException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
+			if (len < 8) {
+				throw new GPException("Wrong response length (too short).");
 			}
-			catch (BadPaddingException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
+			len = len - 8;
+
+			// R-MAC is over the chaining value of the command, response data and SW
+			rcmac.update(chaining_value, 0, chaining_value.length);
+			rcmac.update(r, 0, len);
+			rcmac.update(r, r.length - 2, 2);
+			rcmac.doFinal(rmac_buffer, 0);
+
+			int diff = 0;
+			for (int i = 0; i < 8; i++) {
+				diff |= rmac_buffer[i] ^ r[len + i];
 			}
-			catch (InvalidAlgorithmParameterException e) {
-				throw new RuntimeException("APDU wrapping failed", e);
+			if (diff != 0) {
+				throw new GPException("RMAC invalid.");
 			}
-		}
 
-		@Override
-		protected ResponseAPDU unwrap(ResponseAPDU response) throws GPException {
-			return response;
+			if (renc && len > 0) {
+				if (len % 16 != 0) {
+					throw new GPException("Encrypted response length not a multiple of block size: " + len);
+				}
+				// ICV is the encrypted counter with the MSB set to 0x80
+				System.arraycopy(encryption_counter, 0, block, 0, 16);
+				block[0] = (byte) 0x80;
+				ecb_enc.processBlock(block, 0, icv, 0);
+				// CBC decryption in place, over the response buffer
+				for (int offset = 0; offset < len; offset += 16) {
+					System.arraycopy(r, offset, block, 0, 16);
+					ecb_dec.processBlock(r, offset, r, offset);
+					for (int i = 0; i < 16; i++) {
+						r[offset + i] ^= icv[i];
+					}
+					System.arraycopy(block, 0, icv, 0, 16);
+				}
+				// Remove padding
+				int padded = len;
+				while (len > 0 && r[len - 1] == 0x00) {
+					len--;
+				}
+				if (len == 0 || r[len - 1] != (byte) 0x80 || padded - len >= 16) {
+					throw new GPException("Invalid padding in decrypted response");
+				}
+				len--;
+			}
+			// Move SW next to the data
+			r[len] = r[r.length - 2];
+			r[len + 1] = r[r.length - 1];
+			return new ResponseAPDU(Arrays.copyOf(r, len + 2));
 		}
 	}
 
@@ -1378,15 +1882,18 @@ public class GlobalPlatform {
 		protected boolean mac = false;
 		protected boolean enc = false;
 		protected boolean rmac = false;
+		protected boolean renc = false;
+		protected int blockSize = GlobalPlatform.defaultLoadSize; // 255
 
 		public void setSecurityLevel(EnumSet<APDUMode> securityLevel) {
 			mac = securityLevel.contains(APDUMode.MAC);
 			enc = securityLevel.contains(APDUMode.ENC);
 			rmac = securityLevel.contains(APDUMode.RMAC);
+			renc = securityLevel.contains(APDUMode.RENC);
 		}
 
 		protected int getBlockSize() {
-			int res = GlobalPlatform.defaultLoadSize; // 255
+			int res = blockSize;
 			if (mac)
 				res = res - 8;
 			if (enc)
@@ -0,0 +1,319 @@
+package pro.javacard.gp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.smartcardio.CardException;
+
+/**
+ * Computes the commands that take a card from its current registry to a
+ * desired state: which load files must be present, which applet instances
+ * with which privileges, which instance is default selected and what must be
+ * gone. Content that is already as desired is left alone. A load file to be
+ * replaced is not loaded again if the card reports the same version as the
+ * CAP file and the hash of the load file data is the one last loaded.
+ *
+ * Steps are ordered so that they can be executed as-is: instance deletions,
+ * load file deletions (dependents first), loads (dependencies first),
+ * installs and finally the default selected change.
+ */
+public class InstallPlanner {
+
+	/**
+	 * The desired state of the card. Anything not mentioned is kept as it is.
+	 */
+	public static final class Target {
+		private final Map<AID, CapFile> packages = new LinkedHashMap<AID, CapFile>();
+		private final Set<AID> reload = new LinkedHashSet<AID>();
+		private final List<Instance> instances = new ArrayList<Instance>();
+		private final Set<AID> absent = new LinkedHashSet<AID>();
+		private AID defaultSelected = null;
+
+		/**
+		 * The load file must be present. With replace, it is loaded again if
+		 * already present but different (together with anything in the
+		 * target that depends on it). The registry does not tell which other
+		 * load files on the card import it: if any does, the card refuses to
+		 * delete it, before anything is loaded.
+		 */
+		public Target addPackage(CapFile cap, boolean replace) {
+			packages.put(cap.getPackageAID(), cap);
+			if (replace)
+				reload.add(cap.getPackageAID());
+			return this;
+		}
+
+		public Target addInstance(AID pkg, AID applet, AID instance, byte privileges, byte[] params) {
+			instances.add(new Instance(pkg, applet, instance == null ? applet : instance, privileges, params));
+			return this;
+		}
+
+		/**
+		 * The load file or instance must not be present. A load file is
+		 * deleted with its instances.
+		 */
+		public Target remove(AID aid) {
+			absent.add(aid);
+			return this;
+		}
+
+		public Target setDefaultSelected(AID instance) {
+			defaultSelected = instance;
+			return this;
+		}
+	}
+
+	public static final class Instance {
+		public final AID pkg;
+		public final AID applet;
+		public final AID instance;
+		public final byte privileges;
+		public final byte[] params;
+
+		Instance(AID pkg, AID applet, AID instance, byte privileges, byte[] params) {
+			this.pkg = pkg;
+			this.applet = applet;
+			this.instance = instance;
+			this.privileges = privileges;
+			this.params = params;
+		}
+	}
+
+	public static final class Step {
+		public enum Op {
+			DELETE, LOAD, INSTALL, MAKE_DEFAULT
+		}
+
+		public final Op op;
+		public final AID aid;
+		public final boolean deleteDeps;
+		public final CapFile cap;
+		public final Instance instance;
+
+		private Step(Op op, AID aid, boolean deleteDeps, CapFile cap, Instance instance) {
+			this.op = op;
+			this.aid = aid;
+			this.deleteDeps = deleteDeps;
+			this.cap = cap;
+			this.instance = instance;
+		}
+
+		static Step delete(AID aid, boolean deleteDeps) {
+			return new Step(Op.DELETE, aid, deleteDeps, null, null);
+		}
+
+		static Step makeDefault(AID aid) {
+			return new Step(Op.MAKE_DEFAULT, aid, false, null, null);
+		}
+
+		public String toString() {
+			switch (op) {
+			case DELETE:
+				return "DELETE " + aid + (deleteDeps ? " with dependencies" : "");
+			case LOAD:
+				return "LOAD " + aid + " (" + cap.getPackageName() + ")";
+			case INSTALL:
+				return "INSTALL " + instance.instance + " from " + instance.pkg + "/" + instance.applet + String.format(" privileges %02X", instance.privileges);
+			default:
+				return "MAKE DEFAULT " + aid;
+			}
+		}
+	}
+
+	public static List<Step> plan(AIDRegistry current, Target target) {
+		return plan(current, target, null);
+	}
+
+	/**
+	 * Plans with knowledge of the load file data hashes last loaded to the
+	 * card, by package AID (see {@link GlobalPlatform#getLoadFileHashes()}).
+	 */
+	public static List<Step> plan(AIDRegistry current, Target target, Map<AID, byte[]> loaded) {
+		Set<AID> onCard = new LinkedHashSet<AID>(current.allPackageAIDs());
+		Set<AID> instancesOnCard = new LinkedHashSet<AID>(current.allAppletAIDs());
+
+		// Load files to (re)load. A load file that is reloaded takes everything
+		// importing it along, as it can not be deleted while they exist.
+		Set<AID> load = new LinkedHashSet<AID>();
+		for (AID pkg : target.packages.keySet()) {
+			if (!onCard.contains(pkg) || (target.reload.contains(pkg) && !isUnchanged(current, target.packages.get(pkg), loaded)))
+				load.add(pkg);
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (CapFile cap : target.packages.values()) {
+				AID pkg = cap.getPackageAID();
+				if (load.contains(pkg) || !onCard.contains(pkg))
+					continue;
+				for (AID imp : cap.getImportAIDs()) {
+					if (load.contains(imp) && onCard.contains(imp)) {
+						load.add(pkg);
+						changed = true;
+						break;
+					}
+				}
+			}
+		}
+
+		// Load files to delete
+		Set<AID> deletePackages = new LinkedHashSet<AID>();
+		Set<AID> deleteInstances = new LinkedHashSet<AID>();
+		for (AID pkg : load) {
+			if (onCard.contains(pkg))
+				deletePackages.add(pkg);
+		}
+		for (AID aid : target.absent) {
+			if (onCard.contains(aid)) {
+				deletePackages.add(aid);
+			} else if (instancesOnCard.contains(aid)) {
+				deleteInstances.add(aid);
+			}
+		}
+		// Instances that go away with their load file
+		Set<AID> gone = new LinkedHashSet<AID>(deleteInstances);
+		for (AID pkg : deletePackages) {
+			gone.addAll(current.getInstanceAIDs(pkg));
+		}
+
+		// Instances
+		List<Step> installs = new ArrayList<Step>();
+		AID def = current.getDefaultSelectedAID();
+		boolean defaultDone = target.defaultSelected == null || (target.defaultSelected.equals(def) && !gone.contains(def));
+		for (Instance i : target.instances) {
+			byte privileges = i.privileges;
+			if (i.instance.equals(target.defaultSelected))
+				privileges |= 0x04;
+			AIDRegistryEntry e = current.getEntry(i.instance);
+			if (e != null && !gone.contains(i.instance)) {
+				// Default selected is changed in place, other privileges need a new instance
+				if ((e.getPrivileges() & ~0x04) == (privileges & ~0x04 & 0xFF))
+					continue;
+				deleteInstances.add(i.instance);
+				gone.add(i.instance);
+			}
+			installs.add(new Step(Step.Op.INSTALL, i.instance, false, null, new Instance(i.pkg, i.applet, i.instance, privileges, i.params)));
+			if (i.instance.equals(target.defaultSelected))
+				defaultDone = true;
+		}
+
+		List<Step> plan = new ArrayList<Step>();
+		for (AID aid : deleteInstances) {
+			// Deleted together with the load file anyway
+			if (deletePackages.contains(current.getPackageAID(aid)))
+				continue;
+			plan.add(new Step(Step.Op.DELETE, aid, false, null, null));
+		}
+		List<AID> order = dependencyOrder(target.packages, deletePackages);
+		Collections.reverse(order);
+		for (AID pkg : order) {
+			plan.add(new Step(Step.Op.DELETE, pkg, true, null, null));
+		}
+		for (AID pkg : dependencyOrder(target.packages, load)) {
+			plan.add(new Step(Step.Op.LOAD, pkg, false, target.packages.get(pkg), null));
+		}
+		plan.addAll(installs);
+		if (!defaultDone) {
+			plan.add(new Step(Step.Op.MAKE_DEFAULT, target.defaultSelected, false, null, null));
+		}
+		return plan;
+	}
+
+	// Java Card and GlobalPlatform API packages, part of the platform
+	private static final AID[] PLATFORM = { new AID("A000000062"), new AID("A000000151") };
+
+	static boolean isPlatform(AID pkg) {
+		for (AID rid : PLATFORM) {
+			if (pkg.startsWith(rid))
+				return true;
+		}
+		return false;
+	}
+
+	// Same version on card and same contents as last loaded
+	private static boolean isUnchanged(AIDRegistry current, CapFile cap, Map<AID, byte[]> loaded) {
+		AIDRegistryEntry e = current.getEntry(cap.getPackageAID());
+		if (e == null || e.getVersion() == null || loaded == null)
+			return false;
+		byte[] hash = loaded.get(cap.getPackageAID());
+		return hash != null && Arrays.equals(e.getVersion(), cap.getPackageVersion()) && Arrays.equals(hash, cap.getLoadFileDataHash(false));
+	}
+
+	// Dependencies before dependents, as far as known from CAP files
+	static List<AID> dependencyOrder(Map<AID, CapFile> caps, Set<AID> aids) {
+		List<AID> result = new ArrayList<AID>();
+		Set<AID> visiting = new LinkedHashSet<AID>();
+		for (AID aid : aids) {
+			visit(aid, caps, aids, visiting, result);
+		}
+		return result;
+	}
+
+	private static void visit(AID aid, Map<AID, CapFile> caps, Set<AID> aids, Set<AID> visiting, List<AID> result) {
+		if (result.contains(aid))
+			return;
+		if (!visiting.add(aid))
+			throw new IllegalArgumentException("Circular package dependency: " + visiting);
+		CapFile cap = caps.get(aid);
+		if (cap != null) {
+			for (AID imp : cap.getImportAIDs()) {
+				if (aids.contains(imp))
+					visit(imp, caps, aids, visiting, result);
+			}
+		}
+		visiting.remove(aid);
+		result.add(aid);
+	}
+
+	/**
+	 * Executes the steps of a plan in order.
+	 */
+	public static void execute(GlobalPlatform gp, List<Step> plan) throws CardException, GPException {
+		checkResources(gp, plan);
+		for (Step s : plan) {
+			execute(gp, s);
+		}
+	}
+
+	// Room for all load files. A load file that is deleted and loaded again
+	// frees about what it takes. Other deleted load files free an unknown
+	// amount; with those, each LOAD is checked when it comes.
+	static void checkResources(GlobalPlatform gp, List<Step> plan) throws CardException, GPException {
+		Set<AID> deleted = new LinkedHashSet<AID>();
+		for (Step s : plan) {
+			if (s.op == Step.Op.DELETE && s.deleteDeps)
+				deleted.add(s.aid);
+		}
+		int total = 0;
+		for (Step s : plan) {
+			if (s.op == Step.Op.LOAD && !deleted.remove(s.aid))
+				total += s.cap.getCodeLength(false);
+		}
+		if (total > 0 && deleted.isEmpty())
+			gp.checkLoadResources(total);
+	}
+
+	static void execute(GlobalPlatform gp, Step s) throws CardException, GPException {
+		gp.getLog().debug(GPLog.Category.LOAD, "Executing {}", s);
+		switch (s.op) {
+		case DELETE:
+			gp.deleteAID(s.aid, s.deleteDeps);
+			break;
+		case LOAD:
+			gp.loadCapFile(s.cap);
+			break;
+		case INSTALL:
+			gp.installAndMakeSelectable(s.instance.pkg, s.instance.applet, s.instance.instance, s.instance.privileges, s.instance.params, null);
+			break;
+		case MAKE_DEFAULT:
+			gp.makeDefaultSelected(s.aid, (byte) 0x04);
+			break;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package pro.javacard.gp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.smartcardio.CardException;
+
+import pro.javacard.gp.GPLog.Category;
+import pro.javacard.gp.InstallPlanner.Step;
+
+/**
+ * Executes a plan from {@link InstallPlanner} so that a failure does not
+ * leave the card half way. Completed steps are journaled. After a failed LOAD
+ * the partial load file is deleted. A failed step is run again if the retry
+ * policy agrees. Otherwise the journal is undone in reverse order in the
+ * same secure channel: loaded files and installed instances are deleted and
+ * the previous default selected application is restored. Deletions can not
+ * be undone and are left as they are.
+ *
+ * If the card goes away, nothing can be done in the same session: the
+ * exception is passed on and {@link #getCompensation()} tells what to run
+ * after connecting again.
+ */
+public class InstallTransaction {
+
+	/**
+	 * Decides if a failed step is run again.
+	 */
+	public interface RetryPolicy {
+		boolean retry(Step step, int attempt, GPException e);
+	}
+
+	public static final RetryPolicy NEVER = new RetryPolicy() {
+		public boolean retry(Step step, int attempt, GPException e) {
+			return false;
+		}
+	};
+
+	/**
+	 * Retries up to count times if the card reported a transient error
+	 * (6400, 6581, 6F00).
+	 */
+	public static RetryPolicy retries(final int count) {
+		return new RetryPolicy() {
+			public boolean retry(Step step, int attempt, GPException e) {
+				return attempt <= count && isTransient(e.sw);
+			}
+		};
+	}
+
+	// Only errors that another try may get past. Anything else, including failures without a status word
+	// (secure messaging, MAC), is final.
+	static boolean isTransient(int sw) {
+		switch (sw) {
+		case 0x6400: // Execution error, state unchanged
+		case 0x6581: // Memory failure
+		case 0x6F00: // No precise diagnosis
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private final GlobalPlatform gp;
+	private final RetryPolicy policy;
+	private final List<Step> journal = new ArrayList<Step>();
+	private AID previousDefault = null;
+
+	public InstallTransaction(GlobalPlatform gp, RetryPolicy policy) {
+		this.gp = gp;
+		this.policy = policy;
+	}
+
+	/**
+	 * Executes the steps in order. On failure the completed steps are undone
+	 * and the exception of the failed step is thrown.
+	 */
+	public void execute(List<Step> plan) throws CardException, GPException {
+		for (Step s : plan) {
+			if (s.op == Step.Op.MAKE_DEFAULT || (s.op == Step.Op.INSTALL && (s.instance.privileges & 0x04) != 0)) {
+				if (previousDefault == null)
+					previousDefault = gp.getRegistry().getDefaultSelectedAID();
+			}
+		}
+		InstallPlanner.checkResources(gp, plan);
+		// A failed LOAD is cleaned up only if the load file was not there
+		Set<AID> present = new HashSet<AID>(gp.getRegistry().allPackageAIDs());
+
+		for (Step s : plan) {
+			for (int attempt = 1;; attempt++) {
+				try {
+					InstallPlanner.execute(gp, s);
+					journal.add(s);
+					if (s.op == Step.Op.DELETE)
+						present.remove(s.aid);
+					break;
+				} catch (GPException e) {
+					if (s.op == Step.Op.LOAD && !present.contains(s.aid))
+						cleanup(s.aid);
+					if (!policy.retry(s, attempt, e)) {
+						gp.getLog().debug(Category.LOAD, "Step failed: {}: {}, rolling back", s, e.getMessage());
+						rollback();
+						throw e;
+					}
+					gp.getLog().debug(Category.LOAD, "Step failed: {}: {}, retrying", s, e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Steps that have completed, in order.
+	 */
+	public List<Step> getJournal() {
+		return Collections.unmodifiableList(journal);
+	}
+
+	/**
+	 * The steps that undo the journal, for use in a new session if the card
+	 * went away during {@link #execute(List)}.
+	 */
+	public List<Step> getCompensation() {
+		List<Step> undo = new ArrayList<Step>();
+		boolean defaultChanged = false;
+		for (int i = journal.size() - 1; i >= 0; i--) {
+			Step s = journal.get(i);
+			switch (s.op) {
+			case LOAD:
+				undo.add(Step.delete(s.aid, true));
+				break;
+			case INSTALL:
+				undo.add(Step.delete(s.instance.instance, false));
+				if ((s.instance.privileges & 0x04) != 0)
+					defaultChanged = true;
+				break;
+			case MAKE_DEFAULT:
+				defaultChanged = true;
+				break;
+			default:
+				// Deleted content is gone
+				break;
+			}
+		}
+		if (defaultChanged && previousDefault != null)
+			undo.add(Step.makeDefault(previousDefault));
+		return undo;
+	}
+
+	/**
+	 * Undoes the completed steps. A failure of one step does not stop the
+	 * rest.
+	 */
+	public void rollback() throws CardException {
+		for (Step s : getCompensation()) {
+			try {
+				InstallPlanner.execute(gp, s);
+			} catch (GPException e) {
+				gp.getLog().debug(Category.LOAD, "Could not undo with {}: {}", s, e.getMessage());
+			}
+		}
+		journal.clear();
+	}
+
+	// Remove a partial load file
+	private void cleanup(AID aid) throws CardException {
+		try {
+			gp.deleteAID(aid, true);
+			gp.getLog().debug(Category.LOAD, "Deleted partial {}", aid);
+		} catch (GPException e) {
+			// Usually nothing to delete
+		}
+	}
+}
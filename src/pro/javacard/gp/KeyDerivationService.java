@@ -0,0 +1,96 @@
+package pro.javacard.gp;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * KeyDerivationService derives the keys for secure channel sessions: static
+ * card keys diversified from a master key, session keys and the cryptograms
+ * exchanged during mutual authentication.
+ *
+ * Requests are handled in batches so that an implementation that is expensive
+ * to call (a socket, an HSM) can amortize the per-call overhead over all cards
+ * that open a session at about the same time.
+ */
+public interface KeyDerivationService {
+
+	/**
+	 * Derive keys for a batch of sessions.
+	 *
+	 * @param requests
+	 *            derivation requests
+	 * @return one result per request, in the same order
+	 * @throws IOException
+	 *             if the service can not be reached
+	 */
+	public List<Result> derive(List<Request> requests) throws IOException;
+
+	/**
+	 * Everything known about a session after INITIALIZE UPDATE.
+	 */
+	public static final class Request {
+		public final GPKeySet keys;
+		public final boolean diversify;
+		public final int scp;
+		public final byte[] diversification_data;
+		public final byte[] sequence;
+		public final byte[] host_challenge;
+		public final byte[] card_challenge;
+
+		/**
+		 * @param keys
+		 *            static (or master, if diversify is set) keys
+		 * @param diversify
+		 *            if the keys must be diversified with diversification_data
+		 * @param scp
+		 *            major SCP version (1, 2 or 3)
+		 * @param diversification_data
+		 *            first 10 bytes of INITIALIZE UPDATE response
+		 * @param sequence
+		 *            sequence counter (SCP02) or null
+		 * @param host_challenge
+		 * @param card_challenge
+		 */
+		public Request(GPKeySet keys, boolean diversify, int scp, byte[] diversification_data, byte[] sequence, byte[] host_challenge, byte[] card_challenge) {
+			this.keys = keys;
+			this.diversify = diversify;
+			this.scp = scp;
+			this.diversification_data = diversification_data;
+			this.sequence = sequence;
+			this.host_challenge = host_challenge;
+			this.card_challenge = card_challenge;
+		}
+	}
+
+	/**
+	 * Keys and cryptograms of one session, or the reason why they could not be
+	 * derived.
+	 */
+	public static final class Result {
+		public final GPKeySet staticKeys;
+		public final GPKeySet sessionKeys;
+		public final byte[] card_cryptogram;
+		public final byte[] host_cryptogram;
+		public final String error;
+
+		public Result(GPKeySet staticKeys, GPKeySet sessionKeys, byte[] card_cryptogram, byte[] host_cryptogram) {
+			this.staticKeys = staticKeys;
+			this.sessionKeys = sessionKeys;
+			this.card_cryptogram = card_cryptogram;
+			this.host_cryptogram = host_cryptogram;
+			this.error = null;
+		}
+
+		public Result(String error) {
+			this.staticKeys = null;
+			this.sessionKeys = null;
+			this.card_cryptogram = null;
+			this.host_cryptogram = null;
+			this.error = error;
+		}
+
+		public boolean isError() {
+			return error != null;
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package pro.javacard.gp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import apdu4j.HexUtils;
+
+/**
+ * Remembers the hash of the load file data last loaded to a card, for every
+ * package. Together with the load file version reported by the card this
+ * tells if a package on the card is the same as in a CAP file, so that it does
+ * not have to be loaded again. Cards are identified by
+ * {@link CardInventory#getCardID(byte[])}.
+ */
+public class LoadFileManifest {
+	private final File file;
+	private final Properties props = new Properties();
+
+	public LoadFileManifest(File file) throws IOException {
+		this.file = file;
+		if (file.exists()) {
+			try (InputStream in = new FileInputStream(file)) {
+				props.load(in);
+			}
+		}
+	}
+
+	/**
+	 * Returns the hashes of packages loaded to the card, by package AID.
+	 */
+	public synchronized Map<AID, byte[]> get(String card) {
+		Map<AID, byte[]> result = new HashMap<AID, byte[]>();
+		String prefix = card + ".";
+		for (String k : props.stringPropertyNames()) {
+			if (k.startsWith(prefix)) {
+				result.put(new AID(k.substring(prefix.length())), HexUtils.decodeHexString(props.getProperty(k)));
+			}
+		}
+		return result;
+	}
+
+	public synchronized void put(String card, AID pkg, byte[] hash) throws IOException {
+		props.setProperty(key(card, pkg), HexUtils.encodeHexString(hash));
+		store();
+	}
+
+	public synchronized void remove(String card, AID pkg) throws IOException {
+		if (props.remove(key(card, pkg)) != null) {
+			store();
+		}
+	}
+
+	private static String key(String card, AID pkg) {
+		return card + "." + pkg;
+	}
+
+	private void store() throws IOException {
+		try (OutputStream out = new FileOutputStream(file)) {
+			props.store(out, "GlobalPlatformPro loaded packages");
+		}
+	}
+}
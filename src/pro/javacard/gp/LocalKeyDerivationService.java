@@ -0,0 +1,144 @@
+package pro.javacard.gp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import pro.javacard.gp.GPData.KeyType;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+
+/**
+ * In-process key derivation with the key material in the memory of this JVM.
+ * This is what GlobalPlatform uses unless told otherwise.
+ */
+public class LocalKeyDerivationService implements KeyDerivationService {
+	private static final LocalKeyDerivationService instance = new LocalKeyDerivationService();
+
+	public static LocalKeyDerivationService getInstance() {
+		return instance;
+	}
+
+	public List<Result> derive(List<Request> requests) {
+		List<Result> results = new ArrayList<Result>(requests.size());
+		for (Request r : requests) {
+			try {
+				results.add(derive(r));
+			} catch (RuntimeException e) {
+				results.add(new Result("Key derivation failed: " + e.getMessage()));
+			}
+		}
+		return results;
+	}
+
+	public Result derive(Request r) {
+		GPKeySet staticKeys = r.keys;
+		if (r.diversify) {
+			// Never touch the keys of the caller
+			staticKeys = new GPKeySet(r.keys);
+			staticKeys.diversify(r.diversification_data, r.scp);
+		}
+
+		GPKeySet sessionKeys = null;
+		if (r.scp == 1) {
+			sessionKeys = deriveSessionKeysSCP01(staticKeys, r.host_challenge, r.card_challenge);
+		} else if (r.scp == 2) {
+			sessionKeys = deriveSessionKeysSCP02(staticKeys, r.sequence, false);
+		} else if (r.scp == 3) {
+			sessionKeys = deriveSessionKeysSCP03(staticKeys, r.host_challenge, r.card_challenge);
+		} else {
+			return new Result("Unknown SCP version: " + r.scp);
+		}
+
+		// Cryptograms
+		byte[] card_cryptogram = null;
+		byte[] host_cryptogram = null;
+		byte[] cntx = GPUtils.concatenate(r.host_challenge, r.card_challenge);
+		if (r.scp == 1 || r.scp == 2) {
+			card_cryptogram = GPCrypto.mac_3des_nulliv(sessionKeys.getKey(KeyType.ENC), cntx);
+			host_cryptogram = GPCrypto.mac_3des_nulliv(sessionKeys.getKey(KeyType.ENC), GPUtils.concatenate(r.card_challenge, r.host_challenge));
+		} else {
+			card_cryptogram = GPCrypto.scp03_kdf(sessionKeys.getKey(KeyType.MAC), (byte) 0x00, cntx, 64);
+			host_cryptogram = GPCrypto.scp03_kdf(sessionKeys.getKey(KeyType.MAC), (byte) 0x01, cntx, 64);
+		}
+		return new Result(staticKeys, sessionKeys, card_cryptogram, host_cryptogram);
+	}
+
+	static GPKeySet deriveSessionKeysSCP01(GPKeySet staticKeys, byte[] host_challenge, byte[] card_challenge) {
+		GPKeySet sessionKeys = new GPKeySet();
+
+		byte[] derivationData = new byte[16];
+		System.arraycopy(card_challenge, 4, derivationData, 0, 4);
+		System.arraycopy(host_challenge, 0, derivationData, 4, 4);
+		System.arraycopy(card_challenge, 0, derivationData, 8, 4);
+		System.arraycopy(host_challenge, 4, derivationData, 12, 4);
+
+		for (KeyType v: KeyType.values()) {
+			if (v == KeyType.RMAC) // skip RMAC key
+				continue;
+			byte[] k = new byte[16];
+			GPCrypto.getBackend().ecb(Type.DES3, true, staticKeys.getKey(v).getValue(), derivationData, 0, 16, k, 0);
+			sessionKeys.setKey(v, new GPKey(k, Type.DES3));
+		}
+		// KEK is the same
+		sessionKeys.setKey(KeyType.KEK, staticKeys.getKey(KeyType.KEK));
+		return sessionKeys;
+	}
+
+	static GPKeySet deriveSessionKeysSCP02(GPKeySet staticKeys, byte[] sequence, boolean implicitChannel) {
+		GPKeySet sessionKeys = new GPKeySet();
+
+		byte[] derivationData = new byte[16];
+		System.arraycopy(sequence, 0, derivationData, 2, 2);
+
+		byte[] constantMAC = new byte[] { (byte) 0x01, (byte) 0x01 };
+		System.arraycopy(constantMAC, 0, derivationData, 0, 2);
+		sessionKeys.setKey(KeyType.MAC, scp02_key(staticKeys.getKey(KeyType.MAC), derivationData));
+
+		// TODO: is this correct? - increment by one for all other than C-MAC
+		if (implicitChannel) {
+			TLVUtils.buffer_increment(derivationData, (short)2, (short)2);
+		}
+
+		byte[] constantRMAC = new byte[] { (byte) 0x01, (byte) 0x02 };
+		System.arraycopy(constantRMAC, 0, derivationData, 0, 2);
+		sessionKeys.setKey(KeyType.RMAC, scp02_key(staticKeys.getKey(KeyType.MAC), derivationData));
+
+		byte[] constantENC = new byte[] { (byte) 0x01, (byte) 0x82 };
+		System.arraycopy(constantENC, 0, derivationData, 0, 2);
+		sessionKeys.setKey(KeyType.ENC, scp02_key(staticKeys.getKey(KeyType.ENC), derivationData));
+
+		byte[] constantDEK = new byte[] { (byte) 0x01, (byte) 0x81 };
+		System.arraycopy(constantDEK, 0, derivationData, 0, 2);
+		sessionKeys.setKey(KeyType.KEK, scp02_key(staticKeys.getKey(KeyType.KEK), derivationData));
+		return sessionKeys;
+	}
+
+	private static GPKey scp02_key(GPKey key, byte[] derivationData) {
+		byte[] k = new byte[16];
+		GPCrypto.getBackend().cbc(Type.DES3, true, key.getValue(), null, derivationData, 0, 16, k, 0);
+		return new GPKey(k, Type.DES3);
+	}
+
+	static GPKeySet deriveSessionKeysSCP03(GPKeySet staticKeys, byte[] host_challenge, byte[] card_challenge) {
+		GPKeySet sessionKeys = new GPKeySet();
+		final byte mac_constant = 0x06;
+		final byte enc_constant = 0x04;
+		final byte rmac_constant = 0x07;
+
+		byte []context = GPUtils.concatenate(host_challenge, card_challenge);
+
+		// MAC
+		byte []kdf = GPCrypto.scp03_kdf(staticKeys.getKey(KeyType.MAC), mac_constant, context, 128);
+		sessionKeys.setKey(KeyType.MAC, new GPKey(kdf, Type.AES));
+		// ENC
+		kdf = GPCrypto.scp03_kdf(staticKeys.getKey(KeyType.ENC), enc_constant, context, 128);
+		sessionKeys.setKey(KeyType.ENC, new GPKey(kdf, Type.AES));
+		// RMAC
+		kdf = GPCrypto.scp03_kdf(staticKeys.getKey(KeyType.MAC), rmac_constant, context, 128);
+		sessionKeys.setKey(KeyType.RMAC, new GPKey(kdf, Type.AES));
+
+		// KEK remains the same
+		sessionKeys.setKey(KeyType.KEK, staticKeys.getKey(KeyType.KEK));
+		return sessionKeys;
+	}
+}
@@ -0,0 +1,274 @@
+package pro.javacard.gp;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Limits how many APDU-s are in flight at once among readers that share a
+ * USB hub or controller, so that readers working in parallel do not slow each
+ * other down more than they gain.
+ *
+ * Readers are put in groups, by default by their name without the trailing
+ * numbers (readers of the same model usually sit behind the same controller),
+ * or explicitly with {@link #assign(String, String)}. Channels returned by
+ * {@link #wrap(String, CardChannel)} measure the round trip time of every
+ * command. Each group compares the times to the fastest seen lately for the
+ * same instruction (per byte transferred) and adjusts its limit: one more APDU
+ * in flight after a round without slowdown, half as many after a round where
+ * commands took clearly longer than they can.
+ *
+ * A reader that starts LOAD holds one of the bulk slots of its group until
+ * it sends something else. Only half of the limit can be used for LOAD, so
+ * the long load phases of different readers are staggered and the other
+ * readers can authenticate, install and personalize meanwhile.
+ */
+public class ReaderScheduler {
+	// A round is slow when commands take this much longer than the best
+	private static final double SLOW = 1.5;
+	// and fast enough to try one more when below this
+	private static final double FAST = 1.2;
+	// Bulk slot of a reader that has gone quiet is taken back
+	private static final long STALE_NANOS = 2000000000L;
+	// A best time counts for twice as long when it was last seen this long ago
+	private static final long FORGET_NANOS = 60000000000L;
+	private static final int INS_LOAD = 0xE8;
+
+	private final Map<String, String> assigned = new HashMap<String, String>();
+	private final Map<String, Group> groups = new LinkedHashMap<String, Group>();
+	private final Map<String, Reader> readers = new HashMap<String, Reader>();
+
+	private static final class Reader {
+		final String name;
+		final Group group;
+		boolean bulk = false;
+		long lastActivity = System.nanoTime();
+
+		Reader(String name, Group group) {
+			this.name = name;
+			this.group = group;
+		}
+	}
+
+	private static final class Group {
+		final String name;
+		int members = 0;
+		int limit = 2;
+		int inFlight = 0;
+		final Set<Reader> bulk = new HashSet<Reader>();
+		// Best time per byte seen for each instruction, and when
+		final double[] best = new double[256];
+		final long[] bestAt = new long[256];
+		double windowSum = 0;
+		int windowCount = 0;
+		long transmitted = 0;
+
+		Group(String name) {
+			this.name = name;
+		}
+
+		synchronized void acquire(Reader r, int ins) throws CardException {
+			r.lastActivity = System.nanoTime();
+			try {
+				if (r.bulk && ins != INS_LOAD) {
+					r.bulk = false;
+					bulk.remove(r);
+					notifyAll();
+				}
+				while (inFlight >= limit || (ins == INS_LOAD && !r.bulk && bulk.size() >= bulkLimit())) {
+					wait(100);
+					reclaim();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CardException("Interrupted while waiting for " + r.name);
+			}
+			if (ins == INS_LOAD && !r.bulk) {
+				r.bulk = true;
+				bulk.add(r);
+			}
+			inFlight++;
+		}
+
+		synchronized void release(Reader r, int ins, long nanos, int bytes) {
+			inFlight--;
+			r.lastActivity = System.nanoTime();
+			notifyAll();
+			if (bytes < 0)
+				return;
+			transmitted++;
+			// Per byte, with a command worth a few bytes of overhead
+			double t = nanos / (bytes + 32.0);
+			// Forget by time and not by the number of commands, so that a best
+			// time from a lucky moment does not hold the limit down for ever
+			// but a busy hub does not wear it off in a few hundred commands
+			long now = System.nanoTime();
+			double b = best[ins] * Math.pow(2, (now - bestAt[ins]) / (double) FORGET_NANOS);
+			if (best[ins] == 0 || t < b) {
+				best[ins] = t;
+				bestAt[ins] = now;
+				b = t;
+			}
+			windowSum += t / b;
+			windowCount++;
+			if (windowCount >= limit) {
+				double ratio = windowSum / windowCount;
+				if (ratio > SLOW) {
+					limit = Math.max(1, limit / 2);
+				} else if (ratio < FAST && limit < members) {
+					limit++;
+				}
+				windowSum = 0;
+				windowCount = 0;
+			}
+		}
+
+		int bulkLimit() {
+			return Math.max(1, limit / 2);
+		}
+
+		// Readers are not told when their card goes away
+		private void reclaim() {
+			long now = System.nanoTime();
+			for (Iterator<Reader> i = bulk.iterator(); i.hasNext();) {
+				Reader r = i.next();
+				if (now - r.lastActivity > STALE_NANOS) {
+					r.bulk = false;
+					i.remove();
+				}
+			}
+		}
+
+		public synchronized String toString() {
+			return name + ": " + members + " readers, limit " + limit + ", " + transmitted + " APDU-s";
+		}
+	}
+
+	/**
+	 * Puts the reader in the named group. Must be done before the reader is
+	 * first used.
+	 */
+	public synchronized void assign(String reader, String group) {
+		assigned.put(reader, group);
+	}
+
+	/**
+	 * Group of a reader that has not been assigned one.
+	 */
+	public static String defaultGroup(String reader) {
+		return reader.replaceAll("[\\s\\d]+$", "");
+	}
+
+	/**
+	 * Returns a channel that goes through the scheduler of the reader.
+	 */
+	public CardChannel wrap(String reader, CardChannel channel) {
+		return new ScheduledChannel(getReader(reader), channel);
+	}
+
+	/**
+	 * Current limit of APDU-s in flight for the group, or 0 if not known.
+	 */
+	public synchronized int getLimit(String group) {
+		Group g = groups.get(group);
+		if (g == null)
+			return 0;
+		synchronized (g) {
+			return g.limit;
+		}
+	}
+
+	public synchronized String getGroup(String reader) {
+		String g = assigned.get(reader);
+		return g != null ? g : defaultGroup(reader);
+	}
+
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Group g : groups.values()) {
+			if (sb.length() > 0)
+				sb.append("\n");
+			sb.append(g);
+		}
+		return sb.toString();
+	}
+
+	private synchronized Reader getReader(String name) {
+		Reader r = readers.get(name);
+		if (r == null) {
+			String gn = getGroup(name);
+			Group g = groups.get(gn);
+			if (g == null) {
+				g = new Group(gn);
+				groups.put(gn, g);
+			}
+			synchronized (g) {
+				g.members++;
+			}
+			r = new Reader(name, g);
+			readers.put(name, r);
+		}
+		return r;
+	}
+
+	private static final class ScheduledChannel extends CardChannel {
+		private final Reader reader;
+		private final CardChannel channel;
+
+		ScheduledChannel(Reader reader, CardChannel channel) {
+			this.reader = reader;
+			this.channel = channel;
+		}
+
+		public Card getCard() {
+			return channel.getCard();
+		}
+
+		public int getChannelNumber() {
+			return channel.getChannelNumber();
+		}
+
+		public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+			int ins = command.getINS() & 0xFF;
+			reader.group.acquire(reader, ins);
+			long start = System.nanoTime();
+			int bytes = -1;
+			try {
+				ResponseAPDU response = channel.transmit(command);
+				bytes = command.getBytes().length + response.getBytes().length;
+				return response;
+			} finally {
+				reader.group.release(reader, ins, System.nanoTime() - start, bytes);
+			}
+		}
+
+		public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+			int ins = command.get(command.position() + 1) & 0xFF;
+			int length = command.remaining();
+			reader.group.acquire(reader, ins);
+			long start = System.nanoTime();
+			int bytes = -1;
+			try {
+				int n = channel.transmit(command, response);
+				bytes = length + n;
+				return n;
+			} finally {
+				reader.group.release(reader, ins, System.nanoTime() - start, bytes);
+			}
+		}
+
+		public void close() throws CardException {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,941 @@
+package pro.javacard.gp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.macs.CMac;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import pro.javacard.gp.GPData.KeyType;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+import apdu4j.HexUtils;
+
+/**
+ * A GlobalPlatform card in memory, to exercise the tool without readers and
+ * cards. It has an ISD with SCP02 or SCP03 and default keys and understands
+ * SELECT, GET DATA, GET STATUS (legacy and tagged format), INSTALL, LOAD,
+ * DELETE and PUT KEY (SCP02 only). A load file imported by another one is not
+ * deleted. With SCP02 the C-MAC is stripped but not verified and sessions with
+ * C-ENC or R-MAC are refused. With SCP03 the C-MAC is verified and C-ENC,
+ * R-MAC and R-ENC are supported, computed independently of the host side.
+ * Up to three logical channels can be opened, each with its own selection and
+ * session.
+ */
+public class SimulatedCard {
+	public static final AID ISD = new AID("A000000151000000");
+	private static final int BLOCK_SIZE = 255;
+
+	private final byte[] atr = HexUtils.decodeHexString("3BF81300008131FE454A434F5076323431B7");
+	private final byte[] cplc;
+	private final Random random;
+	private final int scp;
+
+	// Content
+	private final Map<AID, AIDRegistryEntry> entries = new LinkedHashMap<AID, AIDRegistryEntry>();
+	private GPKeySet keys = new GPKeySet(new GPKey(GPData.defaultKey, Type.DES3));
+	private int keyVersion = 0x01;
+	private int sequence = 1;
+	private int freeMemory = 64 * 1024;
+	// Injected failure: after skip commands with the INS, answer with SW
+	private int failIns = -1;
+	private int failSkip = 0;
+	private int failSW = 0;
+	private final Map<AID, Integer> loadFileSizes = new LinkedHashMap<AID, Integer>();
+	private final Map<AID, List<AID>> loadFileImports = new LinkedHashMap<AID, List<AID>>();
+
+	// Logical channels, by number, and the one being processed
+	private final Session[] sessions = new Session[4];
+	private Session session;
+	private boolean corruptRMAC = false;
+
+	// Selection and secure channel session of a logical channel
+	private static final class Session {
+		boolean isdSelected = false;
+		GPKeySet sessionKeys = null;
+		byte[] hostCryptogram = null;
+		boolean authenticated = false;
+		// SCP03: security level, MAC chaining value and encryption counter
+		int securityLevel = 0;
+		final byte[] chaining = new byte[16];
+		final byte[] counter = new byte[16];
+		AID loading = null;
+		ByteArrayOutputStream loadData = null;
+		List<byte[]> statusPending = null;
+		AID personalizing = null;
+		ByteArrayOutputStream storeData = null;
+		int storeBlock = 0;
+	}
+
+	// Completed STORE DATA sequences, by the application they went to
+	private final Map<AID, List<byte[]>> stored = new LinkedHashMap<AID, List<byte[]>>();
+
+	private final SimCard card = new SimCard();
+
+	/**
+	 * A card with the given serial number in CPLC. The serial also seeds the
+	 * card challenges, so runs are repeatable.
+	 */
+	public SimulatedCard(int serial) {
+		this(serial, 2);
+	}
+
+	/**
+	 * A card with SCP02 or SCP03 (with AES default keys).
+	 */
+	public SimulatedCard(int serial, int scp) {
+		if (scp != 2 && scp != 3)
+			throw new IllegalArgumentException("SCP02 or SCP03 only: " + scp);
+		this.scp = scp;
+		if (scp == 3)
+			keys = new GPKeySet(new GPKey(GPData.defaultKey, Type.AES));
+		cplc = new byte[45];
+		cplc[0] = (byte) 0x9F;
+		cplc[1] = 0x7F;
+		cplc[2] = 0x2A;
+		// IC fabricator, type, OS ID, release date and level
+		System.arraycopy(HexUtils.decodeHexString("4790503340914153"), 0, cplc, 3, 8);
+		// IC serial number
+		cplc[15] = (byte) (serial >> 24);
+		cplc[16] = (byte) (serial >> 16);
+		cplc[17] = (byte) (serial >> 8);
+		cplc[18] = (byte) serial;
+		random = new Random(serial);
+		sessions[0] = new Session();
+		entries.put(ISD, new AIDRegistryEntry(ISD, 0x0F, 0x9E, AIDRegistryEntry.Kind.IssuerSecurityDomain));
+	}
+
+	public Card getCard() {
+		return card;
+	}
+
+	/**
+	 * Returns the current content of the card.
+	 */
+	public synchronized AIDRegistry getRegistry() {
+		AIDRegistry registry = new AIDRegistry();
+		for (AIDRegistryEntry e : entries.values()) {
+			registry.add(e);
+		}
+		return registry;
+	}
+
+	/**
+	 * Returns the data of the completed STORE DATA sequences to the
+	 * application, P1 and block boundaries removed.
+	 */
+	public synchronized List<byte[]> getStoredData(AID aid) {
+		List<byte[]> l = stored.get(aid);
+		return l == null ? new ArrayList<byte[]>() : new ArrayList<byte[]>(l);
+	}
+
+	/**
+	 * Makes the card answer sw to a command with the given INS, after skip
+	 * such commands have succeeded. Happens once.
+	 */
+	public synchronized void injectFailure(int ins, int skip, int sw) {
+		failIns = ins;
+		failSkip = skip;
+		failSW = sw;
+	}
+
+	/**
+	 * Makes the R-MAC of the next response that has one wrong. Happens once.
+	 */
+	public synchronized void corruptResponseMAC() {
+		corruptRMAC = true;
+	}
+
+	/**
+	 * Sets the free non-volatile memory, reported in GET DATA FF21 and used up
+	 * by LOAD.
+	 */
+	public synchronized void setFreeMemory(int bytes) {
+		freeMemory = bytes;
+	}
+
+	/**
+	 * Replaces the keys of the ISD, for example with diversified ones.
+	 */
+	public synchronized void setKeys(GPKeySet keys) {
+		this.keys = new GPKeySet(keys);
+	}
+
+	public synchronized GPKeySet getKeys() {
+		GPKeySet copy = new GPKeySet(keys);
+		copy.setKeyVersion(keyVersion);
+		return copy;
+	}
+
+	/**
+	 * How long the card and the reader take, so that the host side can be
+	 * measured under realistic timing. All values are in microseconds.
+	 */
+	public static final class Latency {
+		public static final Latency NONE = new Latency(0, 0, 0, 0);
+		// T=1 contact reader, fast chip
+		public static final Latency CONTACT = new Latency(4000, 90, 20, 15000);
+		// ISO 14443 at 424 kbit/s
+		public static final Latency CONTACTLESS = new Latency(3000, 25, 20, 20000);
+		// Old chip with slow EEPROM
+		public static final Latency SLOW = new Latency(12000, 180, 90, 60000);
+
+		// Per command
+		public final int command;
+		// Per byte transferred, in either direction
+		public final int transfer;
+		// Per byte written to persistent memory
+		public final int write;
+		// Per INITIALIZE UPDATE and EXTERNAL AUTHENTICATE
+		public final int crypto;
+
+		public Latency(int command, int transfer, int write, int crypto) {
+			this.command = command;
+			this.transfer = transfer;
+			this.write = write;
+			this.crypto = crypto;
+		}
+
+		public static Latency valueOf(String name) {
+			switch (name.toLowerCase()) {
+			case "none":
+				return NONE;
+			case "contact":
+				return CONTACT;
+			case "contactless":
+				return CONTACTLESS;
+			case "slow":
+				return SLOW;
+			default:
+				throw new IllegalArgumentException("Unknown latency profile: " + name + " (none, contact, contactless, slow)");
+			}
+		}
+
+		long delay(CommandAPDU c, ResponseAPDU r) {
+			long us = command + transferTime(c, r);
+			switch (c.getINS() & 0xFF) {
+			case 0xE8:
+			case 0xE2:
+			case 0xD8:
+			case 0xE6:
+				us += (long) write * c.getNc();
+				break;
+			case 0x50:
+			case 0x82:
+				us += crypto;
+				break;
+			}
+			return us;
+		}
+
+		long transferTime(CommandAPDU c, ResponseAPDU r) {
+			return (long) transfer * (c.getBytes().length + r.getBytes().length);
+		}
+	}
+
+	/**
+	 * A USB hub or reader controller shared by several cards. Transfers go
+	 * over it one at a time and every transfer that is queued behind others
+	 * makes the bus the given fraction slower (polling, retries), so that too
+	 * many readers talking at once get less done than fewer would.
+	 */
+	public static final class Bus {
+		private final double overhead;
+		private long busyUntil = 0;
+		private int queued = 0;
+
+		public Bus(double overhead) {
+			this.overhead = overhead;
+		}
+
+		// Returns when the transfer is over
+		void transfer(long micros) {
+			long end;
+			synchronized (this) {
+				long now = System.nanoTime();
+				long start = Math.max(now, busyUntil);
+				end = start + (long) (micros * 1000L * (1 + overhead * queued));
+				busyUntil = end;
+				queued++;
+			}
+			long left;
+			while ((left = end - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(left);
+			}
+			synchronized (this) {
+				queued--;
+			}
+		}
+	}
+
+	private volatile Latency latency = Latency.NONE;
+	private volatile Bus bus = null;
+
+	public void setLatency(Latency latency) {
+		this.latency = latency;
+	}
+
+	/**
+	 * Puts the reader of the card behind a shared bus. The transfer part of
+	 * the latency then goes over the bus.
+	 */
+	public void setBus(Bus bus) {
+		this.bus = bus;
+	}
+
+	public ResponseAPDU transmit(CommandAPDU command) {
+		return transmit(0, command);
+	}
+
+	private ResponseAPDU transmit(int channel, CommandAPDU command) {
+		ResponseAPDU response = process(channel, command);
+		Latency l = latency;
+		if (l != Latency.NONE) {
+			Bus b = bus;
+			if (b == null) {
+				LockSupport.parkNanos(l.delay(command, response) * 1000L);
+			} else {
+				long transfer = l.transferTime(command, response);
+				LockSupport.parkNanos((l.delay(command, response) - transfer) * 1000L);
+				b.transfer(transfer);
+			}
+		}
+		return response;
+	}
+
+	private synchronized ResponseAPDU process(int channel, CommandAPDU command) {
+		session = sessions[channel];
+		if (session == null)
+			return sw(0x6881);
+		int cla = command.getCLA();
+		byte[] data = command.getData();
+		// Strip C-MAC
+		if ((cla & 0x04) != 0) {
+			if (!session.authenticated && command.getINS() != 0x82 || data.length < 8)
+				return sw(0x6982);
+			data = Arrays.copyOf(data, data.length - 8);
+			if (scp == 3) {
+				data = unwrap(command, data);
+				if (data == null) {
+					closeSession();
+					return sw(0x6982);
+				}
+			}
+		}
+		int level = session.authenticated ? session.securityLevel : 0;
+		ResponseAPDU response = dispatch(command, data);
+		// Responses of the session are protected, unless the command ended it
+		if ((level & 0x10) != 0 && session.authenticated)
+			response = wrap(response, (level & 0x20) != 0);
+		return response;
+	}
+
+	private ResponseAPDU dispatch(CommandAPDU command, byte[] data) {
+		try {
+			switch (command.getINS() & 0xFF) {
+			case 0xA4:
+				return select(data);
+			case 0xCA:
+				return getData((command.getP1() << 8) | command.getP2());
+			case 0x50:
+				return initializeUpdate(command.getP1(), data);
+			case 0x82:
+				return externalAuthenticate(command.getP1(), data);
+			}
+			if (!session.authenticated)
+				return sw(0x6982);
+			if ((command.getINS() & 0xFF) == failIns && failSkip-- == 0) {
+				failIns = -1;
+				return sw(failSW);
+			}
+			switch (command.getINS() & 0xFF) {
+			case 0xF2:
+				return getStatus(command.getP1(), command.getP2());
+			case 0xE6:
+				return install(command.getP1(), data);
+			case 0xE8:
+				return load(command.getP1(), data);
+			case 0xE4:
+				return delete(command.getP2(), data);
+			case 0xD8:
+				return putKey(command.getP1(), data);
+			case 0xE2:
+				return storeData(command.getP1(), command.getP2(), data);
+			default:
+				return sw(0x6D00);
+			}
+		} catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+			return sw(0x6A80);
+		}
+	}
+
+	private ResponseAPDU select(byte[] aid) {
+		closeSession();
+		if (aid.length == 0 || ISD.equals(new AID(aid))) {
+			session.isdSelected = true;
+			byte[] a5 = tlv(0xA5, tlv(0x9F65, new byte[] { (byte) BLOCK_SIZE }));
+			return ok(tlv(0x6F, GPUtils.concatenate(tlv(0x84, ISD.bytes()), a5)));
+		}
+		session.isdSelected = false;
+		AIDRegistryEntry e = entries.get(new AID(aid));
+		return e != null && e.isApplet() ? sw(0x9000) : sw(0x6A82);
+	}
+
+	private ResponseAPDU getData(int tag) {
+		if (!session.isdSelected)
+			return sw(0x6A88);
+		switch (tag) {
+		case 0x9F7F:
+			return ok(cplc);
+		case 0x66:
+			// Card recognition data: GP 2.1.1, SCP02 i=15
+			byte[] oid = HexUtils.decodeHexString("2A864886FC6B");
+			byte[] crd = GPUtils.concatenate(tlv(0x06, GPUtils.concatenate(oid, new byte[] { 0x01 })),
+					tlv(0x60, tlv(0x06, GPUtils.concatenate(oid, HexUtils.decodeHexString("02020101")))));
+			crd = GPUtils.concatenate(crd, tlv(0x63, tlv(0x06, GPUtils.concatenate(oid, new byte[] { 0x03 }))));
+			crd = GPUtils.concatenate(crd, tlv(0x64, tlv(0x06, GPUtils.concatenate(oid, HexUtils.decodeHexString("04020215")))));
+			return ok(tlv(0x66, tlv(0x73, crd)));
+		case 0xE0:
+			ByteArrayOutputStream bo = new ByteArrayOutputStream();
+			for (int id = 1; id <= 3; id++) {
+				byte[] c0 = tlv(0xC0, new byte[] { (byte) id, (byte) keyVersion, (byte) 0x80, 0x10 });
+				bo.write(c0, 0, c0.length);
+			}
+			return ok(tlv(0xE0, bo.toByteArray()));
+		case 0xC1:
+			return ok(tlv(0xC1, new byte[] { (byte) (sequence >> 8), (byte) sequence }));
+		case 0xFF21:
+			int applications = 0;
+			for (AIDRegistryEntry e : entries.values()) {
+				if (e.isApplet())
+					applications++;
+			}
+			byte[] res = GPUtils.concatenate(tlv(0x81, new byte[] { (byte) applications }),
+					tlv(0x82, new byte[] { (byte) (freeMemory >> 24), (byte) (freeMemory >> 16), (byte) (freeMemory >> 8), (byte) freeMemory }));
+			res = GPUtils.concatenate(res, tlv(0x83, new byte[] { 0x08, 0x00 }));
+			return ok(tlv(0xFF21, res));
+		default:
+			return sw(0x6A88);
+		}
+	}
+
+	private ResponseAPDU initializeUpdate(int version, byte[] hostChallenge) {
+		closeSession();
+		if (!session.isdSelected)
+			return sw(0x6D00);
+		if (version != 0 && version != keyVersion)
+			return sw(0x6A88);
+		if (hostChallenge.length != 8)
+			return sw(0x6700);
+		// IC fabricator and type, fabrication date and serial number
+		byte[] divdata = GPUtils.concatenate(Arrays.copyOfRange(cplc, 3, 7), Arrays.copyOfRange(cplc, 13, 19));
+		if (scp == 3) {
+			// i=60: R-MAC and R-ENC, random card challenge
+			byte[] cardChallenge = new byte[8];
+			random.nextBytes(cardChallenge);
+			KeyDerivationService.Request r = new KeyDerivationService.Request(keys, false, 3, divdata, null, hostChallenge, cardChallenge);
+			KeyDerivationService.Result result = LocalKeyDerivationService.getInstance().derive(r);
+			session.sessionKeys = result.sessionKeys;
+			session.hostCryptogram = result.host_cryptogram;
+			byte[] info = new byte[] { (byte) keyVersion, 0x03, 0x60 };
+			return ok(GPUtils.concatenate(GPUtils.concatenate(divdata, info), GPUtils.concatenate(cardChallenge, result.card_cryptogram)));
+		}
+		byte[] seq = new byte[] { (byte) (sequence >> 8), (byte) sequence };
+		byte[] challenge = new byte[6];
+		random.nextBytes(challenge);
+		byte[] cardChallenge = GPUtils.concatenate(seq, challenge);
+		KeyDerivationService.Request r = new KeyDerivationService.Request(keys, false, 2, divdata, seq, hostChallenge, cardChallenge);
+		KeyDerivationService.Result result = LocalKeyDerivationService.getInstance().derive(r);
+		session.sessionKeys = result.sessionKeys;
+		session.hostCryptogram = result.host_cryptogram;
+		sequence++;
+		byte[] info = new byte[] { (byte) keyVersion, 0x02 };
+		return ok(GPUtils.concatenate(GPUtils.concatenate(divdata, info), GPUtils.concatenate(cardChallenge, result.card_cryptogram)));
+	}
+
+	private ResponseAPDU externalAuthenticate(int level, byte[] cryptogram) {
+		if (session.hostCryptogram == null)
+			return sw(0x6985);
+		if (!Arrays.equals(cryptogram, session.hostCryptogram)) {
+			closeSession();
+			return sw(0x6300);
+		}
+		// C-MAC, with C-ENC, R-MAC and R-ENC on SCP03
+		int supported = scp == 3 ? 0x33 : 0x01;
+		if ((level & 0x01) == 0 || (level & ~supported) != 0 || ((level & 0x20) != 0 && (level & 0x12) != 0x12)) {
+			closeSession();
+			return sw(0x6A86);
+		}
+		session.hostCryptogram = null;
+		session.authenticated = true;
+		session.securityLevel = level;
+		return sw(0x9000);
+	}
+
+	// Verifies the C-MAC and decrypts the data of an SCP03 command. Returns
+	// null if the MAC is wrong.
+	private byte[] unwrap(CommandAPDU command, byte[] data) {
+		if (session.sessionKeys == null)
+			return null;
+		byte[] header = { (byte) command.getCLA(), (byte) command.getINS(), (byte) command.getP1(), (byte) command.getP2(), (byte) command.getNc() };
+		byte[] mac = cmac(session.sessionKeys.getKey(KeyType.MAC), session.chaining, header, data);
+		byte[] received = Arrays.copyOfRange(command.getData(), data.length, data.length + 8);
+		if (!Arrays.equals(Arrays.copyOf(mac, 8), received))
+			return null;
+		System.arraycopy(mac, 0, session.chaining, 0, 16);
+		if (!session.authenticated || (session.securityLevel & 0x02) == 0)
+			return data;
+		GPCrypto.buffer_increment(session.counter);
+		if (data.length == 0)
+			return data;
+		byte[] plain = aes(Cipher.DECRYPT_MODE, aes(Cipher.ENCRYPT_MODE, null, session.counter), data);
+		int len = plain.length;
+		while (len > 0 && plain[len - 1] == 0)
+			len--;
+		if (len == 0 || plain[len - 1] != (byte) 0x80)
+			throw new IllegalArgumentException("Bad padding");
+		return Arrays.copyOf(plain, len - 1);
+	}
+
+	// Adds the R-MAC to an SCP03 response, encrypting the data first with
+	// R-ENC. Errors without data are left as they are.
+	private ResponseAPDU wrap(ResponseAPDU response, boolean renc) {
+		byte[] data = response.getData();
+		int sw1 = response.getSW1();
+		if (data.length == 0 && sw1 != 0x90 && sw1 != 0x62 && sw1 != 0x63)
+			return response;
+		if (renc && data.length > 0) {
+			byte[] icv = session.counter.clone();
+			icv[0] = (byte) 0x80;
+			data = aes(Cipher.ENCRYPT_MODE, aes(Cipher.ENCRYPT_MODE, null, icv), GPCrypto.pad80(data, 16));
+		}
+		byte[] sw = { (byte) sw1, (byte) response.getSW2() };
+		byte[] rmac = Arrays.copyOf(cmac(session.sessionKeys.getKey(KeyType.RMAC), session.chaining, data, sw), 8);
+		if (corruptRMAC) {
+			corruptRMAC = false;
+			rmac[0] ^= 0x01;
+		}
+		return new ResponseAPDU(GPUtils.concatenate(GPUtils.concatenate(data, rmac), sw));
+	}
+
+	// AES-CMAC over the concatenation of parts
+	private static byte[] cmac(GPKey key, byte[]... parts) {
+		CMac mac = new CMac(new AESEngine());
+		mac.init(new KeyParameter(key.getValue()));
+		for (byte[] p : parts) {
+			mac.update(p, 0, p.length);
+		}
+		byte[] out = new byte[16];
+		mac.doFinal(out, 0);
+		return out;
+	}
+
+	// AES with S-ENC, in CBC mode with the given ICV or in ECB mode without
+	private byte[] aes(int mode, byte[] icv, byte[] data) {
+		try {
+			SecretKeySpec key = new SecretKeySpec(session.sessionKeys.getKey(KeyType.ENC).getValue(), "AES");
+			Cipher cipher = Cipher.getInstance(icv == null ? "AES/ECB/NoPadding" : "AES/CBC/NoPadding");
+			if (icv == null)
+				cipher.init(mode, key);
+			else
+				cipher.init(mode, key, new IvParameterSpec(icv));
+			return cipher.doFinal(data);
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private ResponseAPDU getStatus(int p1, int p2) {
+		boolean tagged = (p2 & 0x02) != 0;
+		if ((p2 & 0x01) == 0) {
+			session.statusPending = new ArrayList<byte[]>();
+			for (AIDRegistryEntry e : entries.values()) {
+				if (matches(p1, e)) {
+					session.statusPending.add(tagged ? taggedEntry(e, p1) : legacyEntry(e, p1));
+				}
+			}
+			if (session.statusPending.isEmpty())
+				return sw(0x6A88);
+		} else if (session.statusPending == null) {
+			return sw(0x6A86);
+		}
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		while (!session.statusPending.isEmpty() && bo.size() + session.statusPending.get(0).length <= 256) {
+			byte[] e = session.statusPending.remove(0);
+			bo.write(e, 0, e.length);
+		}
+		return new ResponseAPDU(GPUtils.concatenate(bo.toByteArray(), session.statusPending.isEmpty() ? new byte[] { (byte) 0x90, 0x00 } : new byte[] { 0x63, 0x10 }));
+	}
+
+	private static boolean matches(int p1, AIDRegistryEntry e) {
+		switch (p1) {
+		case 0x80:
+			return e.getKind() == AIDRegistryEntry.Kind.IssuerSecurityDomain;
+		case 0x40:
+			return e.isApplet() || e.getKind() == AIDRegistryEntry.Kind.SecurityDomain;
+		case 0x20:
+		case 0x10:
+			return e.isPackage();
+		default:
+			return false;
+		}
+	}
+
+	private static byte[] legacyEntry(AIDRegistryEntry e, int p1) {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		bo.write(e.getAID().getLength());
+		bo.write(e.getAID().bytes(), 0, e.getAID().getLength());
+		bo.write(e.getLifeCycleState());
+		bo.write(e.getPrivileges());
+		if (p1 == 0x10) {
+			bo.write(e.getExecutableAIDs().size());
+			for (AID m : e.getExecutableAIDs()) {
+				bo.write(m.getLength());
+				bo.write(m.bytes(), 0, m.getLength());
+			}
+		}
+		return bo.toByteArray();
+	}
+
+	private static byte[] taggedEntry(AIDRegistryEntry e, int p1) {
+		byte[] v = GPUtils.concatenate(tlv(0x4F, e.getAID().bytes()), tlv(0x9F70, new byte[] { (byte) e.getLifeCycleState() }));
+		v = GPUtils.concatenate(v, tlv(0xC5, new byte[] { (byte) e.getPrivileges() }));
+		if (e.getLoadFileAID() != null)
+			v = GPUtils.concatenate(v, tlv(0xC4, e.getLoadFileAID().bytes()));
+		if (e.getVersion() != null)
+			v = GPUtils.concatenate(v, tlv(0xCE, e.getVersion()));
+		if (p1 == 0x10) {
+			for (AID m : e.getExecutableAIDs()) {
+				v = GPUtils.concatenate(v, tlv(0x84, m.bytes()));
+			}
+		}
+		return tlv(0xE3, v);
+	}
+
+	private ResponseAPDU install(int p1, byte[] data) {
+		int offset = 0;
+		switch (p1) {
+		case 0x02:
+			AID pkg = new AID(data, offset + 1, data[offset]);
+			if (entries.containsKey(pkg))
+				return sw(0x6985);
+			session.loading = pkg;
+			session.loadData = new ByteArrayOutputStream();
+			return sw(0x9000);
+		case 0x0C:
+		case 0x04:
+			AID elf = new AID(data, offset + 1, data[offset]);
+			offset += 1 + data[offset];
+			AID module = new AID(data, offset + 1, data[offset]);
+			offset += 1 + data[offset];
+			AID instance = new AID(data, offset + 1, data[offset]);
+			offset += 1 + data[offset];
+			int privileges = data[offset + 1] & 0xFF;
+			AIDRegistryEntry e = entries.get(elf);
+			if (e == null || !e.isPackage() || !e.getExecutableAIDs().contains(module))
+				return sw(0x6A88);
+			if (entries.containsKey(instance))
+				return sw(0x6A80);
+			if ((privileges & 0x04) != 0)
+				clearDefaultSelected();
+			AIDRegistryEntry app = new AIDRegistryEntry(instance, 0x07, privileges, AIDRegistryEntry.Kind.Application);
+			app.setLoadFileAID(elf);
+			entries.put(instance, app);
+			return sw(0x9000);
+		case 0x20:
+			offset = 2;
+			AID target = new AID(data, offset + 1, data[offset]);
+			AIDRegistryEntry t = entries.get(target);
+			if (t == null || !t.isApplet())
+				return sw(0x6A88);
+			session.personalizing = target;
+			return sw(0x9000);
+		case 0x08:
+			offset = 2;
+			AID aid = new AID(data, offset + 1, data[offset]);
+			AIDRegistryEntry old = entries.get(aid);
+			if (old == null || !old.isApplet())
+				return sw(0x6A88);
+			clearDefaultSelected();
+			AIDRegistryEntry def = new AIDRegistryEntry(aid, old.getLifeCycleState(), old.getPrivileges() | 0x04, old.getKind());
+			def.setLoadFileAID(old.getLoadFileAID());
+			entries.put(aid, def);
+			return sw(0x9000);
+		default:
+			return sw(0x6A86);
+		}
+	}
+
+	private void clearDefaultSelected() {
+		for (AIDRegistryEntry e : new ArrayList<AIDRegistryEntry>(entries.values())) {
+			if (!e.isPackage() && (e.getPrivileges() & 0x04) != 0) {
+				AIDRegistryEntry n = new AIDRegistryEntry(e.getAID(), e.getLifeCycleState(), e.getPrivileges() & ~0x04, e.getKind());
+				n.setLoadFileAID(e.getLoadFileAID());
+				entries.put(e.getAID(), n);
+			}
+		}
+	}
+
+	private ResponseAPDU load(int p1, byte[] block) {
+		if (session.loading == null)
+			return sw(0x6985);
+		session.loadData.write(block, 0, block.length);
+		if ((p1 & 0x80) == 0)
+			return sw(0x9000);
+		AID aid = session.loading;
+		byte[] data = session.loadData.toByteArray();
+		session.loading = null;
+		session.loadData = null;
+		// Skip the C4 tag and length of load file data block
+		int offset = 1;
+		int len = data[offset++] & 0xFF;
+		if (len == 0x81) {
+			offset++;
+		} else if (len == 0x82) {
+			offset += 2;
+		}
+		CapFile cap;
+		try {
+			cap = CapFile.fromIJC(new ByteArrayInputStream(data, offset, data.length - offset));
+		} catch (IOException e) {
+			return sw(0x6A80);
+		}
+		if (!cap.getPackageAID().equals(aid))
+			return sw(0x6A80);
+		int size = data.length - offset;
+		if (size > freeMemory)
+			return sw(0x6A84);
+		freeMemory -= size;
+		loadFileSizes.put(aid, size);
+		loadFileImports.put(aid, cap.getImportAIDs());
+		AIDRegistryEntry e = new AIDRegistryEntry(aid, 0x01, 0x00, AIDRegistryEntry.Kind.ExecutableLoadFilesAndModules);
+		for (AID a : cap.getAppletAIDs()) {
+			e.addExecutableAID(a);
+		}
+		e.setVersion(cap.getPackageVersion());
+		entries.put(aid, e);
+		return sw(0x9000);
+	}
+
+	private ResponseAPDU delete(int p2, byte[] data) {
+		AID aid = new AID(data, 2, data[1]);
+		AIDRegistryEntry e = entries.get(aid);
+		if (e == null || e.getKind() == AIDRegistryEntry.Kind.IssuerSecurityDomain)
+			return sw(0x6A88);
+		if (e.isPackage()) {
+			// Load files importing it are not deleted with it
+			for (List<AID> imports : loadFileImports.values()) {
+				if (imports.contains(aid))
+					return sw(0x6985);
+			}
+			List<AID> instances = new ArrayList<AID>();
+			for (AIDRegistryEntry i : entries.values()) {
+				if (aid.equals(i.getLoadFileAID()))
+					instances.add(i.getAID());
+			}
+			if (!instances.isEmpty() && (p2 & 0x80) == 0)
+				return sw(0x6985);
+			for (AID i : instances) {
+				entries.remove(i);
+			}
+		}
+		entries.remove(aid);
+		loadFileImports.remove(aid);
+		Integer size = loadFileSizes.remove(aid);
+		if (size != null)
+			freeMemory += size;
+		return sw(0x9000);
+	}
+
+	private ResponseAPDU putKey(int p1, byte[] data) {
+		if (scp != 2)
+			return sw(0x6D00);
+		if (p1 != 0 && p1 != keyVersion)
+			return sw(0x6A88);
+		int version = data[0] & 0xFF;
+		GPKeySet updated = new GPKeySet();
+		KeyType[] types = { KeyType.ENC, KeyType.MAC, KeyType.KEK };
+		int offset = 1;
+		try {
+			Cipher cipher = Cipher.getInstance("DESede/ECB/NoPadding");
+			cipher.init(Cipher.DECRYPT_MODE, session.sessionKeys.getKey(KeyType.KEK).getKey());
+			for (KeyType type : types) {
+				if (offset >= data.length || (data[offset] & 0xFF) != 0x80 || data[offset + 1] != 16)
+					return sw(0x6A80);
+				byte[] value = cipher.doFinal(data, offset + 2, 16);
+				updated.setKey(type, new GPKey(value, Type.DES3));
+				offset += 2 + 16;
+				offset += 1 + data[offset];
+			}
+		} catch (GeneralSecurityException e) {
+			return sw(0x6F00);
+		}
+		keys = updated;
+		keyVersion = version;
+		return ok(new byte[] { (byte) version });
+	}
+
+	private void closeSession() {
+		session.authenticated = false;
+		session.securityLevel = 0;
+		Arrays.fill(session.chaining, (byte) 0);
+		Arrays.fill(session.counter, (byte) 0);
+		session.sessionKeys = null;
+		session.hostCryptogram = null;
+		session.loading = null;
+		session.loadData = null;
+		session.statusPending = null;
+		session.personalizing = null;
+		session.storeData = null;
+	}
+
+	private ResponseAPDU storeData(int p1, int p2, byte[] data) {
+		if (session.storeData == null) {
+			if (p2 != 0)
+				return sw(0x6A86);
+			session.storeData = new ByteArrayOutputStream();
+			session.storeBlock = 0;
+		}
+		if (p2 != (session.storeBlock & 0xFF))
+			return sw(0x6A86);
+		session.storeBlock++;
+		session.storeData.write(data, 0, data.length);
+		if ((p1 & 0x80) != 0) {
+			AID target = session.personalizing == null ? ISD : session.personalizing;
+			if (!stored.containsKey(target))
+				stored.put(target, new ArrayList<byte[]>());
+			stored.get(target).add(session.storeData.toByteArray());
+			session.storeData = null;
+		}
+		return sw(0x9000);
+	}
+
+	private static byte[] tlv(int tag, byte[] value) {
+		byte[] t = tag > 0xFF ? new byte[] { (byte) (tag >> 8), (byte) tag } : new byte[] { (byte) tag };
+		byte[] l = value.length > 0x7F ? new byte[] { (byte) 0x81, (byte) value.length } : new byte[] { (byte) value.length };
+		return GPUtils.concatenate(GPUtils.concatenate(t, l), value);
+	}
+
+	private static ResponseAPDU ok(byte[] data) {
+		return new ResponseAPDU(GPUtils.concatenate(data, new byte[] { (byte) 0x90, 0x00 }));
+	}
+
+	private static ResponseAPDU sw(int sw) {
+		return new ResponseAPDU(new byte[] { (byte) (sw >> 8), (byte) sw });
+	}
+
+	private final class SimCard extends Card {
+		private final SimChannel basic = new SimChannel(0);
+
+		public ATR getATR() {
+			return new ATR(atr);
+		}
+
+		public String getProtocol() {
+			return "T=1";
+		}
+
+		public CardChannel getBasicChannel() {
+			return basic;
+		}
+
+		// MANAGE CHANNEL open, with the ISD selected as on the basic channel
+		public CardChannel openLogicalChannel() throws CardException {
+			synchronized (SimulatedCard.this) {
+				for (int i = 1; i < sessions.length; i++) {
+					if (sessions[i] == null) {
+						sessions[i] = new Session();
+						sessions[i].isdSelected = sessions[0].isdSelected;
+						return new SimChannel(i);
+					}
+				}
+			}
+			throw new CardException("No free logical channel");
+		}
+
+		public void beginExclusive() {
+		}
+
+		public void endExclusive() {
+		}
+
+		public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+			throw new CardException("Control commands are not simulated");
+		}
+
+		public void disconnect(boolean reset) {
+			if (reset) {
+				synchronized (SimulatedCard.this) {
+					for (int i = 1; i < sessions.length; i++) {
+						sessions[i] = null;
+					}
+					session = sessions[0];
+					closeSession();
+					session.isdSelected = false;
+				}
+			}
+		}
+	}
+
+	private final class SimChannel extends CardChannel {
+		private final int number;
+
+		SimChannel(int number) {
+			this.number = number;
+		}
+
+		public Card getCard() {
+			return card;
+		}
+
+		public int getChannelNumber() {
+			return number;
+		}
+
+		public ResponseAPDU transmit(CommandAPDU command) {
+			return SimulatedCard.this.transmit(number, command);
+		}
+
+		public int transmit(ByteBuffer command, ByteBuffer response) {
+			byte[] c = new byte[command.remaining()];
+			command.get(c);
+			byte[] r = transmit(new CommandAPDU(c)).getBytes();
+			response.put(r);
+			return r.length;
+		}
+
+		// MANAGE CHANNEL close
+		public void close() {
+			if (number == 0)
+				throw new IllegalStateException("Basic channel can not be closed");
+			synchronized (SimulatedCard.this) {
+				sessions[number] = null;
+			}
+		}
+	}
+
+	public String toString() {
+		return "Simulated card " + HexUtils.encodeHexString(Arrays.copyOfRange(cplc, 15, 19));
+	}
+}
@@ -0,0 +1,104 @@
+package pro.javacard.gp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+
+/**
+ * Readers with a {@link SimulatedCard} in each, usable wherever PC/SC
+ * terminals are.
+ */
+public class SimulatedTerminals extends CardTerminals {
+	private final List<CardTerminal> terminals = new ArrayList<CardTerminal>();
+
+	/**
+	 * Creates count readers, with cards numbered from 1.
+	 */
+	public SimulatedTerminals(int count) {
+		for (int i = 1; i <= count; i++) {
+			terminals.add(new SimulatedTerminal("Simulated reader " + i, new SimulatedCard(i)));
+		}
+	}
+
+	public SimulatedTerminals(List<SimulatedCard> cards) {
+		for (int i = 0; i < cards.size(); i++) {
+			terminals.add(new SimulatedTerminal("Simulated reader " + (i + 1), cards.get(i)));
+		}
+	}
+
+	public List<CardTerminal> list(State state) throws CardException {
+		if (state == State.ALL || state == State.CARD_PRESENT)
+			return Collections.unmodifiableList(terminals);
+		return Collections.emptyList();
+	}
+
+	public boolean waitForChange(long timeout) throws CardException {
+		// Cards are never inserted or removed
+		try {
+			Thread.sleep(timeout == 0 ? Long.MAX_VALUE : timeout);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	public static final class SimulatedTerminal extends CardTerminal {
+		private final String name;
+		private volatile SimulatedCard card;
+		private volatile boolean swapped = false;
+
+		public SimulatedTerminal(String name, SimulatedCard card) {
+			this.name = name;
+			this.card = card;
+		}
+
+		public SimulatedCard getSimulatedCard() {
+			return card;
+		}
+
+		/**
+		 * Replaces the card in the reader. The reader reports no card once
+		 * afterwards, as a real one polled during the swap would.
+		 */
+		public void insert(SimulatedCard card) {
+			this.card = card;
+			swapped = true;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Card connect(String protocol) throws CardException {
+			if (!protocol.equals("*") && !protocol.equals("T=1"))
+				throw new CardException("Protocol " + protocol + " not supported");
+			return card.getCard();
+		}
+
+		public boolean isCardPresent() {
+			if (swapped) {
+				swapped = false;
+				return false;
+			}
+			return true;
+		}
+
+		public boolean waitForCardPresent(long timeout) {
+			return true;
+		}
+
+		public boolean waitForCardAbsent(long timeout) {
+			try {
+				Thread.sleep(timeout == 0 ? Long.MAX_VALUE : timeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package pro.javacard.gp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import pro.javacard.gp.GPData.KeyType;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+import apdu4j.TerminalManager;
+
+/**
+ * Measures the cold start time of gp.jar by running it repeatedly in fresh
+ * JVM-s, with and without a class data sharing archive. With --train it
+ * instead goes through the code paths of a typical run, so that the list of
+ * loaded classes can be used to build the archive.
+ */
+public class StartupBenchmark {
+
+	public static void main(String[] argv) throws Exception {
+		if (argv.length > 0 && argv[0].equals("--train")) {
+			train();
+			return;
+		}
+		if (argv.length < 1) {
+			System.err.println("Usage: StartupBenchmark <gp.jar> [archive.jsa] [runs] [-- gp arguments]");
+			System.exit(1);
+		}
+
+		File jar = new File(argv[0]).getAbsoluteFile();
+		File archive = argv.length > 1 && !argv[1].equals("--") ? new File(argv[1]).getAbsoluteFile() : null;
+		int runs = argv.length > 2 && !argv[2].equals("--") ? Integer.parseInt(argv[2]) : 20;
+		List<String> gpargs = new ArrayList<String>();
+		int sep = Arrays.asList(argv).indexOf("--");
+		if (sep >= 0) {
+			gpargs.addAll(Arrays.asList(argv).subList(sep + 1, argv.length));
+		} else {
+			gpargs.add("--version");
+		}
+
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<String> plain = new ArrayList<String>(Arrays.asList(java, "-Xshare:auto", "-jar", jar.getPath()));
+		plain.addAll(gpargs);
+		report("default", measure(plain, runs));
+
+		if (archive != null) {
+			if (!archive.isFile()) {
+				System.err.println("Archive " + archive + " not found");
+				System.exit(1);
+			}
+			List<String> shared = new ArrayList<String>(Arrays.asList(java, "-Xshare:auto", "-XX:SharedArchiveFile=" + archive.getPath(), "-jar", jar.getPath()));
+			shared.addAll(gpargs);
+			report("appcds", measure(shared, runs));
+		}
+	}
+
+	private static List<Long> measure(List<String> cmd, int runs) throws IOException, InterruptedException {
+		// One run to warm up the file system cache
+		run(cmd);
+		List<Long> times = new ArrayList<Long>(runs);
+		for (int i = 0; i < runs; i++) {
+			times.add(run(cmd));
+		}
+		Collections.sort(times);
+		return times;
+	}
+
+	private static long run(List<String> cmd) throws IOException, InterruptedException {
+		ProcessBuilder pb = new ProcessBuilder(cmd);
+		pb.redirectErrorStream(true);
+		long start = System.nanoTime();
+		Process p = pb.start();
+		// Drain output
+		InputStream in = p.getInputStream();
+		byte[] buf = new byte[1024];
+		while (in.read(buf) != -1) {
+			continue;
+		}
+		p.waitFor();
+		return System.nanoTime() - start;
+	}
+
+	private static void report(String name, List<Long> times) {
+		long sum = 0;
+		for (long t : times) {
+			sum += t;
+		}
+		System.out.println(String.format("%-8s runs: %d min: %d ms median: %d ms mean: %d ms max: %d ms", name, times.size(),
+				times.get(0) / 1000000, times.get(times.size() / 2) / 1000000, sum / times.size() / 1000000, times.get(times.size() - 1) / 1000000));
+	}
+
+	// Load the classes used by a typical gp invocation, without a card
+	private static void train() throws Exception {
+		GPTool.getKeySet(GPTool.parseArguments(new String[] { "--list", "--mode", "mac", "--sdaid", "A000000003000000" }));
+		try {
+			TerminalManager.getTerminalFactory(true).terminals().list();
+		} catch (Exception e) {
+			// No PC/SC on this host
+		}
+
+		// Session keys and C-MAC of SCP01/02/03
+		byte[] challenge = new byte[8];
+		byte[] apdu = new byte[] { (byte) 0x84, (byte) 0xF2, (byte) 0x80, 0x00, 0x0A, 0x4F, 0x00 };
+		for (int scp = 1; scp <= 3; scp++) {
+			GPKeySet keys = new GPKeySet(new GPKey(GPData.defaultKey, scp == 3 ? Type.AES : Type.DES3));
+			KeyDerivationService.Request r = new KeyDerivationService.Request(keys, false, scp, new byte[10], new byte[2], challenge, challenge);
+			GPKeySet session = LocalKeyDerivationService.getInstance().derive(r).sessionKeys;
+			if (scp == 3) {
+				GPCrypto.scp03_mac(session.getKey(KeyType.MAC), GPUtils.concatenate(new byte[16], apdu), 64);
+			} else {
+				GPCrypto.mac_des_3des(session.getKey(KeyType.MAC), GPCrypto.pad80(apdu, 8), GPCrypto.null_bytes_8);
+			}
+		}
+	}
+}
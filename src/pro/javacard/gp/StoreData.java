@@ -0,0 +1,207 @@
+package pro.javacard.gp;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * A stream of records (DGI or BER-TLV) sent with STORE DATA over a secure
+ * channel. Records are concatenated and cut into commands of the largest
+ * size the secure channel allows, so a record can span several commands.
+ * Commands are numbered from 0 and the last one is marked by {@link #close()}.
+ *
+ * Unless responses are MAC-ed, the next command is wrapped (MAC and
+ * encryption) on a helper thread while the previous one is with the card.
+ * Commands are transmitted on the calling thread.
+ */
+public class StoreData {
+	public static final int DGI = 0x08;
+	public static final int BER_TLV = 0x10;
+	private static final int ENCRYPTED = 0x60;
+	private static final int LAST = 0x80;
+
+	private final GlobalPlatform gp;
+	private final int format;
+	private final int payload;
+	private final ExecutorService wrapper;
+
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	private boolean pendingEncrypted = false;
+	// Cut but not yet numbered, as it might be the last one
+	private byte[] held = null;
+	private boolean heldEncrypted = false;
+	// Wrapped and ready for transmission
+	private Future<CommandAPDU> next = null;
+	private int block = 0;
+	private boolean closed = false;
+
+	StoreData(GlobalPlatform gp, int format) {
+		this.gp = gp;
+		this.format = format;
+		this.payload = gp.getPayloadSize();
+		this.wrapper = gp.canWrapAhead() ? Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "STORE DATA wrapper");
+				t.setDaemon(true);
+				return t;
+			}
+		}) : null;
+	}
+
+	/**
+	 * Adds a complete record.
+	 */
+	public void write(byte[] record) throws CardException, GPException {
+		write(record, false);
+	}
+
+	/**
+	 * Adds a complete record, already encrypted if encrypted is set. Plain
+	 * and encrypted records are not sent in the same command.
+	 */
+	public void write(byte[] record, boolean encrypted) throws CardException, GPException {
+		if (closed)
+			throw new IllegalStateException("STORE DATA already closed");
+		if (encrypted != pendingEncrypted) {
+			while (pending.size() > 0) {
+				cut(Math.min(payload, pending.size()));
+			}
+			pendingEncrypted = encrypted;
+		}
+		pending.write(record, 0, record.length);
+		while (pending.size() > payload) {
+			cut(payload);
+		}
+	}
+
+	/**
+	 * Adds a DGI record, encrypting the value with the data encryption key
+	 * of the secure channel if asked.
+	 */
+	public void writeDGI(int tag, byte[] value, boolean encrypt) throws CardException, GPException {
+		if (encrypt)
+			value = gp.encryptData(value);
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		bo.write(tag >> 8);
+		bo.write(tag);
+		if (value.length < 0xFF) {
+			bo.write(value.length);
+		} else {
+			bo.write(0xFF);
+			bo.write(value.length >> 8);
+			bo.write(value.length);
+		}
+		bo.write(value, 0, value.length);
+		write(bo.toByteArray(), encrypt);
+	}
+
+	/**
+	 * Sends what is left as the last block and waits for the card to accept
+	 * all of it.
+	 */
+	public void close() throws CardException, GPException {
+		if (closed)
+			return;
+		try {
+			while (pending.size() > 0) {
+				cut(Math.min(payload, pending.size()));
+			}
+			if (held != null) {
+				send(held, heldEncrypted, true);
+				held = null;
+			}
+			if (next != null) {
+				Future<CommandAPDU> last = next;
+				next = null;
+				transmit(last);
+			}
+		} finally {
+			closed = true;
+			if (wrapper != null)
+				wrapper.shutdown();
+		}
+	}
+
+	/**
+	 * Number of STORE DATA commands so far.
+	 */
+	public int getBlockCount() {
+		return block;
+	}
+
+	// Takes len bytes from the start of pending
+	private void cut(int len) throws CardException, GPException {
+		byte[] data = pending.toByteArray();
+		byte[] chunk = new byte[len];
+		System.arraycopy(data, 0, chunk, 0, len);
+		pending.reset();
+		pending.write(data, len, data.length - len);
+		if (held != null)
+			send(held, heldEncrypted, false);
+		held = chunk;
+		heldEncrypted = pendingEncrypted;
+	}
+
+	private void send(byte[] data, boolean encrypted, boolean last) throws CardException, GPException {
+		try {
+			sendBlock(data, encrypted, last);
+		} catch (CardException | GPException | RuntimeException e) {
+			// Nothing more goes out after a failure
+			closed = true;
+			if (wrapper != null)
+				wrapper.shutdownNow();
+			throw e;
+		}
+	}
+
+	private void sendBlock(byte[] data, boolean encrypted, boolean last) throws CardException, GPException {
+		int p1 = format | (encrypted ? ENCRYPTED : 0) | (last ? LAST : 0);
+		final CommandAPDU command = new CommandAPDU(0x80, GlobalPlatform.INS_STORE_DATA, p1, block & 0xFF, data);
+		block++;
+		Future<CommandAPDU> wrapped = null;
+		if (wrapper != null) {
+			wrapped = wrapper.submit(new Callable<CommandAPDU>() {
+				public CommandAPDU call() throws CardException {
+					return gp.wrap(command);
+				}
+			});
+		}
+		try {
+			if (next != null)
+				transmit(next);
+		} finally {
+			next = wrapped;
+		}
+		if (wrapper == null) {
+			check(command, gp.transmit(command));
+		}
+	}
+
+	private void transmit(Future<CommandAPDU> wrapped) throws CardException, GPException {
+		CommandAPDU command;
+		try {
+			command = wrapped.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof CardException)
+				throw (CardException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new CardException("Interrupted");
+		}
+		check(command, gp.transmitWrapped(command));
+	}
+
+	private static void check(CommandAPDU command, ResponseAPDU response) throws GPException {
+		if (response.getSW() != 0x9000)
+			throw new GPException(response.getSW(), "STORE DATA failed for block " + command.getP2());
+	}
+}
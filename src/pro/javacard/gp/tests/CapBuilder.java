@@ -0,0 +1,113 @@
+package pro.javacard.gp.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import pro.javacard.gp.AID;
+import pro.javacard.gp.CapFile;
+
+/**
+ * Builds minimal CAP files, with Header, Applet and Import components only,
+ * that the simulated card accepts for LOAD.
+ */
+class CapBuilder {
+	private final String name;
+	private final AID pkg;
+	private AID applet = null;
+	private AID[] imports = new AID[0];
+	private int padding = 0;
+
+	CapBuilder(String name, String pkg) {
+		this.name = name;
+		this.pkg = new AID(pkg);
+	}
+
+	CapBuilder applet(String aid) {
+		applet = new AID(aid);
+		return this;
+	}
+
+	CapBuilder imports(String... aids) {
+		imports = new AID[aids.length];
+		for (int i = 0; i < aids.length; i++) {
+			imports[i] = new AID(aids[i]);
+		}
+		return this;
+	}
+
+	// Makes the load file bigger by this many bytes
+	CapBuilder padding(int bytes) {
+		padding = bytes;
+		return this;
+	}
+
+	CapFile build() throws IOException {
+		return new CapFile(new ByteArrayInputStream(toBytes()));
+	}
+
+	File write(File dir) throws IOException {
+		File f = new File(dir, name + ".cap");
+		try (OutputStream out = new FileOutputStream(f)) {
+			out.write(toBytes());
+		}
+		return f;
+	}
+
+	byte[] toBytes() throws IOException {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		try (ZipOutputStream z = new ZipOutputStream(bo)) {
+			z.putNextEntry(new ZipEntry("META-INF/MANIFEST.MF"));
+			z.write("Manifest-Version: 1.0\r\n\r\n".getBytes("US-ASCII"));
+			String base = name.replace('.', '/') + "/javacard/";
+
+			// Magic, version, flags, package version and AID
+			ByteArrayOutputStream h = new ByteArrayOutputStream();
+			h.write(new byte[] { 1, 0, 0, (byte) 0xDE, (byte) 0xCA, (byte) 0xFF, (byte) 0xED, 1, 2, 0, 0, 1 });
+			h.write(pkg.getLength());
+			h.write(pkg.getBytes());
+			put(z, base + "Header.cap", h);
+
+			if (applet != null) {
+				ByteArrayOutputStream a = new ByteArrayOutputStream();
+				a.write(new byte[] { 3, 0, 0, 1 });
+				a.write(applet.getLength());
+				a.write(applet.getBytes());
+				a.write(new byte[] { 0, 0 });
+				put(z, base + "Applet.cap", a);
+			}
+
+			ByteArrayOutputStream im = new ByteArrayOutputStream();
+			im.write(new byte[] { 4, 0, 0 });
+			im.write(imports.length);
+			for (AID i : imports) {
+				im.write(new byte[] { 0, 1 });
+				im.write(i.getLength());
+				im.write(i.getBytes());
+			}
+			put(z, base + "Import.cap", im);
+
+			if (padding > 0) {
+				ByteArrayOutputStream m = new ByteArrayOutputStream();
+				m.write(new byte[] { 7, 0, 0 });
+				m.write(new byte[padding]);
+				put(z, base + "Method.cap", m);
+			}
+		}
+		return bo.toByteArray();
+	}
+
+	// With the component length filled in
+	private static void put(ZipOutputStream z, String entry, ByteArrayOutputStream component) throws IOException {
+		byte[] c = component.toByteArray();
+		c[1] = (byte) ((c.length - 3) >> 8);
+		c[2] = (byte) (c.length - 3);
+		z.putNextEntry(new ZipEntry(entry));
+		z.write(c);
+	}
+}
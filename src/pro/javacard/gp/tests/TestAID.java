@@ -0,0 +1,22 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import pro.javacard.gp.AID;
+
+public class TestAID {
+
+	@Test
+	public void testIntern() throws Exception {
+		AID aid = AID.intern(new AID("a0000001510000"));
+		assertSame(aid, AID.intern(new AID("A0000001510000")));
+		assertEquals("A0000001510000", aid.toString());
+		// Callers can not change a shared AID
+		aid.getBytes()[0] = 0;
+		assertEquals(new AID("A0000001510000"), aid);
+		assertEquals(new AID("A0000001510000").hashCode(), aid.hashCode());
+	}
+}
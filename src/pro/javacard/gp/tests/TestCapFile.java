@@ -0,0 +1,26 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import pro.javacard.gp.AID;
+import pro.javacard.gp.CapFile;
+
+public class TestCapFile {
+
+	static CapFile cap() throws IOException {
+		return new CapBuilder("test.app", "A000000201").applet("A00000020101").imports("A000000101", "A0000000620001").padding(100).build();
+	}
+
+	@Test
+	public void testCap() throws Exception {
+		CapFile cap = cap();
+		assertEquals(new AID("A000000201"), cap.getPackageAID());
+		assertEquals(Arrays.asList(new AID("A00000020101")), cap.getAppletAIDs());
+		assertEquals(Arrays.asList(new AID("A000000101"), new AID("A0000000620001")), cap.getImportAIDs());
+	}
+}
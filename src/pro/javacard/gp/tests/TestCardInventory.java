@@ -0,0 +1,99 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pro.javacard.gp.AID;
+import pro.javacard.gp.AIDRegistry;
+import pro.javacard.gp.AIDRegistryEntry;
+import pro.javacard.gp.CardInventory;
+import pro.javacard.gp.CardInventory.Snapshot;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.SimulatedCard;
+
+public class TestCardInventory {
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		file = File.createTempFile("gpinventory", ".db");
+		file.delete();
+	}
+
+	@After
+	public void tearDown() {
+		file.delete();
+	}
+
+	private static Snapshot snapshot(String id, long timestamp, int keyVersion, String... packages) {
+		AIDRegistry r = new AIDRegistry();
+		r.add(new AIDRegistryEntry(SimulatedCard.ISD, 0x0F, 0x9E, AIDRegistryEntry.Kind.IssuerSecurityDomain));
+		for (String p : packages) {
+			r.add(new AIDRegistryEntry(new AID(p), 0x01, 0x00, AIDRegistryEntry.Kind.ExecutableLoadFiles));
+		}
+		List<GPKey> keys = new ArrayList<GPKey>();
+		keys.add(new GPKey(keyVersion, 1, 16, 0x80));
+		return new Snapshot(id, timestamp, new byte[] { 0x3B, 0x00 }, null, SimulatedCard.ISD, keys, r);
+	}
+
+	@Test
+	public void testRecordAndQuery() throws Exception {
+		CardInventory inv = CardInventory.open(file);
+		inv.record(snapshot("01", 1000, 1, "A000000101"));
+		inv.record(snapshot("02", 1000, 2, "A000000101", "A000000201"));
+		// Newer snapshot of the first card
+		inv.record(snapshot("01", 2000, 2));
+		inv.close();
+
+		inv = CardInventory.open(file);
+		assertEquals(2, inv.getAll().size());
+		assertEquals(2000, inv.get("01").timestamp);
+		assertEquals(1, inv.findByAID(new AID("A000000101")).size());
+		assertEquals("02", inv.findByAID(new AID("A000000201")).get(0).id);
+		assertEquals(2, inv.findByKeyVersion(2).size());
+		assertTrue(inv.findByKeyVersion(1).isEmpty());
+		assertArrayEquals(new byte[] { 0x3B, 0x00 }, inv.get("02").atr);
+		inv.close();
+	}
+
+	@Test
+	public void testTornRecord() throws Exception {
+		CardInventory inv = CardInventory.open(file);
+		inv.record(snapshot("01", 1000, 1, "A000000101"));
+		inv.close();
+		try (OutputStream o = new FileOutputStream(file, true)) {
+			o.write(new byte[] { 0, 0, 0, 50, 1, 2, 3 });
+		}
+		inv = CardInventory.open(file);
+		assertEquals(1, inv.getAll().size());
+		// Goes after the last good record
+		inv.record(snapshot("02", 1000, 1));
+		inv.close();
+		assertEquals(2, CardInventory.open(file).getAll().size());
+	}
+
+	@Test
+	public void testCompact() throws Exception {
+		CardInventory inv = CardInventory.open(file);
+		for (int i = 0; i < 10; i++) {
+			inv.record(snapshot("01", 1000 + i, 1, "A000000101"));
+		}
+		long before = file.length();
+		inv.compact();
+		assertTrue(file.length() < before);
+		inv = CardInventory.open(file);
+		assertEquals(1009, inv.get("01").timestamp);
+		inv.close();
+	}
+}
@@ -0,0 +1,118 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+import static pro.javacard.gp.tests.TestDiversifiedKeyFile.assertSameKeys;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pro.javacard.gp.CardKeyStore;
+import pro.javacard.gp.GPData.KeyType;
+import pro.javacard.gp.GPKeySet;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+
+public class TestCardKeyStore {
+	private static final char[] PASSWORD = "secret".toCharArray();
+
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("gpkeys").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	private static GPKeySet keys(int first) {
+		GPKeySet ks = new GPKeySet();
+		KeyType[] types = { KeyType.ENC, KeyType.MAC, KeyType.KEK };
+		for (int i = 0; i < types.length; i++) {
+			byte[] v = new byte[16];
+			for (int j = 0; j < v.length; j++) {
+				v[j] = (byte) (first + i * 16 + j);
+			}
+			ks.setKey(types[i], new GPKey(v, Type.DES3));
+		}
+		ks.setKeyVersion(0x20);
+		return ks;
+	}
+
+	@Test
+	public void testPutAndGet() throws Exception {
+		File f = new File(dir, "keys");
+		try (CardKeyStore store = CardKeyStore.open(f, PASSWORD, 1)) {
+			store.put("0102030405", keys(0));
+			store.put("A1B2", keys(100));
+			// Newest wins
+			store.put("0102030405", keys(50));
+			assertEquals(2, store.size());
+		}
+		try (CardKeyStore store = CardKeyStore.open(f, PASSWORD, 1)) {
+			assertEquals(2, store.size());
+			GPKeySet ks = store.get("0102030405");
+			assertSameKeys(keys(50), ks);
+			assertEquals(0x20, ks.getKeyVersion());
+			// Same card, whatever the case
+			assertSameKeys(keys(100), store.get("a1b2"));
+			assertNull(store.get("FFFF"));
+		}
+	}
+
+	@Test
+	public void testWrongPassword() throws Exception {
+		File f = new File(dir, "keys");
+		CardKeyStore.open(f, PASSWORD, 1).close();
+		try {
+			CardKeyStore.open(f, "wrong".toCharArray(), 1);
+			fail("Wrong password should be refused");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testIdentity() throws Exception {
+		assertEquals("A1B2", CardKeyStore.normalize(" a1b2 "));
+		for (String bad : new String[] { "", "A1B", "XYZ1" }) {
+			try {
+				CardKeyStore.normalize(bad);
+				fail(bad + " should be refused");
+			} catch (IllegalArgumentException e) {
+				// Expected
+			}
+		}
+	}
+
+	@Test
+	public void testTornRecord() throws Exception {
+		File f = new File(dir, "keys");
+		try (CardKeyStore store = CardKeyStore.open(f, PASSWORD, 1)) {
+			store.put("01", keys(0));
+			store.put("02", keys(50));
+		}
+		// Cut into the last record
+		try (OutputStream o = new FileOutputStream(f, true)) {
+			o.write(new byte[] { 0, 0, 1 });
+		}
+		try (CardKeyStore store = CardKeyStore.open(f, PASSWORD, 1)) {
+			assertEquals(2, store.size());
+			assertSameKeys(keys(50), store.get("02"));
+		}
+	}
+}
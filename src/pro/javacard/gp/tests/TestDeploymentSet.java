@@ -0,0 +1,51 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pro.javacard.gp.AID;
+import pro.javacard.gp.AIDRegistry;
+import pro.javacard.gp.DeploymentSet;
+import pro.javacard.gp.GlobalPlatform;
+
+public class TestDeploymentSet {
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("gpdeploy").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	@Test
+	public void testLoadOrder() throws Exception {
+		File app = new CapBuilder("test.app", "A000000201").applet("A00000020101").imports("A000000101").write(dir);
+		File lib = new CapBuilder("test.lib", "A000000101").imports("A0000000620001").write(dir);
+		DeploymentSet set = DeploymentSet.prepare(Arrays.asList(app, lib), GlobalPlatform.defaultLoadSize);
+		assertEquals(new AID("A000000101"), set.getCapFiles().get(0).getPackageAID());
+		assertEquals(new AID("A000000201"), set.getCapFiles().get(1).getPackageAID());
+	}
+
+	@Test
+	public void testMissingImports() throws Exception {
+		// Java Card and GlobalPlatform API packages are never missing
+		File app = new CapBuilder("test.app", "A000000201").imports("A0000000620001", "A00000015100", "A000000101").write(dir);
+		DeploymentSet set = DeploymentSet.prepare(Arrays.asList(app), GlobalPlatform.defaultLoadSize);
+		assertEquals(Collections.singleton(new AID("A000000101")), set.getMissingImports(new AIDRegistry()));
+	}
+}
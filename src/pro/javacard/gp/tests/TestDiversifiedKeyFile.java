@@ -0,0 +1,145 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pro.javacard.gp.DiversifiedKeyFile;
+import pro.javacard.gp.GPData;
+import pro.javacard.gp.GPData.KeyType;
+import pro.javacard.gp.GPException;
+import pro.javacard.gp.GPKeySet;
+import pro.javacard.gp.GPKeySet.Diversification;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+import pro.javacard.gp.GlobalPlatform;
+import pro.javacard.gp.GlobalPlatform.APDUMode;
+import pro.javacard.gp.SimulatedCard;
+import apdu4j.HexUtils;
+
+public class TestDiversifiedKeyFile {
+	private static final char[] PASSWORD = "secret".toCharArray();
+	// Diversification data of SimulatedCard(1): IC fabricator and type, fabrication date, serial
+	private static final String CARD_1 = "47905033000000000001";
+
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("gpkeys").toFile();
+	}
+
+	@After
+	public void tearDown() {
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	static void assertSameKeys(GPKeySet expected, GPKeySet actual) {
+		for (KeyType t : new KeyType[] { KeyType.ENC, KeyType.MAC, KeyType.KEK }) {
+			assertArrayEquals(t.toString(), expected.getKey(t).getValue(), actual.getKey(t).getValue());
+		}
+	}
+
+	private static GPKeySet master() {
+		return new GPKeySet(new GPKey(GPData.defaultKey, Type.DES3), Diversification.VISA2);
+	}
+
+	@Test
+	public void testLookup() throws Exception {
+		List<byte[]> cards = new ArrayList<byte[]>();
+		for (int i = 0; i < 100; i++) {
+			byte[] data = new byte[10];
+			data[8] = (byte) (i >> 8);
+			data[9] = (byte) i;
+			cards.add(data);
+		}
+		File f = new File(dir, "batch");
+		assertEquals(100, DiversifiedKeyFile.create(f, PASSWORD, master(), cards, 3));
+
+		DiversifiedKeyFile file = DiversifiedKeyFile.open(f, PASSWORD);
+		assertEquals(100, file.size());
+		for (byte[] data : cards) {
+			GPKeySet expected = master();
+			expected.diversify(data, 2);
+			assertSameKeys(expected, file.lookup(data, 2));
+		}
+		assertNull(file.lookup(HexUtils.stringToBin("FFFFFFFFFFFFFFFFFFFF"), 2));
+	}
+
+	@Test
+	public void testWrongPassword() throws Exception {
+		List<byte[]> cards = new ArrayList<byte[]>();
+		cards.add(HexUtils.stringToBin(CARD_1));
+		File f = new File(dir, "batch");
+		DiversifiedKeyFile.create(f, PASSWORD, master(), cards, 1);
+		try {
+			DiversifiedKeyFile.open(f, "wrong".toCharArray());
+			fail("Wrong password should be refused");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testManifest() throws Exception {
+		File m = new File(dir, "manifest");
+		Files.write(m.toPath(), ("# cards\n" + CARD_1 + " first\n\n47905033000000000002\n").getBytes("US-ASCII"));
+		assertEquals(2, DiversifiedKeyFile.readManifest(m).size());
+		Files.write(m.toPath(), (CARD_1 + "\n47905033000000000002\n" + CARD_1 + "\n").getBytes("US-ASCII"));
+		try {
+			DiversifiedKeyFile.readManifest(m);
+			fail("Duplicate should be refused");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains(":3:"));
+		}
+	}
+
+	@Test
+	public void testAuthenticateWithKeyFile() throws Exception {
+		List<byte[]> cards = new ArrayList<byte[]>();
+		cards.add(HexUtils.stringToBin(CARD_1));
+		File f = new File(dir, "batch");
+		DiversifiedKeyFile.create(f, PASSWORD, master(), cards, 1);
+		DiversifiedKeyFile file = DiversifiedKeyFile.open(f, PASSWORD);
+
+		SimulatedCard card = new SimulatedCard(1);
+		card.setKeys(file.lookup(HexUtils.stringToBin(CARD_1), 2));
+		GlobalPlatform gp = new GlobalPlatform(card.getCard().getBasicChannel());
+		gp.setKeyDerivationService(file);
+		gp.select(null);
+		gp.openSecureChannel(master(), null, 0, EnumSet.of(APDUMode.MAC));
+		assertTrue(gp.isSecureChannelOpen());
+
+		// Keys of a card that is not in the file are not computed on the fly
+		card = new SimulatedCard(2);
+		GPKeySet ks = master();
+		ks.diversify(HexUtils.stringToBin("47905033000000000002"), 2);
+		card.setKeys(ks);
+		gp = new GlobalPlatform(card.getCard().getBasicChannel());
+		gp.setKeyDerivationService(file);
+		gp.select(null);
+		try {
+			gp.openSecureChannel(master(), null, 0, EnumSet.of(APDUMode.MAC));
+			fail("Card should not be found");
+		} catch (GPException e) {
+			assertFalse(gp.isSecureChannelOpen());
+		}
+	}
+}
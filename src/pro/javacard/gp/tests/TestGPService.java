@@ -0,0 +1,165 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pro.javacard.gp.AID;
+import pro.javacard.gp.GPData.KeyType;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPService;
+import pro.javacard.gp.GPService.Response;
+import pro.javacard.gp.SimulatedCard;
+import pro.javacard.gp.SimulatedTerminals;
+import apdu4j.HexUtils;
+
+public class TestGPService {
+	private static final String NEW_KEY = "000102030405060708090A0B0C0D0E0F";
+
+	private final List<SimulatedCard> cards = new ArrayList<SimulatedCard>();
+	private SimulatedTerminals terminals;
+	private GPService service;
+	private GPService.Client client;
+	private Thread listener;
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		cards.add(new SimulatedCard(1));
+		cards.add(new SimulatedCard(2));
+		terminals = new SimulatedTerminals(cards);
+		service = new GPService(terminals, TestSimulatedCard.DEFAULT_KEYS, 4);
+		final int port;
+		try (ServerSocket s = new ServerSocket(0)) {
+			port = s.getLocalPort();
+		}
+		listener = new Thread(new Runnable() {
+			public void run() {
+				try {
+					service.listen(port);
+				} catch (IOException e) {
+					// Closed
+				}
+			}
+		}, "GPService listener");
+		listener.setDaemon(true);
+		listener.start();
+		client = connect(port);
+		dir = Files.createTempDirectory("gpservice").toFile();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		client.close();
+		service.close();
+		listener.join(5000);
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+	}
+
+	// The listener may not be up yet
+	private static GPService.Client connect(int port) throws Exception {
+		for (int i = 0;; i++) {
+			try {
+				return new GPService.Client(port);
+			} catch (IOException e) {
+				if (i == 50)
+					throw e;
+				Thread.sleep(100);
+			}
+		}
+	}
+
+	@Test
+	public void testReaders() throws Exception {
+		Response r = client.call("readers");
+		assertTrue(r.error, r.ok);
+		assertEquals(2, r.output.size());
+	}
+
+	@Test
+	public void testInstallListDelete() throws Exception {
+		File app = new CapBuilder("test.app", TestSimulatedCard.APP).applet(TestSimulatedCard.APPLET).write(dir);
+
+		Response r = client.call("install", "1", app.getPath());
+		assertTrue(r.error, r.ok);
+		assertTrue(cards.get(1).getRegistry().allAppletAIDs().contains(new AID(TestSimulatedCard.APPLET)));
+		// Only on the card that was asked for
+		assertTrue(cards.get(0).getRegistry().allAppletAIDs().isEmpty());
+
+		r = client.call("list", "1");
+		assertTrue(r.error, r.ok);
+		assertTrue(r.output.toString(), r.output.toString().contains(TestSimulatedCard.APPLET));
+
+		r = client.call("delete", "1", TestSimulatedCard.APP);
+		assertTrue(r.error, r.ok);
+		assertTrue(cards.get(1).getRegistry().allPackageAIDs().isEmpty());
+	}
+
+	@Test
+	public void testLock() throws Exception {
+		Response r = client.call("lock", "0", NEW_KEY);
+		assertTrue(r.error, r.ok);
+		GPKey enc = cards.get(0).getKeys().getKey(KeyType.ENC);
+		assertEquals(NEW_KEY, HexUtils.encodeHexString(enc.getValue()));
+		// The service goes on with the new keys
+		r = client.call("list", "0");
+		assertTrue(r.error, r.ok);
+	}
+
+	@Test
+	public void testLockedKeysFollowCard() throws Exception {
+		assertTrue(client.call("lock", "0", NEW_KEY, "1").ok);
+		assertEquals(NEW_KEY, HexUtils.encodeHexString(cards.get(0).getKeys().getKey(KeyType.ENC).getValue()));
+
+		// A new card in the reader has the default keys
+		SimulatedCard fresh = new SimulatedCard(3);
+		reader(0).insert(fresh);
+		Response r = client.call("list", "0");
+		assertTrue(r.error, r.ok);
+
+		// and the locked card is known in another reader
+		reader(1).insert(cards.get(0));
+		r = client.call("list", "1");
+		assertTrue(r.error, r.ok);
+	}
+
+	@Test
+	public void testLockBadVersion() throws Exception {
+		Response r = client.call("lock", "0", NEW_KEY, "255");
+		assertFalse(r.ok);
+		assertEquals(1, cards.get(0).getKeys().getVersion());
+	}
+
+	private SimulatedTerminals.SimulatedTerminal reader(int i) throws Exception {
+		return (SimulatedTerminals.SimulatedTerminal) terminals.list().get(i);
+	}
+
+	@Test
+	public void testErrors() throws Exception {
+		Response r = client.call("list", "9");
+		assertFalse(r.ok);
+		assertNotNull(r.error);
+		r = client.call("install", "0", new File(dir, "missing.cap").getPath());
+		assertFalse(r.ok);
+		r = client.call("delete", "0", "A0000009");
+		assertFalse(r.ok);
+		// Still usable after failures
+		r = client.call("list", "0");
+		assertTrue(r.error, r.ok);
+	}
+}
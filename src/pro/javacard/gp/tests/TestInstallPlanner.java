@@ -0,0 +1,88 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import pro.javacard.gp.AID;
+import pro.javacard.gp.AIDRegistry;
+import pro.javacard.gp.CapFile;
+import pro.javacard.gp.GPException;
+import pro.javacard.gp.InstallPlanner;
+import pro.javacard.gp.InstallPlanner.Step;
+import pro.javacard.gp.InstallTransaction;
+
+public class TestInstallPlanner extends TestSimulatedCard {
+
+	@Test
+	public void testInstallInOrder() throws Exception {
+		CapFile lib = lib().build();
+		CapFile app = app().build();
+		List<Step> plan = InstallPlanner.plan(gp.getRegistry(), target(lib, app));
+		// Library before the package that imports it
+		assertEquals(Step.Op.LOAD, plan.get(0).op);
+		assertEquals(new AID(LIB), plan.get(0).aid);
+		assertEquals(Step.Op.LOAD, plan.get(1).op);
+		assertEquals(new AID(APP), plan.get(1).aid);
+
+		new InstallTransaction(gp, InstallTransaction.NEVER).execute(plan);
+		AIDRegistry r = card.getRegistry();
+		assertTrue(r.allPackageAIDs().contains(new AID(LIB)));
+		assertTrue(r.allPackageAIDs().contains(new AID(APP)));
+		assertEquals(new AID(APPLET), r.getDefaultSelectedAID());
+
+		// Nothing to do the second time
+		assertTrue(InstallPlanner.plan(gp.getRegistry(), target(lib, app)).isEmpty());
+	}
+
+	@Test
+	public void testReloadNextToOtherPackages() throws Exception {
+		CapFile lib = lib().build();
+		CapFile app = app().build();
+		install(lib, app);
+		load(new CapBuilder("test.other", "A000000301").build());
+		// A package that has nothing to do with the reloaded one is no obstacle
+		CapFile changed = app().padding(10).build();
+		List<Step> plan = InstallPlanner.plan(gp.getRegistry(), new InstallPlanner.Target().addPackage(changed, true).addPackage(lib, false)
+				.addInstance(changed.getPackageAID(), new AID(APPLET), null, (byte) 0, null));
+		new InstallTransaction(gp, InstallTransaction.NEVER).execute(plan);
+		AIDRegistry r = card.getRegistry();
+		assertTrue(r.allPackageAIDs().contains(new AID("A000000301")));
+		assertTrue(r.allAppletAIDs().contains(new AID(APPLET)));
+	}
+
+	@Test
+	public void testReloadOfImportedLibrary() throws Exception {
+		CapFile lib = lib().build();
+		install(lib, app().build());
+		// The card refuses to delete the library while the application imports it
+		List<Step> plan = InstallPlanner.plan(gp.getRegistry(), new InstallPlanner.Target().addPackage(lib, true));
+		try {
+			new InstallTransaction(gp, InstallTransaction.NEVER).execute(plan);
+			fail("Reload should have failed");
+		} catch (GPException e) {
+			assertEquals(0x6985, e.sw);
+		}
+		AIDRegistry r = card.getRegistry();
+		assertTrue(r.allPackageAIDs().contains(new AID(LIB)));
+		assertTrue(r.allPackageAIDs().contains(new AID(APP)));
+
+		// Fine when the importing package goes too
+		plan = InstallPlanner.plan(gp.getRegistry(), new InstallPlanner.Target().addPackage(lib, true).remove(new AID(APP)));
+		new InstallTransaction(gp, InstallTransaction.NEVER).execute(plan);
+		r = card.getRegistry();
+		assertTrue(r.allPackageAIDs().contains(new AID(LIB)));
+		assertFalse(r.allPackageAIDs().contains(new AID(APP)));
+		assertNull(r.getDefaultSelectedAID());
+	}
+
+	private void load(CapFile cap) throws Exception {
+		new InstallTransaction(gp, InstallTransaction.NEVER).execute(InstallPlanner.plan(gp.getRegistry(), new InstallPlanner.Target().addPackage(cap, false)));
+	}
+}
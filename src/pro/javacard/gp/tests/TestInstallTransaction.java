@@ -0,0 +1,72 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import pro.javacard.gp.AID;
+import pro.javacard.gp.CapFile;
+import pro.javacard.gp.GPException;
+import pro.javacard.gp.InstallPlanner;
+import pro.javacard.gp.InstallPlanner.Step;
+import pro.javacard.gp.InstallTransaction;
+
+public class TestInstallTransaction extends TestSimulatedCard {
+
+	@Test
+	public void testRollbackOnFailedInstall() throws Exception {
+		// INSTALL [for load] of both packages succeed, INSTALL [for install] fails
+		card.injectFailure(0xE6, 2, 0x6A80);
+		try {
+			install(lib().build(), app().build());
+			fail("Install should have failed");
+		} catch (GPException e) {
+			assertEquals(0x6A80, e.sw);
+		}
+		assertEmpty();
+		assertFalse(gp.getRegistry().allPackageAIDs().contains(new AID(LIB)));
+	}
+
+	@Test
+	public void testCompensation() throws Exception {
+		CapFile lib = lib().build();
+		CapFile app = app().build();
+		card.injectFailure(0xE6, 2, 0x6A80);
+		InstallTransaction tx = new InstallTransaction(gp, InstallTransaction.NEVER);
+		try {
+			tx.execute(InstallPlanner.plan(gp.getRegistry(), target(lib, app)));
+			fail("Install should have failed");
+		} catch (GPException e) {
+			// Rolled back
+		}
+		assertTrue(tx.getJournal().isEmpty());
+		assertTrue(tx.getCompensation().isEmpty());
+	}
+
+	@Test
+	public void testRetryTransient() throws Exception {
+		card.injectFailure(0xE8, 0, 0x6400);
+		List<Step> plan = InstallPlanner.plan(gp.getRegistry(), target(lib().build(), app().build()));
+		new InstallTransaction(gp, InstallTransaction.retries(1)).execute(plan);
+		assertEquals(new AID(APPLET), card.getRegistry().getDefaultSelectedAID());
+	}
+
+	@Test
+	public void testNoRetryOnFinalError() throws Exception {
+		// Would succeed on a second try, but 6A80 is not worth one
+		card.injectFailure(0xE8, 0, 0x6A80);
+		List<Step> plan = InstallPlanner.plan(gp.getRegistry(), target(lib().build(), app().build()));
+		try {
+			new InstallTransaction(gp, InstallTransaction.retries(3)).execute(plan);
+			fail("Install should have failed");
+		} catch (GPException e) {
+			assertEquals(0x6A80, e.sw);
+		}
+		assertEmpty();
+	}
+}
@@ -0,0 +1,109 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import pro.javacard.gp.BatchingKeyDerivationService;
+import pro.javacard.gp.KeyDerivationService;
+import pro.javacard.gp.KeyDerivationService.Request;
+import pro.javacard.gp.KeyDerivationService.Result;
+import pro.javacard.gp.LocalKeyDerivationService;
+
+public class TestKeyDerivation {
+
+	private static Request request(int n) {
+		byte[] data = new byte[10];
+		data[9] = (byte) n;
+		byte[] seq = { 0, (byte) n };
+		byte[] host = new byte[8];
+		host[0] = (byte) n;
+		byte[] card = { 0, (byte) n, 1, 2, 3, 4, 5, 6 };
+		return new Request(TestSimulatedCard.DEFAULT_KEYS, false, 2, data, seq, host, card);
+	}
+
+	// Waits for whatever the service is asked, so that requests pile up
+	private static final class Blocking implements KeyDerivationService {
+		public List<Result> derive(List<Request> requests) throws IOException {
+			try {
+				Thread.sleep(200);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return LocalKeyDerivationService.getInstance().derive(requests);
+		}
+	}
+
+	@Test
+	public void testSameAsLocal() throws Exception {
+		final BatchingKeyDerivationService batching = new BatchingKeyDerivationService(LocalKeyDerivationService.getInstance(), 8, 5);
+		ExecutorService pool = Executors.newFixedThreadPool(16);
+		try {
+			List<Future<Result>> results = new ArrayList<Future<Result>>();
+			for (int i = 0; i < 64; i++) {
+				final Request r = request(i);
+				results.add(pool.submit(new Callable<Result>() {
+					public Result call() throws IOException {
+						return batching.derive(r);
+					}
+				}));
+			}
+			for (int i = 0; i < results.size(); i++) {
+				Result expected = LocalKeyDerivationService.getInstance().derive(request(i));
+				Result actual = results.get(i).get(10, TimeUnit.SECONDS);
+				assertArrayEquals(expected.card_cryptogram, actual.card_cryptogram);
+				assertArrayEquals(expected.host_cryptogram, actual.host_cryptogram);
+			}
+		} finally {
+			pool.shutdown();
+			batching.close();
+		}
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		final BatchingKeyDerivationService batching = new BatchingKeyDerivationService(new Blocking(), 4, 1);
+		ExecutorService pool = Executors.newFixedThreadPool(16);
+		try {
+			List<Future<Result>> results = new ArrayList<Future<Result>>();
+			for (int i = 0; i < 16; i++) {
+				final Request r = request(i);
+				results.add(pool.submit(new Callable<Result>() {
+					public Result call() throws IOException {
+						return batching.derive(r);
+					}
+				}));
+			}
+			Thread.sleep(50);
+			batching.close();
+			// Every request completes or fails, none is left waiting
+			for (Future<Result> f : results) {
+				try {
+					f.get(5, TimeUnit.SECONDS);
+				} catch (ExecutionException e) {
+					assertEquals(IOException.class, e.getCause().getClass());
+				}
+			}
+			try {
+				batching.derive(request(0));
+				fail("Closed service should refuse requests");
+			} catch (IOException e) {
+				// Expected
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+
+import pro.javacard.gp.AID;
+import pro.javacard.gp.CapFile;
+import pro.javacard.gp.InstallPlanner;
+import pro.javacard.gp.InstallPlanner.Step;
+import pro.javacard.gp.InstallTransaction;
+import pro.javacard.gp.LoadFileManifest;
+
+public class TestLoadFileManifest extends TestSimulatedCard {
+
+	@Test
+	public void testSkipUnchanged() throws Exception {
+		File f = File.createTempFile("gpmanifest", ".properties");
+		try {
+			gp.setLoadFileManifest(new LoadFileManifest(f));
+			CapFile app = new CapBuilder("test.app", APP).applet(APPLET).build();
+			InstallPlanner.Target t = new InstallPlanner.Target().addPackage(app, true).addInstance(new AID(APP), new AID(APPLET), null, (byte) 0, null);
+			new InstallTransaction(gp, InstallTransaction.NEVER).execute(InstallPlanner.plan(gp.getRegistry(), t, gp.getLoadFileHashes()));
+			assertEquals(1, gp.getLoadFileHashes().size());
+
+			// Same load file is not loaded again
+			assertTrue(InstallPlanner.plan(gp.getRegistry(), t, gp.getLoadFileHashes()).isEmpty());
+
+			// A changed one is
+			CapFile changed = new CapBuilder("test.app", APP).applet(APPLET).padding(10).build();
+			t = new InstallPlanner.Target().addPackage(changed, true).addInstance(new AID(APP), new AID(APPLET), null, (byte) 0, null);
+			List<Step> plan = InstallPlanner.plan(gp.getRegistry(), t, gp.getLoadFileHashes());
+			assertEquals(Step.Op.DELETE, plan.get(0).op);
+			assertEquals(Step.Op.LOAD, plan.get(1).op);
+		} finally {
+			f.delete();
+		}
+	}
+}
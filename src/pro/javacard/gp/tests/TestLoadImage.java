@@ -0,0 +1,68 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static pro.javacard.gp.tests.TestCapFile.cap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import pro.javacard.gp.CapFile;
+
+public class TestLoadImage {
+
+	private static void assertSameLoadFile(CapFile expected, CapFile actual) {
+		assertEquals(expected.getPackageAID(), actual.getPackageAID());
+		assertEquals(expected.getAppletAIDs(), actual.getAppletAIDs());
+		assertEquals(expected.getImportAIDs(), actual.getImportAIDs());
+		assertEquals(expected.getCodeLength(false), actual.getCodeLength(false));
+		assertArrayEquals(expected.getLoadFileDataHash(false), actual.getLoadFileDataHash(false));
+	}
+
+	@Test
+	public void testIJC() throws Exception {
+		CapFile cap = cap();
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		cap.writeIJC(bo, false);
+		assertEquals(cap.getCodeLength(false), bo.size());
+		assertSameLoadFile(cap, CapFile.fromIJC(new ByteArrayInputStream(bo.toByteArray())));
+	}
+
+	@Test
+	public void testTruncatedIJC() throws Exception {
+		ByteArrayOutputStream bo = new ByteArrayOutputStream();
+		cap().writeIJC(bo, false);
+		try {
+			CapFile.fromIJC(new ByteArrayInputStream(Arrays.copyOf(bo.toByteArray(), bo.size() - 1)));
+			fail("Truncated image should be refused");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void testIndexed() throws Exception {
+		CapFile cap = cap();
+		File f = File.createTempFile("gpcap", ".idx");
+		try {
+			try (OutputStream out = new FileOutputStream(f)) {
+				cap.writeIndexed(out);
+			}
+			CapFile indexed = CapFile.openIndexed(f);
+			assertSameLoadFile(cap, indexed);
+			assertEquals(cap.getPackageName(), indexed.getPackageName());
+			// Recognized by open() too
+			assertSameLoadFile(cap, CapFile.open(f));
+		} finally {
+			f.delete();
+		}
+	}
+}
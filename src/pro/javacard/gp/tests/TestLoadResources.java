@@ -0,0 +1,47 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import pro.javacard.gp.AID;
+import pro.javacard.gp.CapFile;
+import pro.javacard.gp.GPException;
+import pro.javacard.gp.InstallPlanner;
+import pro.javacard.gp.InstallPlanner.Step;
+import pro.javacard.gp.InstallTransaction;
+
+public class TestLoadResources extends TestSimulatedCard {
+
+	@Test
+	public void testNotEnoughMemory() throws Exception {
+		card.setFreeMemory(100);
+		List<Step> plan = InstallPlanner.plan(gp.getRegistry(), target(lib().build(), app().padding(1000).build()));
+		try {
+			new InstallTransaction(gp, InstallTransaction.NEVER).execute(plan);
+			fail("Install should have failed");
+		} catch (GPException e) {
+			// Refused before anything was loaded
+		}
+		assertEmpty();
+	}
+
+	@Test
+	public void testReloadInPlaceOfItself() throws Exception {
+		CapFile lib = lib().build();
+		CapFile app = app().padding(1000).build();
+		install(lib, app);
+		// Too little for a second copy, enough once the old one is deleted
+		card.setFreeMemory(100);
+		InstallPlanner.Target t = new InstallPlanner.Target().addPackage(app, true).addPackage(lib, false)
+				.addInstance(app.getPackageAID(), new AID(APPLET), null, (byte) 0, null);
+		List<Step> plan = InstallPlanner.plan(gp.getRegistry(), t);
+		assertEquals(Step.Op.DELETE, plan.get(0).op);
+		new InstallTransaction(gp, InstallTransaction.NEVER).execute(plan);
+		assertTrue(card.getRegistry().allAppletAIDs().contains(new AID(APPLET)));
+	}
+}
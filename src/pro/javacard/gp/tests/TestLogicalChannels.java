@@ -0,0 +1,69 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import pro.javacard.gp.AID;
+import pro.javacard.gp.AIDRegistry;
+import pro.javacard.gp.CapFile;
+import pro.javacard.gp.GlobalPlatform;
+import pro.javacard.gp.GlobalPlatform.APDUMode;
+import pro.javacard.gp.InstallPlanner;
+import pro.javacard.gp.InstallTransaction;
+import pro.javacard.gp.SimulatedCard;
+
+public class TestLogicalChannels extends TestSimulatedCard {
+
+	@Test
+	public void testTwoSessions() throws Exception {
+		final GlobalPlatform other = gp.openLogicalChannel();
+		assertEquals(1, other.getChannelNumber());
+		// Settings and what is known about the card come along
+		assertEquals(SimulatedCard.ISD, other.getCapabilities().sdAID);
+		assertFalse(other.isSecureChannelOpen());
+		other.select(null);
+		other.openSecureChannel(DEFAULT_KEYS, null, 0, EnumSet.of(APDUMode.MAC));
+
+		// Both sessions work at the same time, each in its own MAC chain
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		try {
+			Future<?> install = pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					install(lib().build(), app().build());
+					return null;
+				}
+			});
+			Future<?> load = pool.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					CapFile cap = new CapBuilder("test.other", "A000000301").padding(2000).build();
+					new InstallTransaction(other, InstallTransaction.NEVER).execute(InstallPlanner.plan(other.getRegistry(), new InstallPlanner.Target().addPackage(cap, false)));
+					return null;
+				}
+			});
+			install.get(10, TimeUnit.SECONDS);
+			load.get(10, TimeUnit.SECONDS);
+		} finally {
+			pool.shutdown();
+		}
+		assertTrue(gp.isSecureChannelOpen());
+		assertTrue(other.isSecureChannelOpen());
+		AIDRegistry r = card.getRegistry();
+		assertTrue(r.allAppletAIDs().contains(new AID(APPLET)));
+		assertTrue(r.allPackageAIDs().contains(new AID("A000000301")));
+
+		// Closing the logical channel leaves the basic one as it is
+		other.closeLogicalChannel();
+		gp.deleteAID(new AID("A000000301"), true);
+		assertFalse(card.getRegistry().allPackageAIDs().contains(new AID("A000000301")));
+	}
+}
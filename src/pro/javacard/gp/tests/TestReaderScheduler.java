@@ -0,0 +1,84 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CommandAPDU;
+
+import org.junit.Test;
+
+import pro.javacard.gp.ReaderScheduler;
+import pro.javacard.gp.SimulatedCard;
+
+public class TestReaderScheduler {
+	private static final int READERS = 6;
+	// Readers on the same hub that do not go through the scheduler and keep
+	// it busy, so that no command of the group is as fast as it was alone
+	private static final int OTHERS = 8;
+
+	private static Callable<Void> select(final CardChannel channel, final AtomicInteger sent, final AtomicBoolean done) {
+		return new Callable<Void>() {
+			public Void call() throws Exception {
+				while (!done.get()) {
+					assertEquals(0x9000, channel.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00, 256)).getSW());
+					sent.incrementAndGet();
+				}
+				return null;
+			}
+		};
+	}
+
+	@Test
+	public void testLimitStaysDownUnderLoad() throws Exception {
+		final ReaderScheduler scheduler = new ReaderScheduler();
+		// Transfers go over the hub one at a time
+		SimulatedCard.Bus bus = new SimulatedCard.Bus(0);
+		SimulatedCard.Latency latency = new SimulatedCard.Latency(100, 10, 0, 0);
+		final AtomicInteger sent = new AtomicInteger();
+		final AtomicBoolean done = new AtomicBoolean();
+		ExecutorService pool = Executors.newFixedThreadPool(READERS + OTHERS);
+		int highest = 0;
+		try {
+			List<Future<Void>> readers = new ArrayList<Future<Void>>();
+			for (int i = 0; i < READERS + OTHERS; i++) {
+				SimulatedCard card = new SimulatedCard(i + 1);
+				card.setLatency(latency);
+				card.setBus(bus);
+				CardChannel channel = card.getCard().getBasicChannel();
+				if (i < READERS)
+					channel = scheduler.wrap("Hub reader " + (i + 1), channel);
+				readers.add(pool.submit(select(channel, i < READERS ? sent : new AtomicInteger(), done)));
+				// The best times are learned before the others join
+				if (i == READERS - 1) {
+					while (sent.get() < 200) {
+						Thread.sleep(10);
+					}
+					sent.set(0);
+				}
+			}
+			// Long enough for the best times to wear off if they did so by count
+			while (sent.get() < 3000) {
+				Thread.sleep(10);
+				highest = Math.max(highest, scheduler.getLimit("Hub reader"));
+			}
+			done.set(true);
+			for (Future<Void> f : readers) {
+				f.get(10, TimeUnit.SECONDS);
+			}
+		} finally {
+			pool.shutdown();
+		}
+		assertTrue("Limit went up to " + highest, highest <= 2);
+	}
+}
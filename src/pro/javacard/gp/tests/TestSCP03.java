@@ -0,0 +1,109 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.EnumSet;
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import pro.javacard.gp.AID;
+import pro.javacard.gp.CapFile;
+import pro.javacard.gp.GPCrypto;
+import pro.javacard.gp.GPData;
+import pro.javacard.gp.GPException;
+import pro.javacard.gp.GPKeySet;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+import pro.javacard.gp.GlobalPlatform;
+import pro.javacard.gp.GlobalPlatform.APDUMode;
+import pro.javacard.gp.InstallPlanner;
+import pro.javacard.gp.InstallTransaction;
+import pro.javacard.gp.SimulatedCard;
+import apdu4j.HexUtils;
+
+public class TestSCP03 {
+	private static final GPKeySet AES_KEYS = new GPKeySet(new GPKey(GPData.defaultKey, Type.AES));
+
+	private SimulatedCard card;
+	private GlobalPlatform gp;
+
+	@Before
+	public void setUp() throws Exception {
+		card = new SimulatedCard(1, 3);
+		gp = new GlobalPlatform(card.getCard().getBasicChannel());
+		gp.select(null);
+	}
+
+	private void open(APDUMode... modes) throws Exception {
+		EnumSet<APDUMode> mode = EnumSet.of(APDUMode.MAC);
+		for (APDUMode m : modes) {
+			mode.add(m);
+		}
+		gp.openSecureChannel(AES_KEYS, null, 0, mode);
+		assertEquals(3, gp.getSCPVersion());
+	}
+
+	@Test
+	public void testCMAC() throws Exception {
+		// RFC 4493, example 2
+		byte[] key = HexUtils.stringToBin("2B7E151628AED2A6ABF7158809CF4F3C");
+		byte[] msg = HexUtils.stringToBin("6BC1BEE22E409F96E93D7E117393172A");
+		assertArrayEquals(HexUtils.stringToBin("070A16B46B4D4144F79BDD9DD04A287C"), GPCrypto.scp03_mac(key, msg, 128));
+	}
+
+	@Test
+	public void testResponseMAC() throws Exception {
+		open(APDUMode.RMAC);
+		// Every response continues the chain
+		for (int i = 0; i < 3; i++) {
+			assertEquals(SimulatedCard.ISD, gp.getRegistry().allAIDs().get(0));
+		}
+		assertTrue(gp.isSecureChannelOpen());
+	}
+
+	@Test
+	public void testTamperedResponseMAC() throws Exception {
+		open(APDUMode.RMAC);
+		card.corruptResponseMAC();
+		try {
+			gp.getRegistry();
+			fail("Wrong R-MAC should be refused");
+		} catch (GPException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("RMAC"));
+		}
+		assertFalse(gp.isSecureChannelOpen());
+	}
+
+	@Test
+	public void testResponseDecryption() throws Exception {
+		open(APDUMode.RENC);
+		// Commands and responses are encrypted with a counter that changes
+		// with every command, a wrong ICV would garble all but the first block
+		CapFile app = new CapBuilder("test.app", "A000000201").applet("A00000020101").padding(600).build();
+		InstallPlanner.Target t = new InstallPlanner.Target().addPackage(app, false).addInstance(new AID("A000000201"), new AID("A00000020101"), null, (byte) 0, null);
+		new InstallTransaction(gp, InstallTransaction.NEVER).execute(InstallPlanner.plan(gp.getRegistry(), t));
+		assertEquals(new HashSet<AID>(card.getRegistry().allAIDs()), new HashSet<AID>(gp.getRegistry().allAIDs()));
+		assertTrue(gp.getRegistry().allAppletAIDs().contains(new AID("A00000020101")));
+	}
+
+	@Test
+	public void testErrorWithoutData() throws Exception {
+		open(APDUMode.RENC);
+		// Errors carry no R-MAC and do not break the chain
+		card.injectFailure(0xE4, 0, 0x6A80);
+		try {
+			gp.deleteAID(new AID("A000000201"), false);
+			fail("DELETE should have failed");
+		} catch (GPException e) {
+			assertEquals(0x6A80, e.sw);
+		}
+		assertTrue(gp.isSecureChannelOpen());
+		assertEquals(SimulatedCard.ISD, gp.getRegistry().allAIDs().get(0));
+	}
+}
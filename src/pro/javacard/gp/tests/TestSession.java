@@ -0,0 +1,48 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.EnumSet;
+
+import org.junit.Test;
+
+import pro.javacard.gp.AIDRegistry;
+import pro.javacard.gp.GPException;
+import pro.javacard.gp.GlobalPlatform.APDUMode;
+import pro.javacard.gp.SimulatedCard;
+
+public class TestSession extends TestSimulatedCard {
+
+	@Test
+	public void testRegistry() throws Exception {
+		AIDRegistry r = gp.getRegistry();
+		assertEquals(SimulatedCard.ISD, r.allAIDs().get(0));
+		assertTrue(r.allPackageAIDs().isEmpty());
+	}
+
+	@Test
+	public void testSecureChannelClosedOnFailure() throws Exception {
+		assertTrue(gp.isSecureChannelOpen());
+		card.injectFailure(0xF2, 0, 0x6982);
+		try {
+			gp.getRegistry();
+			fail("GET STATUS should have failed");
+		} catch (GPException e) {
+			assertEquals(0x6982, e.sw);
+		}
+		assertFalse(gp.isSecureChannelOpen());
+		gp.select(null);
+		gp.openSecureChannel(DEFAULT_KEYS, null, 0, EnumSet.of(APDUMode.MAC));
+		assertTrue(gp.isSecureChannelOpen());
+		gp.getRegistry();
+	}
+
+	@Test
+	public void testSelectEndsSecureChannel() throws Exception {
+		gp.select(null);
+		assertFalse(gp.isSecureChannelOpen());
+	}
+}
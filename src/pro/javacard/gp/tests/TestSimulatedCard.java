@@ -0,0 +1,75 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.EnumSet;
+import java.util.List;
+
+import org.junit.Before;
+
+import pro.javacard.gp.AID;
+import pro.javacard.gp.AIDRegistry;
+import pro.javacard.gp.CapFile;
+import pro.javacard.gp.GPData;
+import pro.javacard.gp.GPKeySet;
+import pro.javacard.gp.GPKeySet.GPKey;
+import pro.javacard.gp.GPKeySet.GPKey.Type;
+import pro.javacard.gp.GlobalPlatform;
+import pro.javacard.gp.GlobalPlatform.APDUMode;
+import pro.javacard.gp.InstallPlanner;
+import pro.javacard.gp.InstallPlanner.Step;
+import pro.javacard.gp.InstallTransaction;
+import pro.javacard.gp.SimulatedCard;
+
+/**
+ * A fresh simulated card for every test, with the ISD selected and a secure
+ * channel open with the default keys.
+ */
+public abstract class TestSimulatedCard {
+	static final GPKeySet DEFAULT_KEYS = new GPKeySet(new GPKey(GPData.defaultKey, Type.DES3));
+
+	static final String LIB = "A000000101";
+	static final String APP = "A000000201";
+	static final String APPLET = "A00000020101";
+
+	SimulatedCard card;
+	GlobalPlatform gp;
+
+	@Before
+	public void setUp() throws Exception {
+		card = new SimulatedCard(1);
+		gp = new GlobalPlatform(card.getCard().getBasicChannel());
+		gp.select(null);
+		gp.openSecureChannel(DEFAULT_KEYS, null, 0, EnumSet.of(APDUMode.MAC));
+	}
+
+	static CapBuilder lib() {
+		return new CapBuilder("test.lib", LIB).imports("A0000000620001");
+	}
+
+	static CapBuilder app() {
+		return new CapBuilder("test.app", APP).applet(APPLET).imports(LIB);
+	}
+
+	// Both packages and the applet, default selected
+	static InstallPlanner.Target target(CapFile lib, CapFile app) {
+		return new InstallPlanner.Target().addPackage(app, false).addPackage(lib, false)
+				.addInstance(app.getPackageAID(), new AID(APPLET), null, (byte) 0, null).setDefaultSelected(new AID(APPLET));
+	}
+
+	void install(CapFile lib, CapFile app) throws Exception {
+		List<Step> plan = InstallPlanner.plan(gp.getRegistry(), target(lib, app));
+		new InstallTransaction(gp, InstallTransaction.NEVER).execute(plan);
+	}
+
+	// Only the ISD is left
+	void assertEmpty() {
+		AIDRegistry r = card.getRegistry();
+		assertTrue(r.allPackageAIDs().isEmpty());
+		assertTrue(r.allAppletAIDs().isEmpty());
+		assertEquals(1, r.allAIDs().size());
+		assertNotNull(r.getEntry(SimulatedCard.ISD));
+	}
+}
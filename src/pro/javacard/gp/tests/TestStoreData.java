@@ -0,0 +1,115 @@
+package pro.javacard.gp.tests;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import pro.javacard.gp.AID;
+import pro.javacard.gp.GPException;
+import pro.javacard.gp.InstallPlanner;
+import pro.javacard.gp.InstallTransaction;
+import pro.javacard.gp.StoreData;
+
+public class TestStoreData extends TestSimulatedCard {
+	private final AID applet = new AID(APPLET);
+
+	@Before
+	public void setUp() throws Exception {
+		super.setUp();
+		InstallPlanner.Target t = new InstallPlanner.Target().addPackage(new CapBuilder("test.app", APP).applet(APPLET).build(), false)
+				.addInstance(new AID(APP), applet, null, (byte) 0, null);
+		new InstallTransaction(gp, InstallTransaction.NEVER).execute(InstallPlanner.plan(gp.getRegistry(), t));
+		gp.installForPersonalization(applet);
+	}
+
+	private static byte[] record(int n, int length) {
+		byte[] r = new byte[length];
+		for (int i = 0; i < length; i++) {
+			r[i] = (byte) (n + i);
+		}
+		return r;
+	}
+
+	@Test
+	public void testSingleBlock() throws Exception {
+		StoreData sd = gp.storeData(StoreData.DGI);
+		sd.write(record(1, 20));
+		sd.close();
+		assertEquals(1, sd.getBlockCount());
+		List<byte[]> stored = card.getStoredData(applet);
+		assertEquals(1, stored.size());
+		assertArrayEquals(record(1, 20), stored.get(0));
+	}
+
+	@Test
+	public void testChaining() throws Exception {
+		// More than 256 blocks, so that the block number wraps
+		ByteArrayOutputStream all = new ByteArrayOutputStream();
+		StoreData sd = gp.storeData(StoreData.DGI);
+		for (int i = 0; i < 400; i++) {
+			byte[] r = record(i, 200);
+			sd.write(r);
+			all.write(r);
+		}
+		sd.close();
+		assertTrue(String.valueOf(sd.getBlockCount()), sd.getBlockCount() > 256);
+		List<byte[]> stored = card.getStoredData(applet);
+		assertEquals(1, stored.size());
+		assertArrayEquals(all.toByteArray(), stored.get(0));
+	}
+
+	@Test
+	public void testDGI() throws Exception {
+		StoreData sd = gp.storeData(StoreData.DGI);
+		sd.writeDGI(0x0101, record(0, 4), false);
+		sd.writeDGI(0x0202, record(0, 300), false);
+		sd.close();
+		byte[] stored = card.getStoredData(applet).get(0);
+		assertEquals(3 + 4 + 5 + 300, stored.length);
+		assertArrayEquals(new byte[] { 0x01, 0x01, 0x04 }, new byte[] { stored[0], stored[1], stored[2] });
+		// Long form length
+		assertArrayEquals(new byte[] { 0x02, 0x02, (byte) 0xFF, 0x01, 0x2C }, new byte[] { stored[7], stored[8], stored[9], stored[10], stored[11] });
+	}
+
+	@Test
+	public void testSequences() throws Exception {
+		StoreData sd = gp.storeData(StoreData.BER_TLV);
+		sd.write(record(1, 10));
+		sd.close();
+		sd = gp.storeData(StoreData.BER_TLV);
+		sd.write(record(2, 10));
+		sd.close();
+		List<byte[]> stored = card.getStoredData(applet);
+		assertEquals(2, stored.size());
+		assertArrayEquals(record(2, 10), stored.get(1));
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		card.injectFailure(0xE2, 1, 0x6A80);
+		StoreData sd = gp.storeData(StoreData.DGI);
+		try {
+			for (int i = 0; i < 20; i++) {
+				sd.write(record(i, 200));
+			}
+			sd.close();
+			fail("STORE DATA should have failed");
+		} catch (GPException e) {
+			assertEquals(0x6A80, e.sw);
+		}
+		try {
+			sd.write(record(0, 10));
+			fail("Nothing should go out after a failure");
+		} catch (IllegalStateException e) {
+			// Closed
+		}
+		assertTrue(card.getStoredData(applet).isEmpty());
+	}
+}